@@ -1,8 +1,12 @@
 package uk.gov.justice.digital.hmpps.whereabouts.config
 
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Value
 import org.springframework.context.annotation.Bean
 import org.springframework.context.annotation.Configuration
 import org.springframework.context.annotation.Profile
+import org.springframework.core.task.SimpleAsyncTaskExecutor
 import org.springframework.scheduling.annotation.EnableAsync
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor
 import java.util.concurrent.Executor
@@ -10,14 +14,48 @@ import java.util.concurrent.Executor
 @Configuration
 @Profile("!test")
 @EnableAsync
-class AsyncConfiguration {
+class AsyncConfiguration(
+  @Value("\${spring.threads.virtual.enabled:false}") private val virtualThreadsEnabled: Boolean,
+) {
+  private companion object {
+    private val log: Logger = LoggerFactory.getLogger(this::class.java)
+  }
+
+  /**
+   * With virtual threads each task gets its own thread, so the queue goes away and the concurrency limit
+   * takes over from the pool size in stopping a burst of work from flooding the downstream APIs.
+   */
+  @Bean
+  fun asyncExecutor(): Executor? = if (virtualThreadsEnabled) {
+    SimpleAsyncTaskExecutor("AsyncThread-").apply {
+      setVirtualThreads(true)
+      concurrencyLimit = 12
+    }
+  } else {
+    ThreadPoolTaskExecutor().apply {
+      corePoolSize = 2
+      maxPoolSize = 2
+      queueCapacity = 10
+      setThreadNamePrefix("AsyncThread-")
+      initialize()
+    }
+  }
 
+  /**
+   * Sends attendance changes on from the outbox once they commit, apart from the other @Async work. The outbox poll
+   * sends anything this does not, so a burst beyond the queue is dropped rather than made to wait or to hold up the
+   * request that committed it.
+   */
   @Bean
-  fun asyncExecutor(): Executor? = ThreadPoolTaskExecutor().apply {
-    corePoolSize = 2
-    maxPoolSize = 2
-    queueCapacity = 10
-    setThreadNamePrefix("AsyncThread-")
+  fun attendanceOutboxExecutor(
+    @Value("\${attendance-outbox.dispatch-threads:4}") threads: Int,
+    @Value("\${attendance-outbox.dispatch-queue:100}") queueCapacity: Int,
+  ): Executor = ThreadPoolTaskExecutor().apply {
+    corePoolSize = threads
+    maxPoolSize = threads
+    this.queueCapacity = queueCapacity
+    setThreadNamePrefix("AttendanceOutbox-")
+    setRejectedExecutionHandler { _, _ -> log.debug("Attendance outbox dispatch queue full, leaving the change to the poll") }
     initialize()
   }
 }
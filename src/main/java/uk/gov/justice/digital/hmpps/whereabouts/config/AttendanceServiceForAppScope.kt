@@ -3,10 +3,14 @@ package uk.gov.justice.digital.hmpps.whereabouts.config
 import com.microsoft.applicationinsights.TelemetryClient
 import org.springframework.context.annotation.Bean
 import org.springframework.context.annotation.Configuration
+import org.springframework.transaction.PlatformTransactionManager
 import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceChangesRepository
 import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceRepository
+import uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceOutbox
+import uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceRollupService
 import uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceService
-import uk.gov.justice.digital.hmpps.whereabouts.services.IEPWarningService
+import uk.gov.justice.digital.hmpps.whereabouts.services.BulkAttendancePush
+import uk.gov.justice.digital.hmpps.whereabouts.services.ConcurrentReads
 import uk.gov.justice.digital.hmpps.whereabouts.services.NomisEventOutcomeMapper
 import uk.gov.justice.digital.hmpps.whereabouts.services.PrisonApiService
 
@@ -18,16 +22,24 @@ class AttendanceServiceForAppScope {
     prisonApiService: PrisonApiService,
     attendanceRepository: AttendanceRepository,
     attendanceChangesRepository: AttendanceChangesRepository,
-    iepWarningService: IEPWarningService,
+    attendanceOutbox: AttendanceOutbox,
     nomisEventOutcomeMapper: NomisEventOutcomeMapper,
     telemetryClient: TelemetryClient,
+    concurrentReads: ConcurrentReads,
+    attendanceRollupService: AttendanceRollupService,
+    bulkAttendancePush: BulkAttendancePush,
+    transactionManager: PlatformTransactionManager,
   ): AttendanceService = AttendanceService(
     disabledPrisonsConfig,
     attendanceRepository,
     attendanceChangesRepository,
     prisonApiService,
-    iepWarningService,
+    attendanceOutbox,
     nomisEventOutcomeMapper,
     telemetryClient,
+    concurrentReads,
+    attendanceRollupService,
+    bulkAttendancePush,
+    transactionManager,
   )
 }
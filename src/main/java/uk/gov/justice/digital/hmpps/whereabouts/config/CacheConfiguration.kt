@@ -0,0 +1,54 @@
+package uk.gov.justice.digital.hmpps.whereabouts.config
+
+import com.github.benmanes.caffeine.cache.Caffeine
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.cache.CacheManager
+import org.springframework.cache.annotation.EnableCaching
+import org.springframework.cache.caffeine.CaffeineCacheManager
+import org.springframework.cache.transaction.TransactionAwareCacheManagerProxy
+import org.springframework.context.annotation.Bean
+import org.springframework.context.annotation.Configuration
+import java.time.Duration
+
+@Configuration
+@EnableCaching
+class CacheConfiguration {
+
+  /**
+   * Caffeine in async mode holds the in-flight future for a key, so concurrent callers for the same key share one
+   * upstream request rather than each making their own. Evictions made inside a transaction wait for it to commit.
+   * Statistics are recorded so that the actuator publishes hit and miss counts for each cache.
+   */
+  @Bean
+  fun cacheManager(
+    @Value("\${scheduled-activities-cache.ttl:30s}") scheduledActivitiesTtl: Duration,
+    @Value("\${scheduled-activities-cache.max-size:1000}") scheduledActivitiesMaxSize: Long,
+    @Value("\${offender-no-cache.ttl:24h}") offenderNosTtl: Duration,
+    @Value("\${offender-no-cache.max-size:20000}") offenderNosMaxSize: Long,
+  ): CacheManager = TransactionAwareCacheManagerProxy(
+    CaffeineCacheManager().apply {
+      setAsyncCacheMode(true)
+      registerCustomCache(
+        SCHEDULED_ACTIVITIES,
+        Caffeine.newBuilder()
+          .expireAfterWrite(scheduledActivitiesTtl)
+          .maximumSize(scheduledActivitiesMaxSize)
+          .recordStats()
+          .buildAsync(),
+      )
+      registerCustomCache(
+        OFFENDER_NOS,
+        Caffeine.newBuilder()
+          .expireAfterWrite(offenderNosTtl)
+          .maximumSize(offenderNosMaxSize)
+          .recordStats()
+          .buildAsync(),
+      )
+    },
+  )
+
+  companion object {
+    const val SCHEDULED_ACTIVITIES = "scheduledActivities"
+    const val OFFENDER_NOS = "offenderNos"
+  }
+}
@@ -0,0 +1,79 @@
+package uk.gov.justice.digital.hmpps.whereabouts.config
+
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+import org.springframework.jdbc.datasource.DelegatingDataSource
+import java.sql.Connection
+import java.sql.SQLException
+import java.time.Clock
+import java.time.Duration
+import java.util.concurrent.atomic.AtomicLong
+import javax.sql.DataSource
+
+/**
+ * Hands out connections to the replica while it is keeping up with the primary, and connections to the primary when
+ * it is not: when its lag is over [maxLag], or when no connection to it can be had. The lag is checked on a
+ * connection about to be handed out, at most once every [lagCheckInterval], so read-only work can always run, just
+ * not always on the replica.
+ */
+class LagAwareReplicaDataSource(
+  replica: DataSource,
+  private val primary: DataSource,
+  private val maxLag: Duration,
+  private val lagCheckInterval: Duration,
+  private val lagQuery: String,
+  private val clock: Clock = Clock.systemUTC(),
+) : DelegatingDataSource(replica) {
+  private companion object {
+    private val log: Logger = LoggerFactory.getLogger(this::class.java)
+  }
+
+  @Volatile
+  private var replicaUsable = true
+  private val nextCheckAt = AtomicLong(0)
+
+  override fun getConnection(): Connection {
+    val checking = claimCheck()
+    if (!checking && !replicaUsable) return primary.connection
+
+    val connection = try {
+      targetDataSource!!.connection
+    } catch (e: SQLException) {
+      if (replicaUsable) log.warn("Replica unavailable, reading from the primary", e)
+      replicaUsable = false
+      return primary.connection
+    }
+    if (checking) replicaUsable = withinLag(connection)
+    if (replicaUsable) return connection
+
+    connection.close()
+    return primary.connection
+  }
+
+  // only one caller checks each interval, the rest go by its result
+  private fun claimCheck(): Boolean {
+    val now = clock.millis()
+    val due = nextCheckAt.get()
+    return now >= due && nextCheckAt.compareAndSet(due, now + lagCheckInterval.toMillis())
+  }
+
+  private fun withinLag(connection: Connection): Boolean {
+    val lag = try {
+      connection.createStatement().use { statement ->
+        statement.executeQuery(lagQuery).use { result ->
+          result.next()
+          Duration.ofMillis((result.getDouble(1) * 1000).toLong())
+        }
+      }
+    } catch (e: SQLException) {
+      log.warn("Could not check replica lag, reading from the primary", e)
+      return false
+    }
+
+    val within = lag <= maxLag
+    if (within != replicaUsable) {
+      log.info("Replica lag is {}, reading from the {}", lag, if (within) "replica" else "primary")
+    }
+    return within
+  }
+}
@@ -0,0 +1,61 @@
+package uk.gov.justice.digital.hmpps.whereabouts.config
+
+import com.zaxxer.hikari.HikariDataSource
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty
+import org.springframework.boot.context.properties.ConfigurationProperties
+import org.springframework.boot.jdbc.DataSourceBuilder
+import org.springframework.boot.jdbc.autoconfigure.DataSourceProperties
+import org.springframework.context.annotation.Bean
+import org.springframework.context.annotation.Configuration
+import org.springframework.context.annotation.Primary
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy
+import javax.sql.DataSource
+
+/**
+ * Sends the work of read-only transactions to a read replica when spring.datasource.replica.url is set, so that
+ * reporting reads do not compete with the writes of attendance marking on the primary. Everything else, including
+ * Flyway, stays on the primary configured under spring.datasource.
+ *
+ * A transaction only takes a connection when it first needs one, by which point it has been marked read-only or
+ * not, and that decides which pool the connection comes from. Only the CRUD methods a repository inherits run in a
+ * read-only transaction of their own; declared query methods do not, so a read meant for the replica has to be made
+ * in a read-only transaction of the service. Reads in a write path that must see the latest writes run in its
+ * transaction.
+ */
+@Configuration
+@ConditionalOnProperty("spring.datasource.replica.url")
+class ReplicaDataSourceConfiguration {
+
+  // not candidates for injection, so that everything, health checks included, goes through the routing data source
+  @Bean(autowireCandidate = false)
+  @ConfigurationProperties("spring.datasource.hikari")
+  fun primaryDataSource(properties: DataSourceProperties): HikariDataSource = properties.initializeDataSourceBuilder()
+    .type(HikariDataSource::class.java)
+    .build()
+
+  @Bean(autowireCandidate = false)
+  @ConfigurationProperties("spring.datasource.replica.hikari")
+  fun replicaDataSource(properties: ReplicaDataSourceProperties): HikariDataSource = DataSourceBuilder.create()
+    .type(HikariDataSource::class.java)
+    .url(properties.url)
+    .username(properties.username)
+    .password(properties.password)
+    .build()
+
+  @Bean
+  @Primary
+  fun dataSource(properties: DataSourceProperties, replicaProperties: ReplicaDataSourceProperties): DataSource {
+    val primary = primaryDataSource(properties)
+    return LazyConnectionDataSourceProxy(primary).apply {
+      setReadOnlyDataSource(
+        LagAwareReplicaDataSource(
+          replica = replicaDataSource(replicaProperties),
+          primary = primary,
+          maxLag = replicaProperties.maxLag,
+          lagCheckInterval = replicaProperties.lagCheckInterval,
+          lagQuery = replicaProperties.lagQuery,
+        ),
+      )
+    }
+  }
+}
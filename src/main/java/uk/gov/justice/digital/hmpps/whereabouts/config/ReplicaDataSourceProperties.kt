@@ -0,0 +1,22 @@
+package uk.gov.justice.digital.hmpps.whereabouts.config
+
+import org.springframework.boot.context.properties.ConfigurationProperties
+import java.time.Duration
+
+/**
+ * The read replica, under spring.datasource.replica. Read-only transactions only go to it when [url] is set; its
+ * connection pool is configured under spring.datasource.replica.hikari.
+ */
+@ConfigurationProperties("spring.datasource.replica")
+data class ReplicaDataSourceProperties(
+  val url: String? = null,
+  val username: String? = null,
+  val password: String? = null,
+  /** How far behind the primary the replica can be before reads go to the primary instead. */
+  val maxLag: Duration = Duration.ofSeconds(2),
+  /** How often the replica's lag is checked, on a connection about to be used. */
+  val lagCheckInterval: Duration = Duration.ofSeconds(5),
+  /** Returns the replica's lag in seconds: zero once it has replayed all it has received, or on a primary. */
+  val lagQuery: String = "select case when pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() then 0 " +
+    "else extract(epoch from now() - pg_last_xact_replay_timestamp()) end",
+)
@@ -0,0 +1,13 @@
+package uk.gov.justice.digital.hmpps.whereabouts.config
+
+import org.springframework.context.annotation.Configuration
+import org.springframework.context.annotation.Profile
+import org.springframework.scheduling.annotation.EnableScheduling
+
+/**
+ * Off in tests, which run scheduled work themselves when they need it.
+ */
+@Configuration
+@Profile("!test")
+@EnableScheduling
+class SchedulingConfiguration
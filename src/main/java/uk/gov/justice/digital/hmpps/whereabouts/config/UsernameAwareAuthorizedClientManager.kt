@@ -0,0 +1,126 @@
+package uk.gov.justice.digital.hmpps.whereabouts.config
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import org.springframework.http.client.ClientHttpRequestFactory
+import org.springframework.http.converter.FormHttpMessageConverter
+import org.springframework.security.authentication.AnonymousAuthenticationToken
+import org.springframework.security.core.Authentication
+import org.springframework.security.oauth2.client.AuthorizedClientServiceOAuth2AuthorizedClientManager
+import org.springframework.security.oauth2.client.OAuth2AuthorizationContext
+import org.springframework.security.oauth2.client.OAuth2AuthorizeRequest
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClient
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientManager
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientProvider
+import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService
+import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient
+import org.springframework.security.oauth2.client.endpoint.OAuth2ClientCredentialsGrantRequest
+import org.springframework.security.oauth2.client.endpoint.RestClientClientCredentialsTokenResponseClient
+import org.springframework.security.oauth2.client.http.OAuth2ErrorResponseErrorHandler
+import org.springframework.security.oauth2.client.registration.ClientRegistration
+import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository
+import org.springframework.security.oauth2.core.AuthorizationGrantType
+import org.springframework.security.oauth2.core.OAuth2AccessToken
+import org.springframework.security.oauth2.core.http.converter.OAuth2AccessTokenResponseHttpMessageConverter
+import org.springframework.util.LinkedMultiValueMap
+import org.springframework.web.client.RestClient
+import java.time.Clock
+import java.time.Duration
+import java.util.concurrent.TimeUnit
+
+/**
+ * Client credentials manager that asks for a token on behalf of whoever made the current request, so that
+ * NOMIS records them rather than the client as the author of any change. Unlike the hmpps-kotlin
+ * usernameAwareTokenRequestOAuth2AuthorizedClientManager it reads the username from the principal of each
+ * authorize request rather than capturing it when built, so one instance can serve every request. Tokens are
+ * cached per registration and username and reused until a minute before they expire.
+ *
+ * Calls made outside a request (e.g. from the SQS listener) are anonymous and share a token without a username.
+ */
+class UsernameAwareAuthorizedClientManager(
+  clientRegistrationRepository: ClientRegistrationRepository,
+  tokenResponseClient: OAuth2AccessTokenResponseClient<OAuth2ClientCredentialsGrantRequest>,
+  clock: Clock = Clock.systemUTC(),
+) : OAuth2AuthorizedClientManager {
+
+  private val delegate = AuthorizedClientServiceOAuth2AuthorizedClientManager(
+    clientRegistrationRepository,
+    CachingAuthorizedClientService(),
+  ).apply {
+    setAuthorizedClientProvider(UsernameAwareClientCredentialsProvider(tokenResponseClient, clock))
+  }
+
+  override fun authorize(authorizeRequest: OAuth2AuthorizeRequest): OAuth2AuthorizedClient? = delegate.authorize(authorizeRequest)
+}
+
+/**
+ * Adds the username, when there is one, to the client credentials token request.
+ */
+class UsernameClientCredentialsGrantRequest(
+  clientRegistration: ClientRegistration,
+  val username: String?,
+) : OAuth2ClientCredentialsGrantRequest(clientRegistration)
+
+/**
+ * Token client for [UsernameAwareAuthorizedClientManager], making its requests through the given request factory.
+ * The converters and error handler are the ones Spring Security sets up on its default RestClient.
+ */
+fun usernameAwareTokenResponseClient(requestFactory: ClientHttpRequestFactory) = RestClientClientCredentialsTokenResponseClient().apply {
+  setRestClient(
+    RestClient.builder()
+      .requestFactory(requestFactory)
+      .messageConverters { converters ->
+        converters.clear()
+        converters.add(FormHttpMessageConverter())
+        converters.add(OAuth2AccessTokenResponseHttpMessageConverter())
+      }
+      .defaultStatusHandler(OAuth2ErrorResponseErrorHandler())
+      .build(),
+  )
+  addParametersConverter { grantRequest ->
+    LinkedMultiValueMap<String, String>().apply {
+      (grantRequest as? UsernameClientCredentialsGrantRequest)?.username?.let { add("username", it) }
+    }
+  }
+}
+
+private class UsernameAwareClientCredentialsProvider(
+  private val tokenResponseClient: OAuth2AccessTokenResponseClient<OAuth2ClientCredentialsGrantRequest>,
+  private val clock: Clock,
+) : OAuth2AuthorizedClientProvider {
+  private val clockSkew = Duration.ofSeconds(60)
+
+  override fun authorize(context: OAuth2AuthorizationContext): OAuth2AuthorizedClient? {
+    val clientRegistration = context.clientRegistration
+    if (clientRegistration.authorizationGrantType != AuthorizationGrantType.CLIENT_CREDENTIALS) return null
+
+    // returning null tells the manager to carry on using the client it already has
+    val authorizedClient = context.authorizedClient
+    if (authorizedClient != null && !hasTokenExpired(authorizedClient.accessToken)) return null
+
+    val principal = context.principal
+    val username = principal.takeUnless { it is AnonymousAuthenticationToken }?.name
+    val tokenResponse = tokenResponseClient.getTokenResponse(UsernameClientCredentialsGrantRequest(clientRegistration, username))
+    return OAuth2AuthorizedClient(clientRegistration, principal.name, tokenResponse.accessToken)
+  }
+
+  private fun hasTokenExpired(token: OAuth2AccessToken): Boolean = token.expiresAt?.let { clock.instant().isAfter(it.minus(clockSkew)) } ?: false
+}
+
+/**
+ * Bounded replacement for InMemoryOAuth2AuthorizedClientService, as there is one entry per user who has
+ * used the service recently rather than one per client.
+ */
+private class CachingAuthorizedClientService : OAuth2AuthorizedClientService {
+  private val cache: Cache<Pair<String, String>, OAuth2AuthorizedClient> = CacheBuilder.newBuilder()
+    .maximumSize(10_000)
+    .expireAfterAccess(1, TimeUnit.HOURS)
+    .build()
+
+  @Suppress("UNCHECKED_CAST")
+  override fun <T : OAuth2AuthorizedClient> loadAuthorizedClient(clientRegistrationId: String, principalName: String): T? = cache.getIfPresent(clientRegistrationId to principalName) as T?
+
+  override fun saveAuthorizedClient(authorizedClient: OAuth2AuthorizedClient, principal: Authentication) = cache.put(authorizedClient.clientRegistration.registrationId to principal.name, authorizedClient)
+
+  override fun removeAuthorizedClient(clientRegistrationId: String, principalName: String) = cache.invalidate(clientRegistrationId to principalName)
+}
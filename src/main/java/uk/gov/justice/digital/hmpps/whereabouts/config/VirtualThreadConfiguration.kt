@@ -0,0 +1,30 @@
+package uk.gov.justice.digital.hmpps.whereabouts.config
+
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.context.annotation.Bean
+import org.springframework.context.annotation.Configuration
+import org.springframework.core.task.SimpleAsyncTaskExecutor
+import org.springframework.core.task.SyncTaskExecutor
+import org.springframework.core.task.TaskExecutor
+
+/**
+ * Virtual thread mode is switched on with spring.threads.virtual.enabled, which also moves Tomcat request
+ * handling onto virtual threads. Off by default.
+ */
+@Configuration
+class VirtualThreadConfiguration(
+  @Value("\${spring.threads.virtual.enabled:false}") private val virtualThreadsEnabled: Boolean,
+) {
+
+  /**
+   * Runs the body of each SQS message. The listener container threads only hand the message over, so when
+   * a message blocks on the database or the Prison API it is a virtual thread that waits rather than one of the
+   * container's. Without virtual threads the message is processed on the container thread as before.
+   */
+  @Bean
+  fun sqsListenerExecutor(): TaskExecutor = if (virtualThreadsEnabled) {
+    SimpleAsyncTaskExecutor("SqsListener-").apply { setVirtualThreads(true) }
+  } else {
+    SyncTaskExecutor()
+  }
+}
@@ -0,0 +1,75 @@
+package uk.gov.justice.digital.hmpps.whereabouts.config
+
+import com.microsoft.applicationinsights.TelemetryClient
+import jdk.jfr.consumer.RecordedEvent
+import jdk.jfr.consumer.RecordingStream
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty
+import org.springframework.context.SmartLifecycle
+import org.springframework.stereotype.Component
+import java.time.Duration
+
+/**
+ * Reports virtual threads that stay pinned to their carrier while blocked, using the JDK's own
+ * jdk.VirtualThreadPinned flight recorder event. Each pin over the threshold is logged with the frames
+ * that caused it, and sent to app insights as a VirtualThreadPinned event tagged with where it came from
+ * (jpa, oauth or other) so a regression in a library upgrade shows up on the dashboard.
+ *
+ * From JDK 24 a virtual thread blocking inside synchronized no longer pins, so on our JDK 25 runtime this
+ * should stay quiet; pinning now only comes from native frames and class initialisation.
+ */
+@Component
+@ConditionalOnProperty("spring.threads.virtual.enabled", havingValue = "true")
+class VirtualThreadPinningMonitor(
+  private val telemetryClient: TelemetryClient,
+  @Value("\${virtual-threads.pinned-threshold:20ms}") private val threshold: Duration,
+) : SmartLifecycle {
+  companion object {
+    private val log: Logger = LoggerFactory.getLogger(this::class.java)
+    private const val PINNED_EVENT = "jdk.VirtualThreadPinned"
+  }
+
+  private var stream: RecordingStream? = null
+
+  override fun start() {
+    stream = RecordingStream().apply {
+      enable(PINNED_EVENT).withThreshold(threshold).withStackTrace()
+      onEvent(PINNED_EVENT, ::report)
+      startAsync()
+    }
+    log.info("Reporting virtual threads pinned for longer than {}", threshold)
+  }
+
+  override fun stop() {
+    stream?.close()
+    stream = null
+  }
+
+  override fun isRunning(): Boolean = stream != null
+
+  internal fun report(event: RecordedEvent) {
+    val frames = event.stackTrace?.frames?.map { "${it.method.type.name}.${it.method.name}:${it.lineNumber}" } ?: emptyList()
+    val source = classifyPinningSource(frames)
+
+    log.warn(
+      "Virtual thread {} pinned for {}ms in {} code\n\t{}",
+      event.thread?.javaName,
+      event.duration.toMillis(),
+      source,
+      frames.take(20).joinToString("\n\t"),
+    )
+    telemetryClient.trackEvent(
+      "VirtualThreadPinned",
+      mapOf("source" to source, "frame" to (frames.firstOrNull { !it.startsWith("java.") && !it.startsWith("jdk.") } ?: "")),
+      mapOf("durationMs" to event.duration.toMillis().toDouble()),
+    )
+  }
+}
+
+internal fun classifyPinningSource(frames: List<String>): String = when {
+  frames.any { it.startsWith("org.hibernate.") || it.startsWith("com.zaxxer.hikari.") || it.startsWith("org.postgresql.") } -> "jpa"
+  frames.any { it.startsWith("org.springframework.security.oauth2.") || it.startsWith("uk.gov.justice.hmpps.kotlin.auth.") } -> "oauth"
+  else -> "other"
+}
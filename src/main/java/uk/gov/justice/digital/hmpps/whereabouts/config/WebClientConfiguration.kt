@@ -3,15 +3,14 @@ package uk.gov.justice.digital.hmpps.whereabouts.config
 import org.springframework.beans.factory.annotation.Value
 import org.springframework.context.annotation.Bean
 import org.springframework.context.annotation.Configuration
+import org.springframework.http.client.ReactorClientHttpRequestFactory
+import org.springframework.http.client.reactive.ReactorClientHttpConnector
 import org.springframework.security.oauth2.client.OAuth2AuthorizedClientManager
-import org.springframework.security.oauth2.client.OAuth2AuthorizedClientService
 import org.springframework.security.oauth2.client.registration.ClientRegistrationRepository
-import org.springframework.web.context.annotation.RequestScope
+import org.springframework.security.oauth2.client.web.reactive.function.client.ServletOAuth2AuthorizedClientExchangeFilterFunction
 import org.springframework.web.reactive.function.client.ExchangeStrategies
 import org.springframework.web.reactive.function.client.WebClient
-import uk.gov.justice.hmpps.kotlin.auth.authorisedWebClient
 import uk.gov.justice.hmpps.kotlin.auth.healthWebClient
-import uk.gov.justice.hmpps.kotlin.auth.usernameAwareTokenRequestOAuth2AuthorizedClientManager
 
 @Configuration
 class WebClientConfiguration(
@@ -19,14 +18,24 @@ class WebClientConfiguration(
   @Value("\${elite2api.endpoint.url}") private val prisonApiHealthRootUri: String,
   @Value("\${casenotes.endpoint.url}") private val caseNotesRootUri: String,
   @Value("\${oauth.endpoint.url}") private val oauthRootUri: String,
+  clientRegistrationRepository: ClientRegistrationRepository,
+  poolProperties: WebClientPoolProperties,
 ) {
+  private val prisonApiConnector = ReactorClientHttpConnector(poolProperties.prisonApi.httpClient("prison-api"))
+  private val caseNotesConnector = ReactorClientHttpConnector(poolProperties.caseNotes.httpClient("case-notes"))
+
+  // deliberately not a bean, as that would replace the default manager used by prisonAPiWebClientAuditable
+  private val usernameAwareAuthorizedClientManager = UsernameAwareAuthorizedClientManager(
+    clientRegistrationRepository,
+    usernameAwareTokenResponseClient(ReactorClientHttpRequestFactory(poolProperties.oauth.httpClient("oauth"))),
+  )
 
   @Bean
   fun prisonApiHealthWebClient(builder: WebClient.Builder) = builder.healthWebClient(prisonApiHealthRootUri)
 
   @Bean
   fun prisonAPiWebClientAuditable(authorizedClientManager: OAuth2AuthorizedClientManager, builder: WebClient.Builder) = builder
-    .authorisedWebClient(authorizedClientManager, "elite2-api", prisonApiRootUri)
+    .pooledAuthorisedWebClient(authorizedClientManager, "elite2-api", prisonApiRootUri, prisonApiConnector)
 
   @Bean
   fun caseNoteHealthWebClient(builder: WebClient.Builder) = builder.healthWebClient(caseNotesRootUri)
@@ -35,12 +44,7 @@ class WebClientConfiguration(
   fun oAuthHealthWebClient(builder: WebClient.Builder) = builder.healthWebClient(oauthRootUri)
 
   @Bean
-  @RequestScope
-  fun elite2WebClient(
-    clientRegistrationRepository: ClientRegistrationRepository,
-    oAuth2AuthorizedClientService: OAuth2AuthorizedClientService,
-    builder: WebClient.Builder,
-  ) = builder
+  fun elite2WebClient(builder: WebClient.Builder) = builder
     .exchangeStrategies(
       ExchangeStrategies.builder()
         .codecs { configurer ->
@@ -49,21 +53,32 @@ class WebClientConfiguration(
         }
         .build(),
     )
-    .authorisedWebClient(
-      usernameAwareTokenRequestOAuth2AuthorizedClientManager(clientRegistrationRepository, oAuth2AuthorizedClientService),
-      "elite2-api",
-      prisonApiRootUri,
-    )
+    .pooledAuthorisedWebClient(usernameAwareAuthorizedClientManager, "elite2-api", prisonApiRootUri, prisonApiConnector)
 
   @Bean
-  @RequestScope
-  fun caseNoteWebClient(
-    clientRegistrationRepository: ClientRegistrationRepository,
-    oAuth2AuthorizedClientService: OAuth2AuthorizedClientService,
-    builder: WebClient.Builder,
-  ) = builder.authorisedWebClient(
-    usernameAwareTokenRequestOAuth2AuthorizedClientManager(clientRegistrationRepository, oAuth2AuthorizedClientService),
+  fun caseNoteWebClient(builder: WebClient.Builder) = builder.pooledAuthorisedWebClient(
+    usernameAwareAuthorizedClientManager,
     "case-note-api",
     caseNotesRootUri,
+    caseNotesConnector,
   )
+
+  /**
+   * Same as the hmpps-kotlin authorisedWebClient, except that the connector and so the connection pool is ours
+   * rather than a fresh default one per client.
+   */
+  private fun WebClient.Builder.pooledAuthorisedWebClient(
+    authorizedClientManager: OAuth2AuthorizedClientManager,
+    registrationId: String,
+    url: String,
+    connector: ReactorClientHttpConnector,
+  ): WebClient {
+    val oauth2Client = ServletOAuth2AuthorizedClientExchangeFilterFunction(authorizedClientManager).apply {
+      setDefaultClientRegistrationId(registrationId)
+    }
+    return baseUrl(url)
+      .clientConnector(connector)
+      .filter(oauth2Client)
+      .build()
+  }
 }
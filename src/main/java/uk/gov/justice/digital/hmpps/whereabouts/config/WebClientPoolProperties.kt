@@ -0,0 +1,47 @@
+package uk.gov.justice.digital.hmpps.whereabouts.config
+
+import io.netty.channel.ChannelOption
+import org.springframework.boot.context.properties.ConfigurationProperties
+import reactor.netty.http.client.HttpClient
+import reactor.netty.resources.ConnectionProvider
+import java.time.Duration
+
+/**
+ * Connection pool and timeout settings for each downstream service, under webclient.pools.prison-api,
+ * webclient.pools.case-notes and webclient.pools.oauth.
+ */
+@ConfigurationProperties("webclient.pools")
+data class WebClientPoolProperties(
+  val prisonApi: Pool = Pool(),
+  val caseNotes: Pool = Pool(maxConnections = 20),
+  val oauth: Pool = Pool(maxConnections = 10),
+) {
+  data class Pool(
+    val maxConnections: Int = 50,
+    val pendingAcquireMaxCount: Int = 200,
+    val pendingAcquireTimeout: Duration = Duration.ofSeconds(5),
+    val maxIdleTime: Duration = Duration.ofSeconds(20),
+    val evictInBackground: Duration = Duration.ofSeconds(30),
+    val connectTimeout: Duration = Duration.ofSeconds(5),
+    val responseTimeout: Duration = Duration.ofSeconds(30),
+  ) {
+    /**
+     * Each pool publishes the reactor.netty.connection.provider.* gauges (active, idle, pending and max
+     * connections) tagged with its name, and the client adds reactor.netty.http.client.* timers that include
+     * the time spent waiting for a connection from the pool.
+     */
+    fun httpClient(name: String): HttpClient = HttpClient.create(
+      ConnectionProvider.builder(name)
+        .maxConnections(maxConnections)
+        .pendingAcquireMaxCount(pendingAcquireMaxCount)
+        .pendingAcquireTimeout(pendingAcquireTimeout)
+        .maxIdleTime(maxIdleTime)
+        .evictInBackground(evictInBackground)
+        .metrics(true)
+        .build(),
+    )
+      .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout.toMillis().toInt())
+      .responseTimeout(responseTimeout)
+      .metrics(true) { _: String -> name }
+  }
+}
@@ -1,7 +1,13 @@
 package uk.gov.justice.digital.hmpps.whereabouts.controllers
 
+import com.fasterxml.jackson.databind.ObjectMapper
+import io.swagger.v3.oas.annotations.Operation
+import io.swagger.v3.oas.annotations.media.Content
+import io.swagger.v3.oas.annotations.media.Schema
+import io.swagger.v3.oas.annotations.responses.ApiResponse
 import io.swagger.v3.oas.annotations.tags.Tag
 import org.springframework.http.MediaType
+import org.springframework.http.ResponseEntity
 import org.springframework.web.bind.annotation.GetMapping
 import org.springframework.web.bind.annotation.RequestMapping
 import org.springframework.web.bind.annotation.RestController
@@ -20,17 +26,31 @@ import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentSubReason.Companion.
 @Tag(name = "absence-reasons")
 @RestController
 @RequestMapping(value = ["absence-reasons"], produces = [MediaType.APPLICATION_JSON_VALUE])
-class AbsentReasonsController {
+class AbsentReasonsController(objectMapper: ObjectMapper) {
+
+  private val reasons = StaticJsonResponse(
+    AbsentReasonsDto(
+      paidReasons.toReasonDto(),
+      unpaidReasons.toReasonDto(),
+      iepTriggers.toList(),
+      absentSubReasonTriggers,
+      paidSubReasons.toSubReasonDto(),
+      unpaidSubReasons.toSubReasonDto(),
+    ),
+    objectMapper,
+  )
 
   @GetMapping
-  fun reasons() = AbsentReasonsDto(
-    paidReasons.toReasonDto(),
-    unpaidReasons.toReasonDto(),
-    iepTriggers.toList(),
-    absentSubReasonTriggers,
-    paidSubReasons.toSubReasonDto(),
-    unpaidSubReasons.toSubReasonDto(),
+  @Operation(
+    description = "The absent reasons and sub reasons, and which reasons are paid or trigger an incentive level warning. " +
+      "Served with an ETag: send it back in If-None-Match to get a 304 when nothing has changed.",
+    summary = "Absent reasons",
+  )
+  @ApiResponse(
+    responseCode = "200",
+    content = [Content(mediaType = "application/json", schema = Schema(implementation = AbsentReasonsDto::class))],
   )
+  fun reasons(): ResponseEntity<ByteArray> = reasons.toResponseEntity()
 }
 
 private fun List<AbsentSubReason>.toSubReasonDto() = map { AbsentSubReasonDto(it, it.label) }
@@ -8,6 +8,9 @@ import io.swagger.v3.oas.annotations.responses.ApiResponse
 import io.swagger.v3.oas.annotations.responses.ApiResponses
 import io.swagger.v3.oas.annotations.tags.Tag
 import jakarta.validation.Valid
+import jakarta.validation.constraints.Size
+import org.springframework.http.ETag
+import org.springframework.http.HttpHeaders
 import org.springframework.http.HttpStatus
 import org.springframework.http.MediaType
 import org.springframework.http.ResponseEntity
@@ -15,6 +18,7 @@ import org.springframework.web.bind.annotation.PathVariable
 import org.springframework.web.bind.annotation.PostMapping
 import org.springframework.web.bind.annotation.PutMapping
 import org.springframework.web.bind.annotation.RequestBody
+import org.springframework.web.bind.annotation.RequestHeader
 import org.springframework.web.bind.annotation.RequestMapping
 import org.springframework.web.bind.annotation.ResponseStatus
 import org.springframework.web.bind.annotation.RestController
@@ -22,6 +26,7 @@ import uk.gov.justice.digital.hmpps.whereabouts.dto.ErrorResponse
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendanceDto
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.CreateAttendanceDto
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.UpdateAttendanceDto
+import uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceConflict
 import uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceService
 
 @Tag(name = "attendance")
@@ -70,6 +75,17 @@ class AttendanceController(private val attendanceService: AttendanceService) {
           ),
         ],
       ),
+      ApiResponse(
+        responseCode = "422",
+        description = "The Idempotency-Key has already been used to create a different attendance.",
+        content =
+        [
+          Content(
+            mediaType = "application/json",
+            schema = Schema(implementation = ErrorResponse::class),
+          ),
+        ],
+      ),
       ApiResponse(
         responseCode = "500",
         description = "Unrecoverable error occurred whilst processing request.",
@@ -89,12 +105,21 @@ class AttendanceController(private val attendanceService: AttendanceService) {
     @RequestBody
     @Valid
     attendance: CreateAttendanceDto,
-  ): AttendanceDto = attendanceService.createAttendance(attendance)
+    @Parameter(
+      description = "Client key for the request, so that a retry returns the attendance already created instead of a conflict. " +
+        "A key already used for a different attendance is rejected with a 422.",
+    )
+    @RequestHeader(name = "Idempotency-Key", required = false)
+    @Size(max = 64)
+    idempotencyKey: String?,
+  ): AttendanceDto = attendanceService.createAttendance(attendance, idempotencyKey)
 
   @PutMapping(path = ["/{id}"], consumes = [MediaType.APPLICATION_JSON_VALUE])
   @Operation(
     summary = "Updates existing attendance information",
-    description = "Updates the attendance record, posts attendance details back up to PNOMIS. IEP warnings are triggered when certain absence reasons are used.",
+    description = "Updates the attendance record, posts attendance details back up to PNOMIS. IEP warnings are triggered when certain absence reasons are used. " +
+      "Send the version of the attendance last read in If-Match to have the update rejected with a 409 if it has been changed since. " +
+      "The response carries the new version as its ETag.",
   )
   @ApiResponses(
     value = [
@@ -111,6 +136,17 @@ class AttendanceController(private val attendanceService: AttendanceService) {
 
       ),
       ApiResponse(responseCode = "404", description = "Requested resource not found."),
+      ApiResponse(
+        responseCode = "409",
+        description = "The attendance has been changed since the version given in If-Match, or by an update made at the same time.",
+        content =
+        [
+          Content(
+            mediaType = "application/json",
+            schema = Schema(implementation = ErrorResponse::class),
+          ),
+        ],
+      ),
       ApiResponse(
         responseCode = "500",
         description = "Unrecoverable error occurred whilst processing request.",
@@ -129,8 +165,21 @@ class AttendanceController(private val attendanceService: AttendanceService) {
     @PathVariable("id") id: Long,
     @RequestBody @Valid
     attendance: UpdateAttendanceDto,
+    @Parameter(description = "Version of the attendance the update was made against, as given in the attendance or a previous ETag")
+    @RequestHeader(name = HttpHeaders.IF_MATCH, required = false)
+    ifMatch: String?,
   ): ResponseEntity<Any> {
-    attendanceService.updateAttendance(id, attendance)
-    return ResponseEntity.noContent().build()
+    val version = attendanceService.updateAttendance(id, attendance, expectedVersion(ifMatch))
+    return ResponseEntity.noContent().apply { version?.let { eTag(it.toString()) } }.build()
+  }
+
+  /**
+   * The version an If-Match header asks for, or null when any version will do. A tag that is not a version can
+   * never match.
+   */
+  private fun expectedVersion(ifMatch: String?): Long? {
+    val eTag = ifMatch?.let { ETag.parse(it).firstOrNull() }
+    if (eTag == null || eTag.isWildcard) return null
+    return eTag.tag().toLongOrNull() ?: throw AttendanceConflict()
   }
 }
@@ -7,13 +7,18 @@ import lombok.extern.slf4j.Slf4j
 import org.springframework.format.annotation.DateTimeFormat
 import org.springframework.format.annotation.DateTimeFormat.ISO.DATE
 import org.springframework.http.MediaType
+import org.springframework.security.access.prepost.PreAuthorize
 import org.springframework.web.bind.annotation.GetMapping
 import org.springframework.web.bind.annotation.PathVariable
+import org.springframework.web.bind.annotation.PostMapping
 import org.springframework.web.bind.annotation.RequestMapping
 import org.springframework.web.bind.annotation.RequestParam
 import org.springframework.web.bind.annotation.RestController
 import uk.gov.justice.digital.hmpps.whereabouts.model.TimePeriod
+import uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceRollupService
 import uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceStatistics
+import uk.gov.justice.digital.hmpps.whereabouts.services.RollupConsistency
+import uk.gov.justice.digital.hmpps.whereabouts.services.RollupRebuild
 import uk.gov.justice.digital.hmpps.whereabouts.services.Stats
 import java.time.LocalDate
 
@@ -21,11 +26,14 @@ import java.time.LocalDate
 @RestController
 @RequestMapping(value = ["attendance-statistics"], produces = [MediaType.APPLICATION_JSON_VALUE])
 @Slf4j
-class AttendanceStatisticsController(private val attendanceStatistics: AttendanceStatistics) {
+class AttendanceStatisticsController(
+  private val attendanceStatistics: AttendanceStatistics,
+  private val attendanceRollupService: AttendanceRollupService,
+) {
 
   @GetMapping("{prison}/over-date-range")
   @Operation(
-    description = "Request attendance statistics",
+    description = "Request attendance statistics. Attendances for archived months are included.",
     summary = "Request attendance statistics",
   )
   fun getAttendanceForEventLocation(
@@ -50,4 +58,30 @@ class AttendanceStatisticsController(private val attendanceStatistics: Attendanc
     @DateTimeFormat(iso = DATE)
     toDate: LocalDate,
   ): Stats = attendanceStatistics.getStats(prisonId, period, fromDate, toDate)
+
+  @PostMapping("rollup/rebuild")
+  @PreAuthorize("hasRole('ROLE_ATTENDANCE_STATISTICS__ROLLUP__RW')")
+  @Operation(
+    description = "Recount the daily attendance rollup behind the statistics from the attendance records, for one " +
+      "prison or, when no prison is given, every prison with attendances. Requires role ROLE_ATTENDANCE_STATISTICS__ROLLUP__RW.",
+    summary = "Rebuild the daily attendance rollup",
+  )
+  fun rebuildRollup(
+    @Parameter(description = "Prison id (LEI). Leave blank for all prisons")
+    @RequestParam(name = "prisonId", required = false)
+    prisonId: String?,
+  ): List<RollupRebuild> = attendanceRollupService.rebuild(prisonId)
+
+  @GetMapping("rollup/consistency")
+  @PreAuthorize("hasRole('ROLE_ATTENDANCE_STATISTICS__ROLLUP__RW')")
+  @Operation(
+    description = "Compare a prison's daily attendance rollup with its attendance records, listing every bucket " +
+      "whose count differs. Requires role ROLE_ATTENDANCE_STATISTICS__ROLLUP__RW.",
+    summary = "Check the daily attendance rollup",
+  )
+  fun checkRollup(
+    @Parameter(description = "Prison id (LEI)", required = true)
+    @RequestParam(name = "prisonId")
+    prisonId: String,
+  ): RollupConsistency = attendanceRollupService.check(prisonId)
 }
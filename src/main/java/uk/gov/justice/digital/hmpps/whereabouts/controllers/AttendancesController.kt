@@ -11,26 +11,42 @@ import org.springframework.data.web.PageableDefault
 import org.springframework.format.annotation.DateTimeFormat
 import org.springframework.format.annotation.DateTimeFormat.ISO.DATE
 import org.springframework.format.annotation.DateTimeFormat.ISO.DATE_TIME
+import org.springframework.http.CacheControl
+import org.springframework.http.ContentDisposition
+import org.springframework.http.ETag
+import org.springframework.http.HttpHeaders
 import org.springframework.http.HttpStatus
 import org.springframework.http.MediaType
+import org.springframework.http.ResponseEntity
 import org.springframework.web.bind.annotation.GetMapping
 import org.springframework.web.bind.annotation.PathVariable
 import org.springframework.web.bind.annotation.PostMapping
+import org.springframework.web.bind.annotation.PutMapping
 import org.springframework.web.bind.annotation.RequestBody
+import org.springframework.web.bind.annotation.RequestHeader
 import org.springframework.web.bind.annotation.RequestMapping
 import org.springframework.web.bind.annotation.RequestParam
 import org.springframework.web.bind.annotation.ResponseStatus
 import org.springframework.web.bind.annotation.RestController
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody
 import uk.gov.justice.digital.hmpps.whereabouts.dto.ScheduledResponse
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AbsencesResponse
+import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendanceChangesPageResponse
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendanceChangesResponse
+import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendanceDto
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendanceHistoryDto
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendanceSummary
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendancesDto
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendancesResponse
+import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.UpdateAttendancesDto
+import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.UpdateAttendancesResponse
 import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentReason
 import uk.gov.justice.digital.hmpps.whereabouts.model.TimePeriod
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceVersion
+import uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceExportService
 import uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceService
+import uk.gov.justice.digital.hmpps.whereabouts.services.ExportFormat
+import uk.gov.justice.digital.hmpps.whereabouts.services.ValidationException
 import java.time.LocalDate
 import java.time.LocalDateTime
 
@@ -38,7 +54,10 @@ import java.time.LocalDateTime
 @RestController
 @RequestMapping(value = ["attendances"], produces = [MediaType.APPLICATION_JSON_VALUE])
 @Slf4j
-class AttendancesController(private val attendanceService: AttendanceService) {
+class AttendancesController(
+  private val attendanceService: AttendanceService,
+  private val attendanceExportService: AttendanceExportService,
+) {
 
   @PostMapping(consumes = [MediaType.APPLICATION_JSON_VALUE], produces = [MediaType.APPLICATION_JSON_VALUE])
   @ResponseStatus(HttpStatus.CREATED)
@@ -51,9 +70,26 @@ class AttendancesController(private val attendanceService: AttendanceService) {
     @RequestBody
     @Valid
     attendances: AttendancesDto,
-  ): AttendancesResponse = AttendancesResponse(
-    attendances = attendanceService.createAttendances(attendances),
+  ): AttendancesResponse = attendanceService.createAttendances(attendances)
+
+  @PutMapping(consumes = [MediaType.APPLICATION_JSON_VALUE], produces = [MediaType.APPLICATION_JSON_VALUE])
+  @Operation(
+    summary = "Updates many existing attendance records",
+    description = "Updates the attendance records and posts the new outcomes back up to PNOMIS in bulk. Returns a result for each " +
+      "attendance; one that is locked, not found, rejected by PNOMIS or changed since the version given is left as it was. IEP " +
+      "warnings are triggered as for a single update. An attendance can only be updated once per request.",
   )
+  fun putAttendances(
+    @Parameter(description = "Attendance updates", required = true)
+    @RequestBody
+    @Valid
+    updates: UpdateAttendancesDto,
+  ): UpdateAttendancesResponse {
+    val repeated = updates.attendances.groupingBy { it.id }.eachCount().filterValues { it > 1 }.keys
+    if (repeated.isNotEmpty()) throw ValidationException("Attendances can only be updated once per request: $repeated")
+
+    return attendanceService.updateAttendances(updates.attendances)
+  }
 
   @GetMapping("/{prison}/{event-location}")
   @Operation(
@@ -77,9 +113,14 @@ class AttendancesController(private val attendanceService: AttendanceService) {
     @Parameter(description = "Time period", required = true)
     @RequestParam(name = "period")
     period: TimePeriod,
-  ): AttendancesResponse = AttendancesResponse(
-    attendances = attendanceService.getAttendanceForEventLocation(prisonId, eventLocationId, date, period),
-  )
+    @Parameter(description = "ETag of a previous response for the same request, to get a 304 if nothing has changed")
+    @RequestHeader(name = HttpHeaders.IF_NONE_MATCH, required = false)
+    ifNoneMatch: String?,
+  ): ResponseEntity<AttendancesResponse> = conditionally(
+    ifNoneMatch,
+    attendanceService.getAttendanceVersionForEventLocation(prisonId, eventLocationId, date, period),
+    prisonId, eventLocationId, date, period,
+  ) { attendanceService.getAttendanceForEventLocation(prisonId, eventLocationId, date, period) }
 
   @GetMapping("/{prison}/absences")
   @Operation(
@@ -129,13 +170,19 @@ class AttendancesController(private val attendanceService: AttendanceService) {
     )
     @RequestParam(name = "bookings")
     bookings: Set<Long>,
-  ): AttendancesResponse = AttendancesResponse(
-    attendances = attendanceService.getAttendanceForBookings(prisonId, bookings, date, period),
-  )
+    @Parameter(description = "ETag of a previous response for the same request, to get a 304 if nothing has changed")
+    @RequestHeader(name = HttpHeaders.IF_NONE_MATCH, required = false)
+    ifNoneMatch: String?,
+  ): ResponseEntity<AttendancesResponse> = conditionally(
+    ifNoneMatch,
+    attendanceService.getAttendanceVersionForBookings(prisonId, bookings, date, date, period),
+    prisonId, bookings.sorted(), date, period,
+  ) { attendanceService.getAttendanceForBookings(prisonId, bookings, date, period) }
 
   @GetMapping("/offender/{offenderNo}/unacceptable-absences")
   @Operation(
-    description = "Returns unacceptable absence attendance details for an offender",
+    description = "Returns unacceptable absence attendance details for an offender. These are read from PNOMIS, so cover " +
+      "months whose attendances have been archived here too.",
     summary = "Request unacceptable absence details",
   )
   fun getAttendanceDetailsForOffender(
@@ -173,9 +220,14 @@ class AttendancesController(private val attendanceService: AttendanceService) {
     @RequestParam(name = "period")
     period: TimePeriod,
     @Parameter(description = "Set of booking ids, for example [1,2]", required = true) @RequestBody bookings: Set<Long>,
-  ): AttendancesResponse = AttendancesResponse(
-    attendances = attendanceService.getAttendanceForBookings(prisonId, bookings, date, period),
-  )
+    @Parameter(description = "ETag of a previous response for the same request, to get a 304 if nothing has changed")
+    @RequestHeader(name = HttpHeaders.IF_NONE_MATCH, required = false)
+    ifNoneMatch: String?,
+  ): ResponseEntity<AttendancesResponse> = conditionally(
+    ifNoneMatch,
+    attendanceService.getAttendanceVersionForBookings(prisonId, bookings, date, date, period),
+    prisonId, bookings.sorted(), date, period,
+  ) { attendanceService.getAttendanceForBookings(prisonId, bookings, date, period) }
 
   @PostMapping("/{prison}/attendance-over-date-range")
   @Operation(
@@ -203,15 +255,64 @@ class AttendancesController(private val attendanceService: AttendanceService) {
     @RequestParam(name = "period")
     period: TimePeriod?,
     @Parameter(description = "Set of booking ids, for example [1,2]", required = true) @RequestBody bookings: Set<Long>,
-  ): AttendancesResponse = AttendancesResponse(
-    attendances = attendanceService.getAttendanceForBookingsOverDateRange(
+    @Parameter(description = "Include attendances for months that have been archived, when asking for history")
+    @RequestParam(name = "includeArchived", defaultValue = "false")
+    includeArchived: Boolean,
+    @Parameter(description = "ETag of a previous response for the same request, to get a 304 if nothing has changed")
+    @RequestHeader(name = HttpHeaders.IF_NONE_MATCH, required = false)
+    ifNoneMatch: String?,
+  ): ResponseEntity<AttendancesResponse> = conditionally(
+    ifNoneMatch,
+    attendanceService.getAttendanceVersionForBookings(prisonId, bookings, fromDate, toDate, period, includeArchived),
+    prisonId, bookings.sorted(), fromDate, toDate, period, includeArchived,
+  ) {
+    attendanceService.getAttendanceForBookingsOverDateRange(
       prisonId,
       bookings,
       fromDate,
       toDate,
       period,
-    ),
+      includeArchived,
+    )
+  }
+
+  @PostMapping(
+    "/{prison}/attendance-over-date-range",
+    params = ["format"],
+    produces = [MediaType.APPLICATION_NDJSON_VALUE, "text/csv"],
+  )
+  @Operation(
+    description = "Streams attendance details for set of booking ids as newline delimited JSON or CSV, one attendance per line. " +
+      "Attendances for archived months are not included; use attendance-over-date-range with includeArchived for those.",
+    summary = "Export attendance details",
   )
+  fun exportAttendanceForBookingsOverDateRangeByPost(
+    @Parameter(description = "Prison id (LEI)")
+    @PathVariable(name = "prison")
+    prisonId: String,
+    @Parameter(
+      description = "Date of event in format YYYY-MM-DD",
+      required = true,
+    )
+    @RequestParam(name = "fromDate")
+    @DateTimeFormat(iso = DATE)
+    fromDate: LocalDate,
+    @Parameter(description = "Date of event in format YYYY-MM-DD defaults to fromDate")
+    @RequestParam(name = "toDate")
+    @DateTimeFormat(
+      iso = DATE,
+    )
+    toDate: LocalDate?,
+    @Parameter(description = "Time period. Leave blank for AM + PM")
+    @RequestParam(name = "period")
+    period: TimePeriod?,
+    @Parameter(description = "Output format, NDJSON or CSV", required = true)
+    @RequestParam(name = "format")
+    format: ExportFormat,
+    @Parameter(description = "Set of booking ids, for example [1,2]", required = true) @RequestBody bookings: Set<Long>,
+  ): ResponseEntity<StreamingResponseBody> = streamed(format, "attendance-$prisonId-$fromDate") { out ->
+    attendanceExportService.exportAttendanceForBookingsOverDateRange(prisonId, bookings, fromDate, toDate, period, format, out)
+  }
 
   @GetMapping("/{prison}/unaccounted-for")
   @Operation(
@@ -233,7 +334,8 @@ class AttendancesController(private val attendanceService: AttendanceService) {
 
   @GetMapping("/{prison}/absences-for-scheduled-activities/{absentReason}")
   @Operation(
-    description = "Return a set of absences for all offenders that have scheduled activity",
+    description = "Return a set of absences for all offenders that have scheduled activity. Absences for archived months are " +
+      "not included.",
     summary = "Request absences",
   )
   fun getAbsencesForReason(
@@ -264,6 +366,46 @@ class AttendancesController(private val attendanceService: AttendanceService) {
     absences = attendanceService.getAbsencesForReason(prisonId, absentReason, fromDate, toDate, period),
   )
 
+  @GetMapping(
+    "/{prison}/absences-for-scheduled-activities/{absentReason}",
+    params = ["format"],
+    produces = [MediaType.APPLICATION_NDJSON_VALUE, "text/csv"],
+  )
+  @Operation(
+    description = "Streams absences for all offenders that have scheduled activity as newline delimited JSON or CSV, one absence " +
+      "per line. Absences for archived months are not included.",
+    summary = "Export absences",
+  )
+  fun exportAbsencesForReason(
+    @Parameter(description = "Prison id (LEI)")
+    @PathVariable(name = "prison")
+    prisonId: String,
+    @Parameter(description = "Absent reason (e.g Refused, AcceptableAbsence)")
+    @PathVariable(name = "absentReason")
+    absentReason: AbsentReason,
+    @Parameter(
+      description = "Date of event in format YYYY-MM-DD",
+      required = true,
+    )
+    @RequestParam(name = "fromDate")
+    @DateTimeFormat(iso = DATE)
+    fromDate: LocalDate,
+    @Parameter(description = "Date of event in format YYYY-MM-DD defaults to fromDate")
+    @RequestParam(name = "toDate")
+    @DateTimeFormat(
+      iso = DATE,
+    )
+    toDate: LocalDate?,
+    @Parameter(description = "Time period")
+    @RequestParam(name = "period")
+    period: TimePeriod?,
+    @Parameter(description = "Output format, NDJSON or CSV", required = true)
+    @RequestParam(name = "format")
+    format: ExportFormat,
+  ): ResponseEntity<StreamingResponseBody> = streamed(format, "absences-$prisonId-$absentReason-$fromDate") { out ->
+    attendanceExportService.exportAbsencesForReason(prisonId, absentReason, fromDate, toDate, period, format, out)
+  }
+
   @GetMapping("/changes")
   @Operation(description = "Return all changes relating to an attendance")
   fun getAttendanceChanges(
@@ -287,8 +429,48 @@ class AttendancesController(private val attendanceService: AttendanceService) {
     changes = attendanceService.getAttendanceChanges(fromDateTime, toDateTime, agencyId),
   )
 
+  @GetMapping("/changes", params = ["pageSize"])
+  @Operation(
+    description = "Return a page of changes relating to attendances, in the order they were made. Pass the nextCursor " +
+      "from each page as cursor to get the next. When toDateTime is left out each page runs up to a few seconds before " +
+      "it was requested, so once a page is not full its nextCursor can be kept to poll for later changes.",
+  )
+  fun getAttendanceChangesPage(
+    @Parameter(
+      description = "Date and Time of change in format YYYY-MM-DDT09:10",
+      required = true,
+    )
+    @RequestParam(name = "fromDateTime")
+    @DateTimeFormat(iso = DATE_TIME)
+    fromDateTime: LocalDateTime,
+    @Parameter(description = "Date and Time of the change in format YYYY-MM-DDT:09:45")
+    @RequestParam(name = "toDateTime", required = false)
+    @DateTimeFormat(
+      iso = DATE_TIME,
+    )
+    toDateTime: LocalDateTime?,
+    @Parameter(description = "The agency Id")
+    @RequestParam(name = "agencyId", required = false)
+    agencyId: String? = null,
+    @Parameter(description = "Maximum number of changes to return, up to 1000", required = true)
+    @RequestParam(name = "pageSize")
+    pageSize: Int,
+    @Parameter(description = "The nextCursor of the previous page")
+    @RequestParam(name = "cursor", required = false)
+    cursor: String? = null,
+  ): AttendanceChangesPageResponse = attendanceService.getAttendanceChangesPage(
+    fromDateTime,
+    toDateTime,
+    agencyId,
+    cursor,
+    pageSize.coerceIn(1, 1000),
+  )
+
   @GetMapping("/offender/{offenderNo}/unacceptable-absence-count")
-  @Operation(description = "Return counts of unacceptable absences and totals over time for an offender")
+  @Operation(
+    description = "Return counts of unacceptable absences and totals over time for an offender. These are counted from " +
+      "PNOMIS, so cover months whose attendances have been archived here too.",
+  )
   fun getAttendanceSummary(
     @Parameter(description = "offender or Prison number or Noms id")
     @PathVariable(name = "offenderNo")
@@ -302,4 +484,27 @@ class AttendancesController(private val attendanceService: AttendanceService) {
     @DateTimeFormat(iso = DATE)
     toDate: LocalDate,
   ): AttendanceSummary = attendanceService.getAttendanceAbsenceSummaryForOffender(offenderNo, fromDate, toDate)
+
+  /**
+   * Answers with a 304 when the ETag the client holds is still that of the current [version], so an unchanged set of
+   * attendances is neither loaded nor serialised. The POST variants are reads too, so they are treated the same way.
+   */
+  private fun conditionally(
+    ifNoneMatch: String?,
+    version: AttendanceVersion,
+    vararg scope: Any?,
+    attendances: () -> Set<AttendanceDto>,
+  ): ResponseEntity<AttendancesResponse> {
+    val eTag = version.eTag(LocalDate.now(), *scope)
+    val cacheControl = CacheControl.noCache().cachePrivate()
+    if (ifNoneMatch != null && ETag.parse(ifNoneMatch).any { it.isWildcard || it.compare(ETag.create(eTag), false) }) {
+      return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).cacheControl(cacheControl).build()
+    }
+    return ResponseEntity.ok().eTag(eTag).cacheControl(cacheControl).body(AttendancesResponse(attendances = attendances()))
+  }
+
+  private fun streamed(format: ExportFormat, filename: String, body: StreamingResponseBody): ResponseEntity<StreamingResponseBody> = ResponseEntity.ok()
+    .contentType(format.mediaType)
+    .header(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment().filename("$filename.${format.extension}").build().toString())
+    .body(body)
 }
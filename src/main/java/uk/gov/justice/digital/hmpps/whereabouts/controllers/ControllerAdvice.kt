@@ -3,6 +3,7 @@ package uk.gov.justice.digital.hmpps.whereabouts.controllers
 import jakarta.persistence.EntityNotFoundException
 import org.slf4j.LoggerFactory
 import org.springframework.http.HttpHeaders
+import org.springframework.dao.OptimisticLockingFailureException
 import org.springframework.http.HttpStatus
 import org.springframework.http.HttpStatus.BAD_REQUEST
 import org.springframework.http.HttpStatusCode
@@ -21,11 +22,14 @@ import org.springframework.web.method.annotation.MethodArgumentTypeMismatchExcep
 import org.springframework.web.reactive.function.client.WebClientResponseException
 import org.springframework.web.servlet.mvc.method.annotation.ResponseEntityExceptionHandler
 import uk.gov.justice.digital.hmpps.whereabouts.dto.ErrorResponse
+import uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceConflict
 import uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceExists
 import uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceLocked
 import uk.gov.justice.digital.hmpps.whereabouts.services.DatabaseRowLockedException
 import uk.gov.justice.digital.hmpps.whereabouts.services.ForbiddenException
+import uk.gov.justice.digital.hmpps.whereabouts.services.IdempotencyKeyReused
 import uk.gov.justice.digital.hmpps.whereabouts.services.InvalidCourtLocation
+import uk.gov.justice.digital.hmpps.whereabouts.services.ReadDeadlineExceeded
 import uk.gov.justice.digital.hmpps.whereabouts.services.ValidationException
 
 @RestControllerAdvice
@@ -97,6 +101,44 @@ class ControllerAdvice : ResponseEntityExceptionHandler() {
       )
   }
 
+  @ExceptionHandler(AttendanceConflict::class)
+  fun handleAttendanceConflict(e: AttendanceConflict): ResponseEntity<ErrorResponse> {
+    log.debug("Attendance conflict exception {}", e.message)
+    return ResponseEntity
+      .status(HttpStatus.CONFLICT)
+      .contentType(MediaType.APPLICATION_JSON)
+      .body(
+        ErrorResponse
+          .builder()
+          .status(HttpStatus.CONFLICT.value())
+          .userMessage(e.message)
+          .developerMessage(e.message)
+          .build(),
+      )
+  }
+
+  @ExceptionHandler(IdempotencyKeyReused::class)
+  fun handleIdempotencyKeyReused(e: IdempotencyKeyReused): ResponseEntity<ErrorResponse> {
+    log.debug("Idempotency key reused exception {}", e.message)
+    return ResponseEntity
+      .status(HttpStatus.UNPROCESSABLE_ENTITY)
+      .contentType(MediaType.APPLICATION_JSON)
+      .body(
+        ErrorResponse
+          .builder()
+          .status(HttpStatus.UNPROCESSABLE_ENTITY.value())
+          .userMessage(e.message)
+          .developerMessage(e.message)
+          .build(),
+      )
+  }
+
+  @ExceptionHandler(OptimisticLockingFailureException::class)
+  fun handleException(e: OptimisticLockingFailureException): ResponseEntity<ErrorResponse> {
+    log.info("Optimistic locking failure {}", e.message)
+    return handleAttendanceConflict(AttendanceConflict())
+  }
+
   @ExceptionHandler(AttendanceLocked::class)
   fun handleAttendanceLocked(e: AttendanceLocked): ResponseEntity<ErrorResponse> {
     log.debug("Attendance locked exception {}", e.message)
@@ -258,6 +300,20 @@ class ControllerAdvice : ResponseEntityExceptionHandler() {
       )
   }
 
+  @ExceptionHandler(ReadDeadlineExceeded::class)
+  fun handleReadDeadlineExceeded(e: ReadDeadlineExceeded): ResponseEntity<ErrorResponse> {
+    log.warn("Gateway timeout (504) returned with message {}", e.message)
+    return ResponseEntity
+      .status(HttpStatus.GATEWAY_TIMEOUT)
+      .body(
+        ErrorResponse
+          .builder()
+          .status(HttpStatus.GATEWAY_TIMEOUT.value())
+          .developerMessage(e.message)
+          .build(),
+      )
+  }
+
   fun handleServerError(e: Exception): ResponseEntity<ErrorResponse> {
     log.error("Unexpected exception", e)
     return ResponseEntity
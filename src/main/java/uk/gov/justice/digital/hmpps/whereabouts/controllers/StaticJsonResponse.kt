@@ -0,0 +1,24 @@
+package uk.gov.justice.digital.hmpps.whereabouts.controllers
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.springframework.http.CacheControl
+import org.springframework.http.MediaType
+import org.springframework.http.ResponseEntity
+import org.springframework.util.DigestUtils
+import java.time.Duration
+
+/**
+ * A response whose body cannot change while the application is running. It is serialised once, up front, and served
+ * with a strong ETag taken from those bytes, so a client sending the ETag back in If-None-Match gets a 304 without a
+ * body. The ETag changes only when a release changes the content.
+ */
+class StaticJsonResponse(body: Any, objectMapper: ObjectMapper, private val maxAge: Duration = Duration.ofHours(1)) {
+  private val json: ByteArray = objectMapper.writeValueAsBytes(body)
+  private val eTag = "\"${DigestUtils.md5DigestAsHex(json)}\""
+
+  fun toResponseEntity(): ResponseEntity<ByteArray> = ResponseEntity.ok()
+    .eTag(eTag)
+    .cacheControl(CacheControl.maxAge(maxAge).cachePrivate())
+    .contentType(MediaType.APPLICATION_JSON)
+    .body(json)
+}
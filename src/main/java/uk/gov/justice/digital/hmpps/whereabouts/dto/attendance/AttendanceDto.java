@@ -31,8 +31,9 @@ public class AttendanceDto {
     private Long caseNoteId;
     private Boolean locked;
     private String cellLocation;
+    private Long version;
 
-    public AttendanceDto(Long id, Long bookingId, Long eventId, Long eventLocationId, TimePeriod period, String prisonId, Boolean attended, AbsentReason absentReason, AbsentSubReason absentSubReason, Boolean paid, LocalDate eventDate, String comments, LocalDateTime createDateTime, String createUserId, LocalDateTime modifyDateTime, String modifyUserId, Long caseNoteId, Boolean locked, String cellLocation) {
+    public AttendanceDto(Long id, Long bookingId, Long eventId, Long eventLocationId, TimePeriod period, String prisonId, Boolean attended, AbsentReason absentReason, AbsentSubReason absentSubReason, Boolean paid, LocalDate eventDate, String comments, LocalDateTime createDateTime, String createUserId, LocalDateTime modifyDateTime, String modifyUserId, Long caseNoteId, Boolean locked, String cellLocation, Long version) {
         this.id = id;
         this.bookingId = bookingId;
         this.eventId = eventId;
@@ -52,6 +53,7 @@ public class AttendanceDto {
         this.caseNoteId = caseNoteId;
         this.locked = locked;
         this.cellLocation = cellLocation;
+        this.version = version;
     }
 
     public AttendanceDto() {
@@ -145,6 +147,10 @@ public class AttendanceDto {
         return this.cellLocation;
     }
 
+    public Long getVersion() {
+        return this.version;
+    }
+
     public void setId(Long id) {
         this.id = id;
     }
@@ -221,6 +227,10 @@ public class AttendanceDto {
         this.cellLocation = cellLocation;
     }
 
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
     public boolean equals(final Object o) {
         if (o == this) return true;
         if (!(o instanceof AttendanceDto)) return false;
@@ -292,6 +302,9 @@ public class AttendanceDto {
         final Object other$cellLocation = other.getCellLocation();
         if (this$cellLocation == null ? other$cellLocation != null : !this$cellLocation.equals(other$cellLocation))
             return false;
+        final Object this$version = this.getVersion();
+        final Object other$version = other.getVersion();
+        if (this$version == null ? other$version != null : !this$version.equals(other$version)) return false;
         return true;
     }
 
@@ -340,15 +353,17 @@ public class AttendanceDto {
         result = result * PRIME + ($locked == null ? 43 : $locked.hashCode());
         final Object $cellLocation = this.getCellLocation();
         result = result * PRIME + ($cellLocation == null ? 43 : $cellLocation.hashCode());
+        final Object $version = this.getVersion();
+        result = result * PRIME + ($version == null ? 43 : $version.hashCode());
         return result;
     }
 
     public String toString() {
-        return "AttendanceDto(id=" + this.getId() + ", bookingId=" + this.getBookingId() + ", eventId=" + this.getEventId() + ", eventLocationId=" + this.getEventLocationId() + ", period=" + this.getPeriod() + ", prisonId=" + this.getPrisonId() + ", attended=" + this.getAttended() + ", absentReason=" + this.getAbsentReason() +", absentSubReason=" + this.getAbsentSubReason() + ", paid=" + this.getPaid() + ", eventDate=" + this.getEventDate() + ", comments=" + this.getComments() + ", createDateTime=" + this.getCreateDateTime() + ", createUserId=" + this.getCreateUserId() + ", modifyDateTime=" + this.getModifyDateTime() + ", modifyUserId=" + this.getModifyUserId() + ", caseNoteId=" + this.getCaseNoteId() + ", locked=" + this.getLocked() + ", cellLocation=" + this.getCellLocation() + ")";
+        return "AttendanceDto(id=" + this.getId() + ", bookingId=" + this.getBookingId() + ", eventId=" + this.getEventId() + ", eventLocationId=" + this.getEventLocationId() + ", period=" + this.getPeriod() + ", prisonId=" + this.getPrisonId() + ", attended=" + this.getAttended() + ", absentReason=" + this.getAbsentReason() +", absentSubReason=" + this.getAbsentSubReason() + ", paid=" + this.getPaid() + ", eventDate=" + this.getEventDate() + ", comments=" + this.getComments() + ", createDateTime=" + this.getCreateDateTime() + ", createUserId=" + this.getCreateUserId() + ", modifyDateTime=" + this.getModifyDateTime() + ", modifyUserId=" + this.getModifyUserId() + ", caseNoteId=" + this.getCaseNoteId() + ", locked=" + this.getLocked() + ", cellLocation=" + this.getCellLocation() + ", version=" + this.getVersion() + ")";
     }
 
     public AttendanceDtoBuilder toBuilder() {
-        return new AttendanceDtoBuilder().id(this.id).bookingId(this.bookingId).eventId(this.eventId).eventLocationId(this.eventLocationId).period(this.period).prisonId(this.prisonId).attended(this.attended).absentReason(this.absentReason).absentSubReason(this.absentSubReason).paid(this.paid).eventDate(this.eventDate).comments(this.comments).createDateTime(this.createDateTime).createUserId(this.createUserId).modifyDateTime(this.modifyDateTime).modifyUserId(this.modifyUserId).caseNoteId(this.caseNoteId).locked(this.locked).cellLocation(this.cellLocation);
+        return new AttendanceDtoBuilder().id(this.id).bookingId(this.bookingId).eventId(this.eventId).eventLocationId(this.eventLocationId).period(this.period).prisonId(this.prisonId).attended(this.attended).absentReason(this.absentReason).absentSubReason(this.absentSubReason).paid(this.paid).eventDate(this.eventDate).comments(this.comments).createDateTime(this.createDateTime).createUserId(this.createUserId).modifyDateTime(this.modifyDateTime).modifyUserId(this.modifyUserId).caseNoteId(this.caseNoteId).locked(this.locked).cellLocation(this.cellLocation).version(this.version);
     }
 
     public static class AttendanceDtoBuilder {
@@ -371,6 +386,7 @@ public class AttendanceDto {
         private Long caseNoteId;
         private Boolean locked;
         private String cellLocation;
+        private Long version;
 
         AttendanceDtoBuilder() {
         }
@@ -470,12 +486,17 @@ public class AttendanceDto {
             return this;
         }
 
+        public AttendanceDto.AttendanceDtoBuilder version(Long version) {
+            this.version = version;
+            return this;
+        }
+
         public AttendanceDto build() {
-            return new AttendanceDto(id, bookingId, eventId, eventLocationId, period, prisonId, attended, absentReason, absentSubReason, paid, eventDate, comments, createDateTime, createUserId, modifyDateTime, modifyUserId, caseNoteId, locked, cellLocation);
+            return new AttendanceDto(id, bookingId, eventId, eventLocationId, period, prisonId, attended, absentReason, absentSubReason, paid, eventDate, comments, createDateTime, createUserId, modifyDateTime, modifyUserId, caseNoteId, locked, cellLocation, version);
         }
 
         public String toString() {
-            return "AttendanceDto.AttendanceDtoBuilder(id=" + this.id + ", bookingId=" + this.bookingId + ", eventId=" + this.eventId + ", eventLocationId=" + this.eventLocationId + ", period=" + this.period + ", prisonId=" + this.prisonId + ", attended=" + this.attended + ", absentReason=" + this.absentReason + ", absentSubReason=" + this.absentSubReason + ", paid=" + this.paid + ", eventDate=" + this.eventDate + ", comments=" + this.comments + ", createDateTime=" + this.createDateTime + ", createUserId=" + this.createUserId + ", modifyDateTime=" + this.modifyDateTime + ", modifyUserId=" + this.modifyUserId + ", caseNoteId=" + this.caseNoteId + ", locked=" + this.locked + ", cellLocation=" + this.cellLocation + ")";
+            return "AttendanceDto.AttendanceDtoBuilder(id=" + this.id + ", bookingId=" + this.bookingId + ", eventId=" + this.eventId + ", eventLocationId=" + this.eventLocationId + ", period=" + this.period + ", prisonId=" + this.prisonId + ", attended=" + this.attended + ", absentReason=" + this.absentReason + ", absentSubReason=" + this.absentSubReason + ", paid=" + this.paid + ", eventDate=" + this.eventDate + ", comments=" + this.comments + ", createDateTime=" + this.createDateTime + ", createUserId=" + this.createUserId + ", modifyDateTime=" + this.modifyDateTime + ", modifyUserId=" + this.modifyUserId + ", caseNoteId=" + this.caseNoteId + ", locked=" + this.locked + ", cellLocation=" + this.cellLocation + ", version=" + this.version + ")";
         }
     }
 }
@@ -2,6 +2,7 @@ package uk.gov.justice.digital.hmpps.whereabouts.dto.attendance
 
 import io.swagger.annotations.ApiModel
 import io.swagger.annotations.ApiModelProperty
+import uk.gov.justice.digital.hmpps.whereabouts.dto.BookingActivity
 import uk.gov.justice.digital.hmpps.whereabouts.model.AttendanceChangeValues
 import java.time.LocalDateTime
 
@@ -9,6 +10,8 @@ import java.time.LocalDateTime
 data class AttendancesResponse(
   @ApiModelProperty(value = "Set of attendances")
   var attendances: Set<AttendanceDto>? = null,
+  @ApiModelProperty(value = "Bookings that could not be updated on NOMIS and so were not recorded, if any")
+  var failed: Set<BookingActivity>? = null,
 )
 
 @ApiModel(description = "Attendance changes")
@@ -17,6 +20,16 @@ data class AttendanceChangesResponse(
   var changes: Set<AttendanceChangeDto>? = null,
 )
 
+@ApiModel(description = "A page of attendance changes")
+data class AttendanceChangesPageResponse(
+  @ApiModelProperty(value = "Changes in the order they were made")
+  val changes: List<AttendanceChangeDto>,
+  @ApiModelProperty(value = "Opaque token to pass back as cursor for the changes after this page, or to resume polling later")
+  val nextCursor: String,
+  @ApiModelProperty(value = "True if the page was full, so more changes may follow straight away")
+  val more: Boolean,
+)
+
 @ApiModel("Attendance change")
 data class AttendanceChangeDto(
   @ApiModelProperty(value = "Id of the change record")
@@ -0,0 +1,84 @@
+package uk.gov.justice.digital.hmpps.whereabouts.dto.attendance
+
+import io.swagger.annotations.ApiModel
+import io.swagger.annotations.ApiModelProperty
+import jakarta.validation.Valid
+import jakarta.validation.constraints.NotEmpty
+import jakarta.validation.constraints.Size
+import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentReason
+import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentSubReason
+
+@ApiModel(description = "Updates to many existing attendances")
+data class UpdateAttendancesDto(
+  @ApiModelProperty(required = true, value = "One update per attendance")
+  @field:NotEmpty
+  @field:Size(max = 1000)
+  @field:Valid
+  val attendances: List<AttendanceUpdateDto>,
+)
+
+@ApiModel(description = "Update of an existing attendance")
+data class AttendanceUpdateDto(
+  @ApiModelProperty(required = true, value = "Id of the attendance to update", example = "1")
+  val id: Long,
+
+  @ApiModelProperty(required = true, value = "Flag to indicate the offender attended the event", example = "true")
+  val attended: Boolean,
+
+  @ApiModelProperty(required = true, value = "Flag to indicate the offender should be paid", example = "true")
+  val paid: Boolean,
+
+  @ApiModelProperty(value = "Reason the offender did not attendance the event", example = "Refused")
+  val absentReason: AbsentReason? = null,
+
+  @ApiModelProperty(value = "Absence reason the offender did not attendance the event", example = "Courses")
+  val absentSubReason: AbsentSubReason? = null,
+
+  @ApiModelProperty(value = "Comments about non attendance. This also gets used for the IEP warning text ")
+  @field:Size(max = 240)
+  val comments: String? = null,
+
+  @ApiModelProperty(
+    value = "Version of the attendance this update was made against, as read. When given the update is only made if the " +
+      "attendance is still at that version, otherwise it is reported as a CONFLICT",
+    example = "3",
+  )
+  val version: Long? = null,
+) {
+  fun toUpdateAttendanceDto() = UpdateAttendanceDto(
+    attended = attended,
+    paid = paid,
+    absentReason = absentReason,
+    absentSubReason = absentSubReason,
+    comments = comments,
+  )
+}
+
+enum class AttendanceUpdateStatus {
+  UPDATED,
+  NOT_FOUND,
+  LOCKED,
+  FORBIDDEN,
+  FAILED,
+  CONFLICT,
+}
+
+@ApiModel(description = "Result of updating an attendance")
+data class AttendanceUpdateResult(
+  @ApiModelProperty(value = "Id of the attendance", example = "1")
+  val id: Long,
+  @ApiModelProperty(
+    value = "UPDATED, or why the attendance was left as it was: NOT_FOUND, LOCKED, FORBIDDEN for a prison no longer " +
+      "using whereabouts, FAILED if NOMIS rejected the update, or CONFLICT if the attendance was changed by someone " +
+      "else since the version given or while this update was being made",
+  )
+  val status: AttendanceUpdateStatus,
+  @ApiModelProperty(value = "The attendance as updated, when UPDATED")
+  val attendance: AttendanceDto? = null,
+)
+
+@ApiModel(description = "Results of updating many attendances")
+data class UpdateAttendancesResponse(
+  @ApiModelProperty(value = "One result per attendance, in the order requested")
+  val results: List<AttendanceUpdateResult>,
+)
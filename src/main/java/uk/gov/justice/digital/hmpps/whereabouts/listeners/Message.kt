@@ -7,6 +7,8 @@ data class Message(
   val message: String,
   @SerializedName("MessageAttributes")
   val messageAttributes: MessageAttributes,
+  @SerializedName("Timestamp")
+  val timestamp: String? = null,
 )
 
 data class Attribute(
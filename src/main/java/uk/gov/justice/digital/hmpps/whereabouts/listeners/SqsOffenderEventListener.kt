@@ -1,32 +1,71 @@
 package uk.gov.justice.digital.hmpps.whereabouts.listeners
 
 import com.google.gson.Gson
+import com.microsoft.applicationinsights.TelemetryClient
 import io.awspring.cloud.sqs.annotation.SqsListener
+import io.awspring.cloud.sqs.annotation.SqsListenerAcknowledgementMode
+import io.awspring.cloud.sqs.listener.acknowledgement.BatchAcknowledgement
 import io.opentelemetry.api.trace.SpanKind
 import io.opentelemetry.instrumentation.annotations.WithSpan
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 import org.springframework.beans.factory.annotation.Qualifier
+import org.springframework.core.task.TaskExecutor
 import org.springframework.stereotype.Service
 import uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceService
+import java.time.Clock
+import java.time.Duration
+import java.time.Instant
+import java.util.concurrent.CompletableFuture
+import org.springframework.messaging.Message as QueueMessage
 
 @Service
 class SqsOffenderEventListener(
   @Qualifier("attendanceServiceAppScope")
   private val attendanceService: AttendanceService,
   private val gson: Gson,
+  @Qualifier("sqsListenerExecutor")
+  private val executor: TaskExecutor,
+  private val telemetryClient: TelemetryClient,
+  private val clock: Clock,
 ) {
   companion object {
     private val log: Logger = LoggerFactory.getLogger(this::class.java)
   }
 
-  @SqsListener("whereabouts", factory = "hmppsQueueContainerFactoryProxy")
+  /**
+   * Takes up to a poll's worth of messages at a time, with several polls in flight. Each message is acknowledged on
+   * its own once processed, so one that fails is redelivered (and eventually dead lettered) without holding back the
+   * rest of its batch.
+   */
+  @SqsListener(
+    "whereabouts",
+    factory = "hmppsQueueContainerFactoryProxy",
+    maxConcurrentMessages = "\${offender-events.max-concurrent-messages:20}",
+    maxMessagesPerPoll = "\${offender-events.max-messages-per-poll:10}",
+    acknowledgementMode = SqsListenerAcknowledgementMode.MANUAL,
+  )
   @WithSpan(value = "hmpps_prisoner_event_queue", kind = SpanKind.SERVER)
-  fun handleEvents(requestJson: String?) {
-    try {
-      log.info("Raw message {}", requestJson)
-      val (message, messageAttributes) = gson.fromJson(requestJson, Message::class.java)
-      val eventType = messageAttributes.eventType.value
+  fun handleEvents(messages: List<QueueMessage<String>>, acknowledgement: BatchAcknowledgement<String>): CompletableFuture<Void> {
+    val results = messages.map { message -> CompletableFuture.supplyAsync({ message to processEvent(message.payload) }, executor) }
+
+    return CompletableFuture.allOf(*results.toTypedArray()).thenCompose {
+      val outcomes = results.map { it.join() }
+      recordMetrics(outcomes.map { it.second })
+      acknowledgement.acknowledgeAsync(outcomes.filter { it.second.succeeded }.map { it.first })
+    }
+  }
+
+  private fun processEvent(requestJson: String?): ProcessedEvent {
+    val started = clock.instant()
+    var eventType = "unknown"
+    var published: Instant? = null
+
+    val succeeded = try {
+      log.debug("Raw message {}", requestJson)
+      val (message, messageAttributes, timestamp) = gson.fromJson(requestJson, Message::class.java)
+      eventType = messageAttributes.eventType.value
+      published = timestamp?.let { Instant.parse(it) }
       log.info("Processing message of type {}", eventType)
 
       when (eventType) {
@@ -40,9 +79,39 @@ class SqsOffenderEventListener(
           )
         }
       }
+      true
     } catch (e: Exception) {
       log.error("handleEvents() Unexpected error", e)
-      throw e
+      false
     }
+
+    val finished = clock.instant()
+    return ProcessedEvent(
+      eventType = eventType,
+      succeeded = succeeded,
+      lag = published?.let { Duration.between(it, finished) },
+      processingTime = Duration.between(started, finished),
+    )
   }
+
+  /**
+   * One event per event type in the batch, with how many were processed and failed, the longest time from being
+   * published to being processed, and the total processing time. A message that could not be read counts as "unknown".
+   */
+  private fun recordMetrics(outcomes: List<ProcessedEvent>) {
+    outcomes.groupBy { it.eventType }.forEach { (eventType, events) ->
+      telemetryClient.trackEvent(
+        "OffenderEventsProcessed",
+        mapOf("eventType" to eventType),
+        listOfNotNull(
+          "processed" to events.count { it.succeeded }.toDouble(),
+          "failed" to events.count { !it.succeeded }.toDouble(),
+          "processingMillis" to events.sumOf { it.processingTime.toMillis() }.toDouble(),
+          events.mapNotNull { it.lag }.maxOrNull()?.let { "maxLagMillis" to it.toMillis().toDouble() },
+        ).toMap(),
+      )
+    }
+  }
+
+  private data class ProcessedEvent(val eventType: String, val succeeded: Boolean, val lag: Duration?, val processingTime: Duration)
 }
@@ -0,0 +1,47 @@
+package uk.gov.justice.digital.hmpps.whereabouts.model
+
+import jakarta.persistence.Column
+import jakarta.persistence.Entity
+import jakarta.persistence.EnumType
+import jakarta.persistence.Enumerated
+import jakarta.persistence.Id
+import jakarta.persistence.Table
+import org.hibernate.annotations.Immutable
+import java.time.LocalDate
+import java.time.LocalDateTime
+
+/**
+ * An [Attendance] for a month that has been closed and moved to the archive. Only ever read: rows are copied in, and
+ * removed, by set-based statements. Property names match those of [Attendance] so that the same views can be read.
+ */
+@Entity
+@Immutable
+@Table(name = "OFFENDER_ATTENDANCE_ARCHIVE")
+class ArchivedAttendance(
+  @Id
+  val id: Long,
+  val bookingId: Long,
+  val eventId: Long,
+  val eventLocationId: Long,
+  val eventDate: LocalDate,
+  @Enumerated(EnumType.STRING)
+  val period: TimePeriod,
+  val prisonId: String,
+  val paid: Boolean?,
+  val attended: Boolean?,
+  @Enumerated(EnumType.STRING)
+  val absentReason: AbsentReason?,
+  @Enumerated(EnumType.STRING)
+  val absentSubReason: AbsentSubReason?,
+  val comments: String?,
+  val caseNoteId: Long?,
+  @Column(name = "CREATE_DATETIME")
+  val createDateTime: LocalDateTime,
+  @Column(name = "CREATE_USER_ID")
+  val createUserId: String,
+  @Column(name = "MODIFY_DATETIME")
+  val modifyDateTime: LocalDateTime?,
+  @Column(name = "MODIFY_USER_ID")
+  val modifyUserId: String?,
+  val version: Long,
+)
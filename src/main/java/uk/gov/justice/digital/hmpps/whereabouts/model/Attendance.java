@@ -14,7 +14,9 @@ import jakarta.persistence.Enumerated;
 import jakarta.persistence.GeneratedValue;
 import jakarta.persistence.GenerationType;
 import jakarta.persistence.Id;
+import jakarta.persistence.SequenceGenerator;
 import jakarta.persistence.Table;
+import jakarta.persistence.Version;
 import jakarta.validation.constraints.NotNull;
 import jakarta.validation.constraints.Size;
 import java.time.LocalDate;
@@ -25,7 +27,8 @@ import java.time.LocalDateTime;
 @EntityListeners(AuditingEntityListener.class)
 public class Attendance {
     @Id()
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "offender_attendance_id_seq")
+    @SequenceGenerator(name = "offender_attendance_id_seq", sequenceName = "offender_attendance_id_seq", allocationSize = 50)
     private Long id;
 
     @NotNull
@@ -62,6 +65,9 @@ public class Attendance {
 
     private Long caseNoteId;
 
+    @Size(max = 64)
+    private String idempotencyKey;
+
     @CreatedDate
     @Column(name = "CREATE_DATETIME", nullable = false)
     private LocalDateTime createDateTime;
@@ -78,7 +84,11 @@ public class Attendance {
     @Column(name = "MODIFY_USER_ID")
     private String modifyUserId;
 
-    public Attendance(Long id, @NotNull Long bookingId, @NotNull Long eventId, @NotNull Long eventLocationId, @NotNull LocalDate eventDate, @NotNull TimePeriod period, @NotNull @Size(max = 6) String prisonId, Boolean paid, Boolean attended, AbsentReason absentReason, AbsentSubReason absentSubReason, @Size(max = 240) String comments, Long caseNoteId, LocalDateTime createDateTime, String createUserId, LocalDateTime modifyDateTime, String modifyUserId) {
+    // incremented on every update, which is made conditional on it, so that the later of two racing updates fails
+    @Version
+    private Long version;
+
+    public Attendance(Long id, @NotNull Long bookingId, @NotNull Long eventId, @NotNull Long eventLocationId, @NotNull LocalDate eventDate, @NotNull TimePeriod period, @NotNull @Size(max = 6) String prisonId, Boolean paid, Boolean attended, AbsentReason absentReason, AbsentSubReason absentSubReason, @Size(max = 240) String comments, Long caseNoteId, @Size(max = 64) String idempotencyKey, LocalDateTime createDateTime, String createUserId, LocalDateTime modifyDateTime, String modifyUserId, Long version) {
         this.id = id;
         this.bookingId = bookingId;
         this.eventId = eventId;
@@ -92,10 +102,12 @@ public class Attendance {
         this.absentSubReason = absentSubReason;
         this.comments = comments;
         this.caseNoteId = caseNoteId;
+        this.idempotencyKey = idempotencyKey;
         this.createDateTime = createDateTime;
         this.createUserId = createUserId;
         this.modifyDateTime = modifyDateTime;
         this.modifyUserId = modifyUserId;
+        this.version = version;
     }
 
     public Attendance() {
@@ -209,6 +221,14 @@ public class Attendance {
         this.caseNoteId = caseNoteId;
     }
 
+    public @Size(max = 64) String getIdempotencyKey() {
+        return this.idempotencyKey;
+    }
+
+    public void setIdempotencyKey(@Size(max = 64) String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+
     public LocalDateTime getCreateDateTime() {
         return this.createDateTime;
     }
@@ -241,6 +261,14 @@ public class Attendance {
         this.modifyUserId = modifyUserId;
     }
 
+    public Long getVersion() {
+        return this.version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
     public boolean equals(final Object o) {
         if (o == this) return true;
         if (!(o instanceof Attendance)) return false;
@@ -289,6 +317,10 @@ public class Attendance {
         final Object other$caseNoteId = other.getCaseNoteId();
         if (this$caseNoteId == null ? other$caseNoteId != null : !this$caseNoteId.equals(other$caseNoteId))
             return false;
+        final Object this$idempotencyKey = this.getIdempotencyKey();
+        final Object other$idempotencyKey = other.getIdempotencyKey();
+        if (this$idempotencyKey == null ? other$idempotencyKey != null : !this$idempotencyKey.equals(other$idempotencyKey))
+            return false;
         final Object this$createDateTime = this.getCreateDateTime();
         final Object other$createDateTime = other.getCreateDateTime();
         if (this$createDateTime == null ? other$createDateTime != null : !this$createDateTime.equals(other$createDateTime))
@@ -305,6 +337,9 @@ public class Attendance {
         final Object other$modifyUserId = other.getModifyUserId();
         if (this$modifyUserId == null ? other$modifyUserId != null : !this$modifyUserId.equals(other$modifyUserId))
             return false;
+        final Object this$version = this.getVersion();
+        final Object other$version = other.getVersion();
+        if (this$version == null ? other$version != null : !this$version.equals(other$version)) return false;
         return true;
     }
 
@@ -341,6 +376,8 @@ public class Attendance {
         result = result * PRIME + ($comments == null ? 43 : $comments.hashCode());
         final Object $caseNoteId = this.getCaseNoteId();
         result = result * PRIME + ($caseNoteId == null ? 43 : $caseNoteId.hashCode());
+        final Object $idempotencyKey = this.getIdempotencyKey();
+        result = result * PRIME + ($idempotencyKey == null ? 43 : $idempotencyKey.hashCode());
         final Object $createDateTime = this.getCreateDateTime();
         result = result * PRIME + ($createDateTime == null ? 43 : $createDateTime.hashCode());
         final Object $createUserId = this.getCreateUserId();
@@ -349,15 +386,17 @@ public class Attendance {
         result = result * PRIME + ($modifyDateTime == null ? 43 : $modifyDateTime.hashCode());
         final Object $modifyUserId = this.getModifyUserId();
         result = result * PRIME + ($modifyUserId == null ? 43 : $modifyUserId.hashCode());
+        final Object $version = this.getVersion();
+        result = result * PRIME + ($version == null ? 43 : $version.hashCode());
         return result;
     }
 
     public String toString() {
-        return "Attendance(id=" + this.getId() + ", bookingId=" + this.getBookingId() + ", eventId=" + this.getEventId() + ", eventLocationId=" + this.getEventLocationId() + ", eventDate=" + this.getEventDate() + ", period=" + this.getPeriod() + ", prisonId=" + this.getPrisonId() + ", paid=" + this.getPaid() + ", attended=" + this.getAttended() + ", absentReason=" + this.getAbsentReason() +", absentSubReason=" + this.getAbsentSubReason() + ", comments=" + this.getComments() + ", caseNoteId=" + this.getCaseNoteId() + ", createDateTime=" + this.getCreateDateTime() + ", createUserId=" + this.getCreateUserId() + ", modifyDateTime=" + this.getModifyDateTime() + ", modifyUserId=" + this.getModifyUserId() + ")";
+        return "Attendance(id=" + this.getId() + ", bookingId=" + this.getBookingId() + ", eventId=" + this.getEventId() + ", eventLocationId=" + this.getEventLocationId() + ", eventDate=" + this.getEventDate() + ", period=" + this.getPeriod() + ", prisonId=" + this.getPrisonId() + ", paid=" + this.getPaid() + ", attended=" + this.getAttended() + ", absentReason=" + this.getAbsentReason() +", absentSubReason=" + this.getAbsentSubReason() + ", comments=" + this.getComments() + ", caseNoteId=" + this.getCaseNoteId() + ", idempotencyKey=" + this.getIdempotencyKey() + ", createDateTime=" + this.getCreateDateTime() + ", createUserId=" + this.getCreateUserId() + ", modifyDateTime=" + this.getModifyDateTime() + ", modifyUserId=" + this.getModifyUserId() + ", version=" + this.getVersion() + ")";
     }
 
     public AttendanceBuilder toBuilder() {
-        return new AttendanceBuilder().id(this.id).bookingId(this.bookingId).eventId(this.eventId).eventLocationId(this.eventLocationId).eventDate(this.eventDate).period(this.period).prisonId(this.prisonId).paid(this.paid).attended(this.attended).absentReason(this.absentReason).absentSubReason(this.absentSubReason).comments(this.comments).caseNoteId(this.caseNoteId).createDateTime(this.createDateTime).createUserId(this.createUserId).modifyDateTime(this.modifyDateTime).modifyUserId(this.modifyUserId);
+        return new AttendanceBuilder().id(this.id).bookingId(this.bookingId).eventId(this.eventId).eventLocationId(this.eventLocationId).eventDate(this.eventDate).period(this.period).prisonId(this.prisonId).paid(this.paid).attended(this.attended).absentReason(this.absentReason).absentSubReason(this.absentSubReason).comments(this.comments).caseNoteId(this.caseNoteId).idempotencyKey(this.idempotencyKey).createDateTime(this.createDateTime).createUserId(this.createUserId).modifyDateTime(this.modifyDateTime).modifyUserId(this.modifyUserId).version(this.version);
     }
 
     public static class AttendanceBuilder {
@@ -374,10 +413,12 @@ public class Attendance {
         private AbsentSubReason absentSubReason;
         private @Size(max = 240) String comments;
         private Long caseNoteId;
+        private @Size(max = 64) String idempotencyKey;
         private LocalDateTime createDateTime;
         private String createUserId;
         private LocalDateTime modifyDateTime;
         private String modifyUserId;
+        private Long version;
 
         AttendanceBuilder() {
         }
@@ -447,6 +488,11 @@ public class Attendance {
             return this;
         }
 
+        public Attendance.AttendanceBuilder idempotencyKey(@Size(max = 64) String idempotencyKey) {
+            this.idempotencyKey = idempotencyKey;
+            return this;
+        }
+
         public Attendance.AttendanceBuilder createDateTime(LocalDateTime createDateTime) {
             this.createDateTime = createDateTime;
             return this;
@@ -467,12 +513,17 @@ public class Attendance {
             return this;
         }
 
+        public Attendance.AttendanceBuilder version(Long version) {
+            this.version = version;
+            return this;
+        }
+
         public Attendance build() {
-            return new Attendance(id, bookingId, eventId, eventLocationId, eventDate, period, prisonId, paid, attended, absentReason, absentSubReason, comments, caseNoteId, createDateTime, createUserId, modifyDateTime, modifyUserId);
+            return new Attendance(id, bookingId, eventId, eventLocationId, eventDate, period, prisonId, paid, attended, absentReason, absentSubReason, comments, caseNoteId, idempotencyKey, createDateTime, createUserId, modifyDateTime, modifyUserId, version);
         }
 
         public String toString() {
-            return "Attendance.AttendanceBuilder(id=" + this.id + ", bookingId=" + this.bookingId + ", eventId=" + this.eventId + ", eventLocationId=" + this.eventLocationId + ", eventDate=" + this.eventDate + ", period=" + this.period + ", prisonId=" + this.prisonId + ", paid=" + this.paid + ", attended=" + this.attended + ", absentReason=" + this.absentReason +", absentSubReason=" + this.absentSubReason + ", comments=" + this.comments + ", caseNoteId=" + this.caseNoteId + ", createDateTime=" + this.createDateTime + ", createUserId=" + this.createUserId + ", modifyDateTime=" + this.modifyDateTime + ", modifyUserId=" + this.modifyUserId + ")";
+            return "Attendance.AttendanceBuilder(id=" + this.id + ", bookingId=" + this.bookingId + ", eventId=" + this.eventId + ", eventLocationId=" + this.eventLocationId + ", eventDate=" + this.eventDate + ", period=" + this.period + ", prisonId=" + this.prisonId + ", paid=" + this.paid + ", attended=" + this.attended + ", absentReason=" + this.absentReason +", absentSubReason=" + this.absentSubReason + ", comments=" + this.comments + ", caseNoteId=" + this.caseNoteId + ", idempotencyKey=" + this.idempotencyKey + ", createDateTime=" + this.createDateTime + ", createUserId=" + this.createUserId + ", modifyDateTime=" + this.modifyDateTime + ", modifyUserId=" + this.modifyUserId + ", version=" + this.version + ")";
         }
     }
 }
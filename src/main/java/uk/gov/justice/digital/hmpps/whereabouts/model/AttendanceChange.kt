@@ -10,6 +10,7 @@ import jakarta.persistence.GenerationType
 import jakarta.persistence.Id
 import jakarta.persistence.JoinColumn
 import jakarta.persistence.OneToOne
+import jakarta.persistence.SequenceGenerator
 import jakarta.persistence.Table
 import org.springframework.data.annotation.CreatedBy
 import org.springframework.data.annotation.CreatedDate
@@ -21,7 +22,8 @@ import java.time.LocalDateTime
 @EntityListeners(AuditingEntityListener::class)
 data class AttendanceChange(
   @Id
-  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "attendance_changes_id_seq")
+  @SequenceGenerator(name = "attendance_changes_id_seq", sequenceName = "attendance_changes_id_seq", allocationSize = 50)
   val id: Long? = null,
   @OneToOne
   @JoinColumn(name = "attendance_id", referencedColumnName = "id")
@@ -0,0 +1,74 @@
+package uk.gov.justice.digital.hmpps.whereabouts.model
+
+import jakarta.persistence.Column
+import jakarta.persistence.Embeddable
+import jakarta.persistence.Entity
+import jakarta.persistence.EnumType
+import jakarta.persistence.Enumerated
+import jakarta.persistence.Id
+import jakarta.persistence.IdClass
+import jakarta.persistence.Table
+import java.io.Serializable
+import java.time.LocalDate
+
+/**
+ * Number of attendances recorded for a prison, day and period with the same absent reason and attended flag.
+ * Attendances without an absent reason are counted under [NO_ABSENT_REASON], as the reason is part of the key.
+ */
+@Entity
+@IdClass(AttendanceDailyRollupPK::class)
+@Table(name = "ATTENDANCE_DAILY_ROLLUP")
+data class AttendanceDailyRollup(
+  @Id
+  @Column(name = "PRISON_ID", nullable = false, updatable = false)
+  val prisonId: String,
+  @Id
+  @Column(name = "EVENT_DATE", nullable = false, updatable = false)
+  val eventDate: LocalDate,
+  @Id
+  @Enumerated(EnumType.STRING)
+  @Column(name = "PERIOD", nullable = false, updatable = false)
+  val period: TimePeriod,
+  @Id
+  @Column(name = "ABSENT_REASON", nullable = false, updatable = false)
+  val absentReason: String,
+  @Id
+  @Column(name = "ATTENDED", nullable = false, updatable = false)
+  val attended: Boolean,
+  @Column(name = "ATTENDANCE_COUNT", nullable = false)
+  val attendanceCount: Int,
+) {
+  companion object {
+    const val NO_ABSENT_REASON = "NONE"
+  }
+}
+
+@Embeddable
+data class AttendanceDailyRollupPK(
+  @Id
+  @Column(name = "PRISON_ID")
+  var prisonId: String,
+  @Id
+  @Column(name = "EVENT_DATE")
+  var eventDate: LocalDate,
+  @Id
+  @Enumerated(EnumType.STRING)
+  @Column(name = "PERIOD")
+  var period: TimePeriod,
+  @Id
+  @Column(name = "ABSENT_REASON")
+  var absentReason: String,
+  @Id
+  @Column(name = "ATTENDED")
+  var attended: Boolean,
+) : Serializable {
+  companion object {
+    fun of(attendance: Attendance) = AttendanceDailyRollupPK(
+      prisonId = attendance.prisonId,
+      eventDate = attendance.eventDate,
+      period = attendance.period,
+      absentReason = attendance.absentReason?.name ?: AttendanceDailyRollup.NO_ABSENT_REASON,
+      attended = attendance.attended == true,
+    )
+  }
+}
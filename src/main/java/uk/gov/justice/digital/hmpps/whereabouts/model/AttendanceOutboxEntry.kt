@@ -0,0 +1,44 @@
+package uk.gov.justice.digital.hmpps.whereabouts.model
+
+import jakarta.persistence.Column
+import jakarta.persistence.Entity
+import jakarta.persistence.EntityListeners
+import jakarta.persistence.EnumType
+import jakarta.persistence.Enumerated
+import jakarta.persistence.GeneratedValue
+import jakarta.persistence.GenerationType
+import jakarta.persistence.Id
+import jakarta.persistence.Table
+import org.springframework.data.annotation.CreatedBy
+import org.springframework.data.annotation.CreatedDate
+import org.springframework.data.jpa.domain.support.AuditingEntityListener
+import java.time.LocalDateTime
+
+/**
+ * An attendance change that NOMIS and the case notes service have yet to hear about. [created] is set when the
+ * attendance was new, otherwise [previousAbsentReason] is what it was before the change, which decides whether an
+ * incentive level warning needs adding, removing or reinstating. [iepWarningSent] is set once that has been done, so
+ * that only NOMIS is updated again if the entry has to be retried.
+ */
+@Entity
+@Table(name = "ATTENDANCE_OUTBOX")
+@EntityListeners(AuditingEntityListener::class)
+data class AttendanceOutboxEntry(
+  @Id
+  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  val id: Long? = null,
+  val attendanceId: Long,
+  val created: Boolean,
+  @Enumerated(EnumType.STRING)
+  val previousAbsentReason: AbsentReason? = null,
+  var attempts: Int = 0,
+  var nextAttemptAt: LocalDateTime,
+  var lastError: String? = null,
+  var iepWarningSent: Boolean = false,
+  @CreatedDate
+  @Column(name = "CREATE_DATETIME", nullable = false)
+  var createDateTime: LocalDateTime? = null,
+  @CreatedBy
+  @Column(name = "CREATE_USER_ID")
+  var createUserId: String? = null,
+)
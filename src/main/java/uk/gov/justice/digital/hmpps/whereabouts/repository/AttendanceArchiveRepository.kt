@@ -0,0 +1,108 @@
+package uk.gov.justice.digital.hmpps.whereabouts.repository
+
+import org.springframework.data.jpa.repository.Modifying
+import org.springframework.data.jpa.repository.Query
+import org.springframework.data.repository.Repository
+import uk.gov.justice.digital.hmpps.whereabouts.model.ArchivedAttendance
+import uk.gov.justice.digital.hmpps.whereabouts.model.TimePeriod
+import java.time.LocalDate
+
+interface AttendanceArchiveRepository : Repository<ArchivedAttendance, Long> {
+
+  fun findByPrisonIdAndBookingIdInAndEventDateBetweenAndPeriodIn(
+    prisonId: String,
+    bookingIds: Set<Long>,
+    from: LocalDate,
+    to: LocalDate,
+    periods: Set<TimePeriod>,
+  ): Set<AttendanceView>
+
+  @Query(
+    """
+    select new uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceVersion(count(a), max(coalesce(a.modifyDateTime, a.createDateTime)), coalesce(sum(a.caseNoteId), 0L))
+    from ArchivedAttendance a
+    where a.prisonId = :prisonId and a.bookingId in :bookingIds and a.eventDate between :from and :to and a.period in :periods
+    """,
+  )
+  fun findVersionByBookings(prisonId: String, bookingIds: Set<Long>, from: LocalDate, to: LocalDate, periods: Set<TimePeriod>): AttendanceVersion
+
+  @Query(
+    """
+    select new uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceBucketCount(a.eventDate, a.period, a.absentReason, a.attended, count(a))
+    from ArchivedAttendance a
+    where a.prisonId = :prisonId
+    group by a.eventDate, a.period, a.absentReason, a.attended
+    """,
+  )
+  fun countByDayPeriodReasonAndAttended(prisonId: String): List<AttendanceBucketCount>
+
+  @Query(
+    """
+    select new uk.gov.justice.digital.hmpps.whereabouts.repository.BookingAttendanceCount(a.bookingId, count(a))
+    from ArchivedAttendance a
+    where a.prisonId = :prisonId and a.eventDate between :from and :to and a.period in :periods
+    group by a.bookingId
+    """,
+  )
+  fun countByBooking(prisonId: String, from: LocalDate, to: LocalDate, periods: Set<TimePeriod>): List<BookingAttendanceCount>
+
+  @Query("select distinct a.prisonId from ArchivedAttendance a")
+  fun findDistinctPrisonIds(): List<String>
+
+  /*
+   * Moving attendances in: the copies are made before the rows are deleted from the live tables, in the same
+   * transaction, attendances first as their changes refer to them.
+   */
+  @Modifying
+  @Query(
+    nativeQuery = true,
+    value = """
+    insert into OFFENDER_ATTENDANCE_ARCHIVE (ID, BOOKING_ID, EVENT_ID, EVENT_DATE, EVENT_LOCATION_ID, PERIOD, PRISON_ID, ATTENDED,
+      PAID, ABSENT_REASON, ABSENT_SUB_REASON, COMMENTS, CASE_NOTE_ID, CREATE_DATETIME, CREATE_USER_ID, MODIFY_DATETIME, MODIFY_USER_ID, VERSION)
+    select ID, BOOKING_ID, EVENT_ID, EVENT_DATE, EVENT_LOCATION_ID, PERIOD, PRISON_ID, ATTENDED,
+      PAID, ABSENT_REASON, ABSENT_SUB_REASON, COMMENTS, CASE_NOTE_ID, CREATE_DATETIME, CREATE_USER_ID, MODIFY_DATETIME, MODIFY_USER_ID, VERSION
+    from OFFENDER_ATTENDANCE
+    where ID in (:ids)
+    """,
+  )
+  fun copyAttendances(ids: Collection<Long>): Int
+
+  @Modifying
+  @Query(
+    nativeQuery = true,
+    value = """
+    insert into ATTENDANCE_CHANGES_ARCHIVE (ID, ATTENDANCE_ID, CHANGED_FROM, CHANGED_TO, CREATE_DATETIME, CREATE_USER_ID, MODIFY_DATETIME, MODIFY_USER_ID)
+    select ID, ATTENDANCE_ID, CHANGED_FROM, CHANGED_TO, CREATE_DATETIME, CREATE_USER_ID, MODIFY_DATETIME, MODIFY_USER_ID
+    from ATTENDANCE_CHANGES
+    where ATTENDANCE_ID in (:attendanceIds)
+    """,
+  )
+  fun copyChanges(attendanceIds: Collection<Long>): Int
+
+  /*
+   * Set-based removal of all of an offender's archived attendances, as for the live ones.
+   */
+  @Query(
+    """
+    select new uk.gov.justice.digital.hmpps.whereabouts.repository.PrisonAttendanceBucketCount(a.prisonId, a.eventDate, a.period, a.absentReason, a.attended, count(a))
+    from ArchivedAttendance a
+    where a.bookingId in :bookingIds
+    group by a.prisonId, a.eventDate, a.period, a.absentReason, a.attended
+    """,
+  )
+  fun countByBucketForBookings(bookingIds: Collection<Long>): List<PrisonAttendanceBucketCount>
+
+  @Modifying
+  @Query(
+    nativeQuery = true,
+    value = """
+    delete from ATTENDANCE_CHANGES_ARCHIVE
+    where ATTENDANCE_ID in (select ID from OFFENDER_ATTENDANCE_ARCHIVE where BOOKING_ID in (:bookingIds))
+    """,
+  )
+  fun deleteChangesByBookingIdIn(bookingIds: Collection<Long>): Int
+
+  @Modifying
+  @Query(nativeQuery = true, value = "delete from OFFENDER_ATTENDANCE_ARCHIVE where BOOKING_ID in (:bookingIds)")
+  fun deleteByBookingIdIn(bookingIds: Collection<Long>): Int
+}
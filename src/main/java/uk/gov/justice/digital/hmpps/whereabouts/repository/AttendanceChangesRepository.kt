@@ -1,5 +1,7 @@
 package uk.gov.justice.digital.hmpps.whereabouts.repository
 
+import org.springframework.data.domain.Pageable
+import org.springframework.data.jpa.repository.Modifying
 import org.springframework.data.jpa.repository.Query
 import org.springframework.data.repository.CrudRepository
 import uk.gov.justice.digital.hmpps.whereabouts.model.AttendanceChange
@@ -7,7 +9,7 @@ import java.time.LocalDateTime
 
 interface AttendanceChangesRepository : CrudRepository<AttendanceChange, Long> {
   @Query(
-    "select ac from AttendanceChange ac " +
+    "select ac from AttendanceChange ac join fetch ac.attendance " +
       "where ac.createDateTime between :fromDateTime and :toDateTime " +
       "and (:agencyId is null or ac.attendance.prisonId = :agencyId)",
   )
@@ -18,9 +20,40 @@ interface AttendanceChangesRepository : CrudRepository<AttendanceChange, Long> {
   ): Set<AttendanceChange>
 
   @Query(
-    "select ac from AttendanceChange ac " +
+    "select ac from AttendanceChange ac join fetch ac.attendance " +
       "where ac.createDateTime = :createDateTime " +
       "and (:agencyId is null or ac.attendance.prisonId = :agencyId)",
   )
   fun findAttendanceChangeByCreateDateTime(createDateTime: LocalDateTime, agencyId: String? = null): Set<AttendanceChange>
+
+  /**
+   * A page of the changes made in a time window that come after the given (createDateTime, id) key, in that
+   * order, with their attendances fetched in the same query. Keyset pagination rather than offset, so that a
+   * consumer polling a wide window pays the same for every page and can resume from the last change it saw.
+   */
+  @Query(
+    """
+    select ac from AttendanceChange ac join fetch ac.attendance a
+    where ac.createDateTime between :fromDateTime and :toDateTime
+      and (:agencyId is null or a.prisonId = :agencyId)
+      and (ac.createDateTime > :afterDateTime or (ac.createDateTime = :afterDateTime and ac.id > :afterId))
+    order by ac.createDateTime, ac.id
+    """,
+  )
+  fun findPageAfter(
+    fromDateTime: LocalDateTime,
+    toDateTime: LocalDateTime,
+    agencyId: String?,
+    afterDateTime: LocalDateTime,
+    afterId: Long,
+    pageable: Pageable,
+  ): List<AttendanceChange>
+
+  @Modifying
+  @Query("delete from AttendanceChange ac where ac.attendance.id in (select a.id from Attendance a where a.bookingId in :bookingIds)")
+  fun deleteByAttendanceBookingIdIn(bookingIds: Collection<Long>): Int
+
+  @Modifying
+  @Query("delete from AttendanceChange ac where ac.attendance.id in :attendanceIds")
+  fun deleteByAttendanceIdIn(attendanceIds: Collection<Long>): Int
 }
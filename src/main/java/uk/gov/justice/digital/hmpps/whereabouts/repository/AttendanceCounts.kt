@@ -0,0 +1,93 @@
+package uk.gov.justice.digital.hmpps.whereabouts.repository
+
+import org.springframework.util.DigestUtils
+import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentReason
+import uk.gov.justice.digital.hmpps.whereabouts.model.AttendanceDailyRollup.Companion.NO_ABSENT_REASON
+import uk.gov.justice.digital.hmpps.whereabouts.model.TimePeriod
+import java.time.LocalDate
+import java.time.LocalDateTime
+
+/**
+ * Number of attendance rows sharing an absent reason and attended flag, as grouped by the database.
+ */
+data class AttendanceReasonCount(
+  val absentReason: AbsentReason?,
+  val attended: Boolean?,
+  val count: Long,
+)
+
+/**
+ * Number of attendance rows recorded against a booking, as grouped by the database.
+ */
+data class BookingAttendanceCount(
+  val bookingId: Long,
+  val count: Long,
+)
+
+/**
+ * Number of attendance rows for a prison's day and period sharing an absent reason and attended flag, worked out from
+ * the attendance table itself to check the rollup against.
+ */
+data class AttendanceBucketCount(
+  val eventDate: LocalDate,
+  val period: TimePeriod,
+  val absentReason: AbsentReason?,
+  val attended: Boolean?,
+  val count: Long,
+)
+
+/**
+ * As [AttendanceBucketCount] but across prisons, for a set of bookings whose attendances are about to be deleted.
+ */
+data class PrisonAttendanceBucketCount(
+  val prisonId: String,
+  val eventDate: LocalDate,
+  val period: TimePeriod,
+  val absentReason: AbsentReason?,
+  val attended: Boolean?,
+  val count: Long,
+)
+
+/**
+ * Attendances summed from the daily rollup, where the absent reason is stored by name.
+ */
+data class RollupReasonCount(
+  val absentReason: String,
+  val attended: Boolean,
+  val count: Long,
+) {
+  fun toAttendanceReasonCount() = AttendanceReasonCount(
+    absentReason = if (absentReason == NO_ABSENT_REASON) null else AbsentReason.valueOf(absentReason),
+    attended = attended,
+    count = count,
+  )
+}
+
+/**
+ * Enough about a set of attendance rows to tell whether any has been added, removed or changed since it was last read.
+ * Inserts and updates move the latest change time and deletes lower the count. The case note id total catches a case
+ * note being linked, which deliberately leaves the modify time alone.
+ */
+data class AttendanceVersion(
+  val count: Long,
+  val lastChanged: LocalDateTime?,
+  val caseNoteIdTotal: Long,
+) {
+  /**
+   * A weak ETag for this version of the rows read for [scope]. It takes today's date too, as whether an attendance is
+   * shown as locked depends on how long ago it was changed.
+   */
+  fun eTag(today: LocalDate, vararg scope: Any?): String {
+    val version = listOf(count, lastChanged, caseNoteIdTotal, today, *scope).joinToString("|")
+    return "W/\"${DigestUtils.md5DigestAsHex(version.toByteArray())}\""
+  }
+
+  /**
+   * The version of this set of rows and [other] read together, such as live and archived attendances.
+   */
+  operator fun plus(other: AttendanceVersion) = AttendanceVersion(
+    count = count + other.count,
+    lastChanged = listOfNotNull(lastChanged, other.lastChanged).maxOrNull(),
+    caseNoteIdTotal = caseNoteIdTotal + other.caseNoteIdTotal,
+  )
+}
@@ -0,0 +1,69 @@
+package uk.gov.justice.digital.hmpps.whereabouts.repository
+
+import org.springframework.data.jpa.repository.Modifying
+import org.springframework.data.jpa.repository.Query
+import org.springframework.data.repository.CrudRepository
+import uk.gov.justice.digital.hmpps.whereabouts.model.AttendanceDailyRollup
+import uk.gov.justice.digital.hmpps.whereabouts.model.AttendanceDailyRollupPK
+import uk.gov.justice.digital.hmpps.whereabouts.model.TimePeriod
+import java.time.LocalDate
+
+interface AttendanceDailyRollupRepository : CrudRepository<AttendanceDailyRollup, AttendanceDailyRollupPK> {
+
+  /**
+   * Creates an empty bucket unless one exists. Run before [addToBucket] so that two transactions creating the
+   * same bucket wait on each other rather than one failing on the primary key.
+   */
+  @Modifying
+  @Query(
+    nativeQuery = true,
+    value = """
+    insert into ATTENDANCE_DAILY_ROLLUP (PRISON_ID, EVENT_DATE, PERIOD, ABSENT_REASON, ATTENDED, ATTENDANCE_COUNT)
+    values (:prisonId, :eventDate, :period, :absentReason, :attended, 0)
+    on conflict do nothing
+    """,
+  )
+  fun insertBucketIfAbsent(prisonId: String, eventDate: LocalDate, period: String, absentReason: String, attended: Boolean): Int
+
+  @Modifying
+  @Query(
+    """
+    update AttendanceDailyRollup r set r.attendanceCount = r.attendanceCount + :delta
+    where r.prisonId = :prisonId and r.eventDate = :eventDate and r.period = :period
+      and r.absentReason = :absentReason and r.attended = :attended
+    """,
+  )
+  fun addToBucket(prisonId: String, eventDate: LocalDate, period: TimePeriod, absentReason: String, attended: Boolean, delta: Int): Int
+
+  @Query(
+    """
+    select new uk.gov.justice.digital.hmpps.whereabouts.repository.RollupReasonCount(r.absentReason, r.attended, sum(r.attendanceCount))
+    from AttendanceDailyRollup r
+    where r.prisonId = :prisonId and r.eventDate between :from and :to and r.period in :periods
+    group by r.absentReason, r.attended
+    """,
+  )
+  fun sumByReasonAndAttended(prisonId: String, from: LocalDate, to: LocalDate, periods: Set<TimePeriod>): List<RollupReasonCount>
+
+  fun findByPrisonId(prisonId: String): List<AttendanceDailyRollup>
+
+  @Modifying
+  @Query("delete from AttendanceDailyRollup r where r.prisonId = :prisonId")
+  fun deleteByPrison(prisonId: String): Int
+
+  @Modifying
+  @Query(
+    nativeQuery = true,
+    value = """
+    insert into ATTENDANCE_DAILY_ROLLUP (PRISON_ID, EVENT_DATE, PERIOD, ABSENT_REASON, ATTENDED, ATTENDANCE_COUNT)
+    select PRISON_ID, EVENT_DATE, PERIOD, coalesce(ABSENT_REASON, 'NONE'), coalesce(ATTENDED, false), count(*)
+    from (
+      select PRISON_ID, EVENT_DATE, PERIOD, ABSENT_REASON, ATTENDED from OFFENDER_ATTENDANCE where PRISON_ID = :prisonId
+      union all
+      select PRISON_ID, EVENT_DATE, PERIOD, ABSENT_REASON, ATTENDED from OFFENDER_ATTENDANCE_ARCHIVE where PRISON_ID = :prisonId
+    ) a
+    group by PRISON_ID, EVENT_DATE, PERIOD, coalesce(ABSENT_REASON, 'NONE'), coalesce(ATTENDED, false)
+    """,
+  )
+  fun insertFromAttendances(prisonId: String): Int
+}
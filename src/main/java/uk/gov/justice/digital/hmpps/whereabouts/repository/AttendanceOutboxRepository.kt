@@ -0,0 +1,33 @@
+package uk.gov.justice.digital.hmpps.whereabouts.repository
+
+import jakarta.persistence.LockModeType
+import jakarta.persistence.QueryHint
+import org.springframework.data.domain.Pageable
+import org.springframework.data.jpa.repository.Lock
+import org.springframework.data.jpa.repository.Query
+import org.springframework.data.jpa.repository.QueryHints
+import org.springframework.data.repository.CrudRepository
+import uk.gov.justice.digital.hmpps.whereabouts.model.AttendanceOutboxEntry
+import java.time.LocalDateTime
+
+interface AttendanceOutboxRepository : CrudRepository<AttendanceOutboxEntry, Long> {
+
+  @Query(
+    """
+    select e.attendanceId from AttendanceOutboxEntry e
+    where e.nextAttemptAt <= :now and e.attempts < :maxAttempts
+    group by e.attendanceId
+    order by min(e.id)
+    """,
+  )
+  fun findAttendanceIdsDue(now: LocalDateTime, maxAttempts: Int, pageable: Pageable): List<Long>
+
+  /**
+   * Locks the entries for an attendance while they are claimed. Entries another instance has locked are skipped
+   * rather than waited for, as that instance is about to claim them.
+   */
+  @Lock(LockModeType.PESSIMISTIC_WRITE)
+  @QueryHints(QueryHint(name = "jakarta.persistence.lock.timeout", value = "-2"))
+  @Query("select e from AttendanceOutboxEntry e where e.attendanceId = :attendanceId order by e.id")
+  fun findByAttendanceIdForUpdate(attendanceId: Long): List<AttendanceOutboxEntry>
+}
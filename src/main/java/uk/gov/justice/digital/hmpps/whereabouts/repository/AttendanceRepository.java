@@ -1,28 +1,43 @@
 package uk.gov.justice.digital.hmpps.whereabouts.repository;
 
-import org.springframework.data.repository.CrudRepository;
+import jakarta.persistence.QueryHint;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentReason;
 import uk.gov.justice.digital.hmpps.whereabouts.model.Attendance;
 import uk.gov.justice.digital.hmpps.whereabouts.model.TimePeriod;
 
 import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
 import java.util.Set;
+import java.util.stream.Stream;
 
-public interface AttendanceRepository extends CrudRepository<Attendance, Long> {
-    Set<Attendance> findByPrisonIdAndEventLocationIdAndEventDateAndPeriod(String prisonId, Long eventLocationId,
+import static org.hibernate.jpa.HibernateHints.HINT_FETCH_SIZE;
+import static org.hibernate.jpa.HibernateHints.HINT_READ_ONLY;
+
+public interface AttendanceRepository extends JpaRepository<Attendance, Long> {
+    /*
+     * Queries returning AttendanceView only feed responses, so select straight into the view instead of loading entities.
+     */
+    Set<AttendanceView> findByPrisonIdAndEventLocationIdAndEventDateAndPeriod(String prisonId, Long eventLocationId,
                                                                           LocalDate date, TimePeriod period);
 
-    Set<Attendance> findByPrisonIdAndBookingIdInAndEventDateAndPeriod(String prisonId, Set<Long> bookingIds, LocalDate date,
+    Set<AttendanceView> findByPrisonIdAndBookingIdInAndEventDateAndPeriod(String prisonId, Set<Long> bookingIds, LocalDate date,
                                                                       TimePeriod period);
 
-    Set<Attendance> findByPrisonIdAndBookingIdAndEventIdAndEventDateAndPeriod(String prisonId, Long bookingId, Long eventId, LocalDate date,
-                                                                              TimePeriod period);
+    Optional<Attendance> findByIdempotencyKey(String idempotencyKey);
 
-    Set<Attendance> findByPrisonIdAndBookingIdInAndEventDateBetweenAndPeriodIn(String prisonId, Set<Long> bookingIds, LocalDate from, LocalDate to,
+    Set<AttendanceView> findByPrisonIdAndBookingIdInAndEventDateBetweenAndPeriodIn(String prisonId, Set<Long> bookingIds, LocalDate from, LocalDate to,
                                                                                Set<TimePeriod> periods);
 
-    Set<Attendance> findByPrisonIdAndEventDateAndPeriodAndAbsentReasonNotNull(String prisonId, LocalDate date, TimePeriod period);
+    Set<AttendanceView> findByPrisonIdAndEventDateAndPeriodAndAbsentReasonNotNull(String prisonId, LocalDate date, TimePeriod period);
 
     Set<Attendance> findByPrisonIdAndPeriodAndEventDateBetween(String prisonId, TimePeriod period, LocalDate from, LocalDate to);
 
@@ -33,4 +48,96 @@ public interface AttendanceRepository extends CrudRepository<Attendance, Long> {
     Set<Attendance> findByBookingId(long bookingId);
 
     List<Attendance> findByBookingIdInAndEventDateBetween(Set<Long> bookingIds, LocalDate from, LocalDate to);
+
+    /*
+     * Streaming variants for exports. They must be consumed inside a transaction, which lets the driver read the
+     * rows through a forward-only cursor a fetch at a time instead of loading the whole result.
+     */
+    @QueryHints({@QueryHint(name = HINT_FETCH_SIZE, value = "500"), @QueryHint(name = HINT_READ_ONLY, value = "true")})
+    Stream<Attendance> streamByPrisonIdAndBookingIdInAndEventDateBetweenAndPeriodInOrderById(String prisonId, Set<Long> bookingIds, LocalDate from, LocalDate to,
+                                                                                            Set<TimePeriod> periods);
+
+    @QueryHints({@QueryHint(name = HINT_FETCH_SIZE, value = "500"), @QueryHint(name = HINT_READ_ONLY, value = "true")})
+    Stream<Attendance> streamByPrisonIdAndEventDateBetweenAndPeriodInAndAbsentReasonOrderByEventIdAscIdAsc(String prisonId, LocalDate from, LocalDate to,
+                                                                                                          Set<TimePeriod> periods, AbsentReason reason);
+
+    /*
+     * Aggregates for attendance statistics and the daily rollup, so a long date range costs one row per group rather
+     * than one per attendance.
+     */
+    @Query("""
+        select new uk.gov.justice.digital.hmpps.whereabouts.repository.BookingAttendanceCount(a.bookingId, count(a))
+        from Attendance a
+        where a.prisonId = :prisonId and a.eventDate between :from and :to and a.period in :periods
+        group by a.bookingId
+        """)
+    List<BookingAttendanceCount> countByBooking(@Param("prisonId") String prisonId, @Param("from") LocalDate from, @Param("to") LocalDate to,
+                                                @Param("periods") Set<TimePeriod> periods);
+
+    @Query("""
+        select new uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceBucketCount(a.eventDate, a.period, a.absentReason, a.attended, count(a))
+        from Attendance a
+        where a.prisonId = :prisonId
+        group by a.eventDate, a.period, a.absentReason, a.attended
+        """)
+    List<AttendanceBucketCount> countByDayPeriodReasonAndAttended(@Param("prisonId") String prisonId);
+
+    /*
+     * Versions of the sets of attendances read by the queries above, so an unchanged set can be answered with a 304
+     * without being loaded.
+     */
+    @Query("""
+        select new uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceVersion(count(a), max(coalesce(a.modifyDateTime, a.createDateTime)), coalesce(sum(a.caseNoteId), 0L))
+        from Attendance a
+        where a.prisonId = :prisonId and a.eventLocationId = :eventLocationId and a.eventDate = :date and a.period = :period
+        """)
+    AttendanceVersion findVersionByEventLocation(@Param("prisonId") String prisonId, @Param("eventLocationId") Long eventLocationId,
+                                                 @Param("date") LocalDate date, @Param("period") TimePeriod period);
+
+    @Query("""
+        select new uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceVersion(count(a), max(coalesce(a.modifyDateTime, a.createDateTime)), coalesce(sum(a.caseNoteId), 0L))
+        from Attendance a
+        where a.prisonId = :prisonId and a.bookingId in :bookingIds and a.eventDate between :from and :to and a.period in :periods
+        """)
+    AttendanceVersion findVersionByBookings(@Param("prisonId") String prisonId, @Param("bookingIds") Set<Long> bookingIds, @Param("from") LocalDate from,
+                                            @Param("to") LocalDate to, @Param("periods") Set<TimePeriod> periods);
+
+    @Query("select distinct a.prisonId from Attendance a")
+    List<String> findDistinctPrisonIds();
+
+    /*
+     * Set-based removal of all of an offender's attendances, with the rollup buckets they counted towards read first.
+     * The attendance changes referring to them must be deleted before the attendances.
+     */
+    @Query("""
+        select new uk.gov.justice.digital.hmpps.whereabouts.repository.PrisonAttendanceBucketCount(a.prisonId, a.eventDate, a.period, a.absentReason, a.attended, count(a))
+        from Attendance a
+        where a.bookingId in :bookingIds
+        group by a.prisonId, a.eventDate, a.period, a.absentReason, a.attended
+        """)
+    List<PrisonAttendanceBucketCount> countByBucketForBookings(@Param("bookingIds") Collection<Long> bookingIds);
+
+    @Modifying
+    @Query("delete from Attendance a where a.bookingId in :bookingIds")
+    int deleteByBookingIdIn(@Param("bookingIds") Collection<Long> bookingIds);
+
+    /*
+     * Attendances ready to be archived: for days before the given date, locked since their last change, and with
+     * nothing left in the outbox.
+     */
+    @Query("""
+        select a.id from Attendance a
+        where a.eventDate < :before and coalesce(a.modifyDateTime, a.createDateTime) < :changedBefore
+          and not exists (select e.id from AttendanceOutboxEntry e where e.attendanceId = a.id)
+        order by a.id
+        """)
+    List<Long> findIdsToArchive(@Param("before") LocalDate before, @Param("changedBefore") LocalDateTime changedBefore, Pageable pageable);
+
+    /*
+     * Sets only the case note id, so that recording the warning raised for a change does not overwrite, or count as,
+     * a later change by a user.
+     */
+    @Modifying
+    @Query("update Attendance a set a.caseNoteId = :caseNoteId where a.id = :id")
+    int updateCaseNoteId(@Param("id") Long id, @Param("caseNoteId") Long caseNoteId);
 }
@@ -0,0 +1,57 @@
+package uk.gov.justice.digital.hmpps.whereabouts.repository
+
+import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentReason
+import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentSubReason
+import uk.gov.justice.digital.hmpps.whereabouts.model.Attendance
+import uk.gov.justice.digital.hmpps.whereabouts.model.TimePeriod
+import java.time.LocalDate
+import java.time.LocalDateTime
+
+/**
+ * Read-only copy of an attendance row, for queries whose results are only ever turned into responses. Spring Data
+ * selects straight into the constructor, so no managed entity or dirty-checking snapshot is created per row.
+ * Parameter names must match the Attendance properties they are read from.
+ */
+data class AttendanceView(
+  val id: Long?,
+  val bookingId: Long?,
+  val eventId: Long?,
+  val eventLocationId: Long?,
+  val eventDate: LocalDate?,
+  val period: TimePeriod?,
+  val prisonId: String?,
+  val paid: Boolean?,
+  val attended: Boolean?,
+  val absentReason: AbsentReason?,
+  val absentSubReason: AbsentSubReason?,
+  val comments: String?,
+  val caseNoteId: Long?,
+  val createDateTime: LocalDateTime?,
+  val createUserId: String?,
+  val modifyDateTime: LocalDateTime?,
+  val modifyUserId: String?,
+  val version: Long?,
+) {
+  companion object {
+    fun from(attendance: Attendance) = AttendanceView(
+      id = attendance.id,
+      bookingId = attendance.bookingId,
+      eventId = attendance.eventId,
+      eventLocationId = attendance.eventLocationId,
+      eventDate = attendance.eventDate,
+      period = attendance.period,
+      prisonId = attendance.prisonId,
+      paid = attendance.paid,
+      attended = attendance.attended,
+      absentReason = attendance.absentReason,
+      absentSubReason = attendance.absentSubReason,
+      comments = attendance.comments,
+      caseNoteId = attendance.caseNoteId,
+      createDateTime = attendance.createDateTime,
+      createUserId = attendance.createUserId,
+      modifyDateTime = attendance.modifyDateTime,
+      modifyUserId = attendance.modifyUserId,
+      version = attendance.version,
+    )
+  }
+}
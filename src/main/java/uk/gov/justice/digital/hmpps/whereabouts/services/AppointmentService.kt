@@ -29,6 +29,7 @@ import java.time.LocalDateTime
 @Service
 class AppointmentService(
   private val prisonApiService: PrisonApiService,
+  private val offenderNoCache: OffenderNoCache,
   private val recurringAppointmentRepository: RecurringAppointmentRepository,
   private val telemetryClient: TelemetryClient,
 ) {
@@ -58,6 +59,7 @@ class AppointmentService(
 
     val offenderNos = appointmentsFromPrisonApi.map { a -> a.offenderNo }.toSet()
     val offenderBookingDetails = prisonApiService.getOffenderDetailsFromOffenderNos(offenderNos, true)
+    offenderNoCache.record(offenderBookingDetails)
     val offenderLocationDescriptionByOffenderNo =
       offenderBookingDetails.associate { b -> b.offenderNo to b.assignedLivingUnitDesc }
 
@@ -70,7 +72,7 @@ class AppointmentService(
       ?: throw EntityNotFoundException("Appointment $appointmentId does not exist")
 
     val offenderNo = try {
-      prisonApiService.getOffenderNoFromBookingId(mainAppointmentDetails.bookingId)
+      offenderNoCache.getOffenderNo(mainAppointmentDetails.bookingId)
     } catch (e: Exception) {
       null
     }
@@ -0,0 +1,84 @@
+package uk.gov.justice.digital.hmpps.whereabouts.services
+
+import com.microsoft.applicationinsights.TelemetryClient
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.data.domain.PageRequest
+import org.springframework.scheduling.annotation.Scheduled
+import org.springframework.stereotype.Component
+import org.springframework.transaction.PlatformTransactionManager
+import org.springframework.transaction.support.TransactionTemplate
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceArchiveRepository
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceChangesRepository
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceRepository
+import java.time.Clock
+import java.time.LocalDate
+import java.time.LocalDateTime
+import java.time.YearMonth
+
+/**
+ * Moves attendances, with their changes, for months more than [keepMonths] ago out of the live tables and into the
+ * archive, so that the live tables and their indexes only hold the weeks still being worked on. Only whole months
+ * are moved, and only attendances that can no longer be changed: locked since their last change and with nothing
+ * waiting in the outbox. The daily rollup still counts them.
+ *
+ * Each batch is copied and deleted in its own transaction. Two instances archiving at once cannot both move an
+ * attendance, as the second copy fails on the archive's primary key and that batch is left for the next run.
+ */
+@Component
+class AttendanceArchiver(
+  private val attendanceRepository: AttendanceRepository,
+  private val attendanceChangesRepository: AttendanceChangesRepository,
+  private val attendanceArchiveRepository: AttendanceArchiveRepository,
+  private val telemetryClient: TelemetryClient,
+  private val clock: Clock,
+  transactionManager: PlatformTransactionManager,
+  @Value("\${attendance-archive.keep-months:13}") private val keepMonths: Long,
+  @Value("\${attendance-archive.batch-size:1000}") private val batchSize: Int,
+) {
+  private companion object {
+    private val log: Logger = LoggerFactory.getLogger(this::class.java)
+
+    // attendances are locked for changes a week after they were last changed
+    private const val LOCKED_AFTER_DAYS = 7L
+  }
+
+  private val transactionTemplate = TransactionTemplate(transactionManager)
+
+  @Scheduled(cron = "\${attendance-archive.cron:0 30 2 * * *}")
+  fun archiveScheduled() {
+    archive()
+  }
+
+  /**
+   * Returns the number of attendances archived.
+   */
+  fun archive(): Int {
+    val before = YearMonth.now(clock).minusMonths(keepMonths).atDay(1)
+    val changedBefore = LocalDateTime.now(clock).minusDays(LOCKED_AFTER_DAYS)
+
+    var archived = 0
+    do {
+      val batch = transactionTemplate.execute { archiveBatch(before, changedBefore) }!!
+      archived += batch
+    } while (batch == batchSize)
+
+    if (archived > 0) {
+      log.info("Archived {} attendances for days before {}", archived, before)
+      telemetryClient.trackEvent("AttendancesArchived", mapOf("before" to before.toString(), "count" to archived.toString()), null)
+    }
+    return archived
+  }
+
+  private fun archiveBatch(before: LocalDate, changedBefore: LocalDateTime): Int {
+    val ids = attendanceRepository.findIdsToArchive(before, changedBefore, PageRequest.of(0, batchSize))
+    if (ids.isEmpty()) return 0
+
+    attendanceArchiveRepository.copyAttendances(ids)
+    attendanceArchiveRepository.copyChanges(ids)
+    attendanceChangesRepository.deleteByAttendanceIdIn(ids)
+    attendanceRepository.deleteAllByIdInBatch(ids)
+    return ids.size
+  }
+}
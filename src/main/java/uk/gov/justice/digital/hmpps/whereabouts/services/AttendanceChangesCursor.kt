@@ -0,0 +1,36 @@
+package uk.gov.justice.digital.hmpps.whereabouts.services
+
+import java.time.LocalDateTime
+import java.time.format.DateTimeParseException
+import java.util.Base64
+
+/**
+ * Position in the attendance changes feed, handed to callers as an opaque token. It holds the key of the last
+ * change returned and, when the caller gave one, the end of the window, so that it is kept to for every page. Without
+ * one each page reads up to just short of the time it is asked for, so a kept cursor goes on to find later changes.
+ */
+data class AttendanceChangesCursor(
+  val afterDateTime: LocalDateTime,
+  val afterId: Long,
+  val toDateTime: LocalDateTime?,
+) {
+  fun encode(): String = Base64.getUrlEncoder().withoutPadding()
+    .encodeToString("$afterDateTime|$afterId|${toDateTime ?: ""}".toByteArray())
+
+  companion object {
+    fun decode(token: String): AttendanceChangesCursor = try {
+      val (afterDateTime, afterId, toDateTime) = String(Base64.getUrlDecoder().decode(token)).split("|")
+      AttendanceChangesCursor(
+        LocalDateTime.parse(afterDateTime),
+        afterId.toLong(),
+        toDateTime.takeIf { it.isNotEmpty() }?.let { LocalDateTime.parse(it) },
+      )
+    } catch (e: IllegalArgumentException) {
+      throw ValidationException("Invalid cursor")
+    } catch (e: IndexOutOfBoundsException) {
+      throw ValidationException("Invalid cursor")
+    } catch (e: DateTimeParseException) {
+      throw ValidationException("Invalid cursor")
+    }
+  }
+}
@@ -4,4 +4,6 @@ import jakarta.persistence.EntityNotFoundException
 
 class AttendanceExists : RuntimeException("Attendance already exists")
 class AttendanceLocked : RuntimeException("Attendance record is locked")
+class AttendanceConflict : RuntimeException("Attendance has been changed since it was read")
+class IdempotencyKeyReused : RuntimeException("Idempotency key has already been used for a different attendance")
 class AttendanceNotFound : EntityNotFoundException()
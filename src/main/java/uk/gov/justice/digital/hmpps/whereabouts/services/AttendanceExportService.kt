@@ -0,0 +1,141 @@
+package uk.gov.justice.digital.hmpps.whereabouts.services
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.fasterxml.jackson.databind.ObjectWriter
+import com.fasterxml.jackson.databind.SerializationFeature
+import com.fasterxml.jackson.dataformat.csv.CsvMapper
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule
+import com.fasterxml.jackson.module.kotlin.registerKotlinModule
+import jakarta.persistence.EntityManager
+import org.springframework.http.MediaType
+import org.springframework.stereotype.Service
+import org.springframework.transaction.annotation.Transactional
+import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AbsenceDto
+import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendanceDto
+import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentReason
+import uk.gov.justice.digital.hmpps.whereabouts.model.Attendance
+import uk.gov.justice.digital.hmpps.whereabouts.model.TimePeriod
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceRepository
+import java.io.OutputStream
+import java.time.LocalDate
+
+enum class ExportFormat(val mediaType: MediaType, val extension: String) {
+  NDJSON(MediaType.APPLICATION_NDJSON, "ndjson"),
+  CSV(MediaType("text", "csv"), "csv"),
+}
+
+/**
+ * Writes attendance over a date range as it is read from the database, one row per line, so that large
+ * reporting pulls do not hold the whole result (or the JSON array of it) in memory.
+ */
+@Service
+class AttendanceExportService(
+  private val attendanceRepository: AttendanceRepository,
+  private val prisonApiService: PrisonApiService,
+  private val attendanceService: AttendanceService,
+  private val entityManager: EntityManager,
+  objectMapper: ObjectMapper,
+) {
+  companion object {
+    // distinct event ids sent to the Prison API in one call
+    const val EVENT_CHUNK_SIZE = 500
+
+    private val csvMapper = CsvMapper().apply {
+      registerModule(JavaTimeModule())
+      registerKotlinModule()
+      disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+    }
+  }
+
+  private val jsonWriter = objectMapper.writer()
+
+  @Transactional(readOnly = true)
+  fun exportAttendanceForBookingsOverDateRange(
+    prisonId: String,
+    bookings: Set<Long>,
+    fromDate: LocalDate,
+    toDate: LocalDate?,
+    period: TimePeriod?,
+    format: ExportFormat,
+    out: OutputStream,
+  ) {
+    val periods = if (period == null) setOf(TimePeriod.AM, TimePeriod.PM) else setOf(period)
+
+    rowWriter(format, AttendanceDto::class.java, out).use { writer ->
+      attendanceRepository
+        .streamByPrisonIdAndBookingIdInAndEventDateBetweenAndPeriodInOrderById(prisonId, bookings, fromDate, toDate ?: fromDate, periods)
+        .use { attendances ->
+          attendances.forEach {
+            writer.write(attendanceService.toAttendanceDto(it))
+            entityManager.detach(it)
+          }
+        }
+    }
+  }
+
+  /**
+   * Attendances arrive ordered by event id, and are sent to the Prison API for the offender details a chunk of
+   * events at a time, so each chunk is written and dropped before the next is read.
+   */
+  @Transactional(readOnly = true)
+  fun exportAbsencesForReason(
+    prisonId: String,
+    absentReason: AbsentReason,
+    fromDate: LocalDate,
+    toDate: LocalDate?,
+    period: TimePeriod?,
+    format: ExportFormat,
+    out: OutputStream,
+  ) {
+    val periods = period?.let { setOf(it) } ?: setOf(TimePeriod.PM, TimePeriod.AM)
+
+    rowWriter(format, AbsenceDto::class.java, out).use { writer ->
+      val chunk = LinkedHashMap<Long, Attendance>()
+      val writeChunk = {
+        prisonApiService.getScheduleActivityOffenderData(prisonId, chunk.keys).forEach {
+          writer.write(attendanceService.toAbsenceDto2(it, chunk[it.eventId]!!))
+        }
+        chunk.values.forEach(entityManager::detach)
+        chunk.clear()
+      }
+
+      attendanceRepository
+        .streamByPrisonIdAndEventDateBetweenAndPeriodInAndAbsentReasonOrderByEventIdAscIdAsc(prisonId, fromDate, toDate ?: fromDate, periods, absentReason)
+        .use { attendances ->
+          attendances.forEach {
+            if (chunk.size >= EVENT_CHUNK_SIZE && !chunk.containsKey(it.eventId)) writeChunk()
+            chunk[it.eventId] = it
+          }
+        }
+      if (chunk.isNotEmpty()) writeChunk()
+    }
+  }
+
+  private fun rowWriter(format: ExportFormat, type: Class<*>, out: OutputStream): RowWriter = when (format) {
+    ExportFormat.NDJSON -> NdjsonRowWriter(jsonWriter, out)
+    ExportFormat.CSV -> CsvRowWriter(csvMapper.writer(csvMapper.schemaFor(type).withHeader()), out)
+  }
+
+  private interface RowWriter : AutoCloseable {
+    fun write(row: Any)
+  }
+
+  private class NdjsonRowWriter(private val writer: ObjectWriter, private val out: OutputStream) : RowWriter {
+    override fun write(row: Any) {
+      out.write(writer.writeValueAsBytes(row))
+      out.write('\n'.code)
+    }
+
+    override fun close() = out.flush()
+  }
+
+  private class CsvRowWriter(writer: ObjectWriter, out: OutputStream) : RowWriter {
+    private val sequenceWriter = writer.writeValues(out)
+
+    override fun write(row: Any) {
+      sequenceWriter.write(row)
+    }
+
+    override fun close() = sequenceWriter.flush()
+  }
+}
@@ -0,0 +1,58 @@
+package uk.gov.justice.digital.hmpps.whereabouts.services
+
+import org.springframework.context.ApplicationEventPublisher
+import org.springframework.stereotype.Component
+import org.springframework.transaction.annotation.Propagation
+import org.springframework.transaction.annotation.Transactional
+import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentReason
+import uk.gov.justice.digital.hmpps.whereabouts.model.Attendance
+import uk.gov.justice.digital.hmpps.whereabouts.model.AttendanceOutboxEntry
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceOutboxRepository
+import java.time.Clock
+import java.time.LocalDateTime
+
+data class AttendanceOutboxEntryAdded(val attendanceId: Long)
+
+/**
+ * Records attendance changes for [AttendanceOutboxDispatcher] to send on to NOMIS and the case notes service. The
+ * entry is written in the caller's transaction, so it exists exactly when the change does.
+ */
+@Component
+class AttendanceOutbox(
+  private val attendanceOutboxRepository: AttendanceOutboxRepository,
+  private val eventPublisher: ApplicationEventPublisher,
+  private val clock: Clock,
+) {
+  @Transactional(propagation = Propagation.MANDATORY)
+  fun recorded(attendance: Attendance) = add(AttendanceOutboxEntry(attendanceId = attendance.id, created = true, nextAttemptAt = LocalDateTime.now(clock)))
+
+  @Transactional(propagation = Propagation.MANDATORY)
+  fun changed(attendance: Attendance, previousAbsentReason: AbsentReason?) = add(
+    AttendanceOutboxEntry(
+      attendanceId = attendance.id,
+      created = false,
+      previousAbsentReason = previousAbsentReason,
+      nextAttemptAt = LocalDateTime.now(clock),
+    ),
+  )
+
+  /**
+   * For an attendance NOMIS was sent an outcome for that was not then stored: puts NOMIS back in line with the
+   * attendance as it is, leaving its incentive level warning as it is.
+   */
+  @Transactional(propagation = Propagation.MANDATORY)
+  fun resend(attendance: Attendance) = add(
+    AttendanceOutboxEntry(
+      attendanceId = attendance.id,
+      created = false,
+      previousAbsentReason = attendance.absentReason,
+      nextAttemptAt = LocalDateTime.now(clock),
+      iepWarningSent = true,
+    ),
+  )
+
+  private fun add(entry: AttendanceOutboxEntry) {
+    attendanceOutboxRepository.save(entry)
+    eventPublisher.publishEvent(AttendanceOutboxEntryAdded(entry.attendanceId))
+  }
+}
@@ -0,0 +1,199 @@
+package uk.gov.justice.digital.hmpps.whereabouts.services
+
+import com.microsoft.applicationinsights.TelemetryClient
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.data.domain.PageRequest
+import org.springframework.scheduling.annotation.Async
+import org.springframework.scheduling.annotation.Scheduled
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken
+import org.springframework.security.core.context.SecurityContextHolder
+import org.springframework.stereotype.Component
+import org.springframework.transaction.PlatformTransactionManager
+import org.springframework.transaction.TransactionDefinition
+import org.springframework.transaction.event.TransactionPhase
+import org.springframework.transaction.event.TransactionalEventListener
+import org.springframework.transaction.support.TransactionTemplate
+import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.UpdateAttendanceDto
+import uk.gov.justice.digital.hmpps.whereabouts.model.Attendance
+import uk.gov.justice.digital.hmpps.whereabouts.model.AttendanceOutboxEntry
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceOutboxRepository
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceRepository
+import java.time.Clock
+import java.time.Duration
+import java.time.LocalDateTime
+import java.util.Optional
+
+/**
+ * Sends the changes in the attendance outbox on to NOMIS and the case notes service, as the user who made them.
+ *
+ * An attendance is dispatched straight after the transaction that changed it commits, and any left over (because a
+ * downstream service failed, or the instance stopped) are picked up by a poll. All the entries for an attendance go
+ * together, as one update of NOMIS to its current state and one incentive level warning decision from the state
+ * before the earliest entry. The warning decision is recorded against the entries, in its own transaction, as soon as
+ * it has been acted on, so a retry after that only updates NOMIS again, which is safe to repeat. Entries are claimed
+ * for [lease] before any calls are made so that other instances leave them alone; a failure puts them back with an
+ * exponential backoff until [maxAttempts].
+ */
+@Component
+class AttendanceOutboxDispatcher(
+  private val attendanceOutboxRepository: AttendanceOutboxRepository,
+  private val attendanceRepository: AttendanceRepository,
+  private val prisonApiService: PrisonApiService,
+  private val iepWarningService: IEPWarningService,
+  private val nomisEventOutcomeMapper: NomisEventOutcomeMapper,
+  private val telemetryClient: TelemetryClient,
+  private val clock: Clock,
+  transactionManager: PlatformTransactionManager,
+  @Value("\${attendance-outbox.batch-size:50}") private val batchSize: Int,
+  @Value("\${attendance-outbox.max-attempts:10}") private val maxAttempts: Int,
+  @Value("\${attendance-outbox.retry-backoff:30s}") private val retryBackoff: Duration,
+  @Value("\${attendance-outbox.lease:5m}") private val lease: Duration,
+) {
+  private companion object {
+    private val log: Logger = LoggerFactory.getLogger(this::class.java)
+  }
+
+  // a new transaction each time, as dispatch can run in the after-commit phase of the transaction that added the entry
+  private val transactionTemplate = TransactionTemplate(transactionManager).apply {
+    propagationBehavior = TransactionDefinition.PROPAGATION_REQUIRES_NEW
+  }
+
+  @Async("attendanceOutboxExecutor")
+  @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT)
+  fun onEntryAdded(event: AttendanceOutboxEntryAdded) {
+    dispatch(event.attendanceId)
+  }
+
+  @Scheduled(fixedDelayString = "\${attendance-outbox.poll-interval:30s}", initialDelayString = "\${attendance-outbox.poll-interval:30s}")
+  fun dispatchDue() {
+    val attendanceIds = transactionTemplate.execute {
+      attendanceOutboxRepository.findAttendanceIdsDue(now(), maxAttempts, PageRequest.of(0, batchSize))
+    }!!
+    if (attendanceIds.isEmpty()) return
+
+    val dispatched = attendanceIds.count { dispatch(it) }
+    log.info("Dispatched {} of {} attendances from the outbox", dispatched, attendanceIds.size)
+  }
+
+  /**
+   * Returns true if the attendance's entries were claimed and sent on.
+   */
+  fun dispatch(attendanceId: Long): Boolean {
+    val entries = claim(attendanceId) ?: return false
+
+    return try {
+      asUser(entries.first().createUserId) { deliver(attendanceId, entries) }
+      true
+    } catch (e: Exception) {
+      log.warn("Failed to send attendance {} to NOMIS, attempt {}", attendanceId, entries.maxOf { it.attempts } + 1, e)
+      retryLater(entries, e)
+      false
+    }
+  }
+
+  private fun claim(attendanceId: Long): List<AttendanceOutboxEntry>? = transactionTemplate.execute {
+    val now = now()
+    val entries = attendanceOutboxRepository.findByAttendanceIdForUpdate(attendanceId)
+    // an entry in the future is either being sent by someone else or backing off, and its changes go with it
+    if (entries.isEmpty() || entries.any { it.nextAttemptAt.isAfter(now) }) return@execute null
+
+    entries.forEach { it.nextAttemptAt = now.plus(lease) }
+    entries
+  }
+
+  private fun deliver(attendanceId: Long, entries: List<AttendanceOutboxEntry>) {
+    val attendance = transactionTemplate.execute { attendanceRepository.findById(attendanceId).orElse(null) }
+    if (attendance == null) {
+      log.info("Attendance {} no longer exists, dropping {} outbox entries", attendanceId, entries.size)
+      transactionTemplate.executeWithoutResult { attendanceOutboxRepository.deleteAllById(entries.mapNotNull { it.id }) }
+      return
+    }
+
+    postNomisAttendance(attendance)
+
+    // entries already sent had their warning dealt with by an earlier attempt, and the rest go from where that left off
+    val warningPending = entries.filterNot { it.iepWarningSent }
+    if (warningPending.isNotEmpty()) {
+      val caseNoteId = postIEPWarning(attendance, warningPending)
+
+      // committed on its own, straight away, so that a failure from here on does not post the warning again
+      transactionTemplate.executeWithoutResult {
+        caseNoteId.ifPresent { attendanceRepository.updateCaseNoteId(attendanceId, it) }
+        attendanceOutboxRepository.findAllById(warningPending.mapNotNull { it.id }).forEach { it.iepWarningSent = true }
+      }
+    }
+
+    transactionTemplate.executeWithoutResult { attendanceOutboxRepository.deleteAllById(entries.mapNotNull { it.id }) }
+  }
+
+  private fun postNomisAttendance(attendance: Attendance) {
+    val eventOutcome = nomisEventOutcomeMapper.getEventOutcome(
+      reason = attendance.absentReason,
+      subReason = attendance.absentSubReason,
+      attended = attendance.attended,
+      paid = attendance.paid,
+      comment = attendance.comments,
+    )
+
+    log.info("Updating attendance on NOMIS {} {}", attendance.toBuilder().comments(null).build(), eventOutcome)
+    prisonApiService.putAttendance(attendance.bookingId, attendance.eventId, eventOutcome)
+  }
+
+  private fun postIEPWarning(attendance: Attendance, entries: List<AttendanceOutboxEntry>): Optional<Long> {
+    if (entries.any { it.created }) {
+      return iepWarningService.postIEPWarningIfRequired(
+        bookingId = attendance.bookingId,
+        caseNoteId = attendance.caseNoteId,
+        reason = attendance.absentReason,
+        subReason = attendance.absentSubReason,
+        text = attendance.comments,
+        eventDate = attendance.eventDate,
+      )
+    }
+
+    val beforeChanges = attendance.toBuilder().absentReason(entries.first().previousAbsentReason).build()
+    return iepWarningService.handleIEPWarningScenarios(
+      beforeChanges,
+      UpdateAttendanceDto(
+        attended = attendance.attended == true,
+        paid = attendance.paid == true,
+        absentReason = attendance.absentReason,
+        absentSubReason = attendance.absentSubReason,
+        comments = attendance.comments,
+      ),
+    )
+  }
+
+  private fun retryLater(entries: List<AttendanceOutboxEntry>, e: Exception) = transactionTemplate.executeWithoutResult {
+    val now = now()
+    val retried = attendanceOutboxRepository.findAllById(entries.mapNotNull { it.id }).toList().onEach {
+      it.attempts += 1
+      it.nextAttemptAt = now.plus(retryBackoff.multipliedBy(1L shl (it.attempts - 1).coerceAtMost(6)))
+      it.lastError = e.message?.take(255)
+    }
+
+    if (retried.isNotEmpty() && retried.all { it.attempts >= maxAttempts }) {
+      val attendanceId = retried.first().attendanceId
+      log.error("Giving up sending attendance {} to NOMIS after {} attempts", attendanceId, maxAttempts)
+      telemetryClient.trackEvent("AttendanceOutboxGaveUp", mapOf("attendanceId" to attendanceId.toString(), "error" to e.message), null)
+    }
+  }
+
+  private fun <T> asUser(username: String?, block: () -> T): T {
+    val callerContext = SecurityContextHolder.getContext()
+    SecurityContextHolder.setContext(
+      SecurityContextHolder.createEmptyContext().apply {
+        authentication = username?.let { UsernamePasswordAuthenticationToken.authenticated(it, null, emptyList()) }
+      },
+    )
+    try {
+      return block()
+    } finally {
+      SecurityContextHolder.setContext(callerContext)
+    }
+  }
+
+  private fun now() = LocalDateTime.now(clock)
+}
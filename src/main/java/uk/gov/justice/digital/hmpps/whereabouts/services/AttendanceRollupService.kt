@@ -0,0 +1,149 @@
+package uk.gov.justice.digital.hmpps.whereabouts.services
+
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+import org.springframework.stereotype.Service
+import org.springframework.transaction.PlatformTransactionManager
+import org.springframework.transaction.annotation.Transactional
+import org.springframework.transaction.support.TransactionTemplate
+import uk.gov.justice.digital.hmpps.whereabouts.model.Attendance
+import uk.gov.justice.digital.hmpps.whereabouts.model.AttendanceDailyRollup.Companion.NO_ABSENT_REASON
+import uk.gov.justice.digital.hmpps.whereabouts.model.AttendanceDailyRollupPK
+import uk.gov.justice.digital.hmpps.whereabouts.model.TimePeriod
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceArchiveRepository
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceDailyRollupRepository
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceRepository
+import uk.gov.justice.digital.hmpps.whereabouts.repository.PrisonAttendanceBucketCount
+import java.time.LocalDate
+
+data class RollupRebuild(val prisonId: String, val buckets: Int)
+
+data class RollupMismatch(
+  val eventDate: LocalDate,
+  val period: TimePeriod,
+  val absentReason: String,
+  val attended: Boolean,
+  val expected: Long,
+  val actual: Long,
+)
+
+data class RollupConsistency(val prisonId: String, val mismatches: List<RollupMismatch>)
+
+/**
+ * Keeps ATTENDANCE_DAILY_ROLLUP in step with OFFENDER_ATTENDANCE. Every write path that adds, changes or removes
+ * attendances reports it here inside its own transaction, so the rollup commits or rolls back with the attendances.
+ * Archiving attendances leaves the rollup alone, as they are still counted.
+ */
+@Service
+class AttendanceRollupService(
+  private val attendanceDailyRollupRepository: AttendanceDailyRollupRepository,
+  private val attendanceRepository: AttendanceRepository,
+  private val attendanceArchiveRepository: AttendanceArchiveRepository,
+  transactionManager: PlatformTransactionManager,
+) {
+  private companion object {
+    private val log: Logger = LoggerFactory.getLogger(this::class.java)
+
+    // buckets are always locked in this order, so two writers touching the same buckets cannot deadlock
+    private val bucketOrder = compareBy<AttendanceDailyRollupPK>({ it.prisonId }, { it.eventDate }, { it.period }, { it.absentReason }, { it.attended })
+  }
+
+  private val transactionTemplate = TransactionTemplate(transactionManager)
+
+  @Transactional
+  fun added(attendances: Collection<Attendance>) = adjust(attendances.groupingBy(AttendanceDailyRollupPK::of).eachCount())
+
+  @Transactional
+  fun removed(attendances: Collection<Attendance>) = adjust(attendances.groupingBy(AttendanceDailyRollupPK::of).eachCount().mapValues { -it.value })
+
+  /**
+   * For attendances removed in bulk, which have already been counted by bucket in the database.
+   */
+  @Transactional
+  fun removed(buckets: List<PrisonAttendanceBucketCount>) = adjust(
+    buckets
+      .groupingBy {
+        AttendanceDailyRollupPK(
+          prisonId = it.prisonId,
+          eventDate = it.eventDate,
+          period = it.period,
+          absentReason = it.absentReason?.name ?: NO_ABSENT_REASON,
+          attended = it.attended == true,
+        )
+      }
+      .fold(0) { total, bucket -> total - bucket.count.toInt() },
+  )
+
+  @Transactional
+  fun changed(before: Attendance, after: Attendance) = changed(listOf(before to after))
+
+  /**
+   * For attendances changed in bulk, as pairs of before and after. Each bucket is adjusted once by the net change.
+   */
+  @Transactional
+  fun changed(changes: Collection<Pair<Attendance, Attendance>>) = adjust(
+    changes
+      .flatMap { (before, after) -> listOf(AttendanceDailyRollupPK.of(before) to -1, AttendanceDailyRollupPK.of(after) to 1) }
+      .groupingBy { it.first }
+      .fold(0) { total, (_, delta) -> total + delta },
+  )
+
+  private fun adjust(deltas: Map<AttendanceDailyRollupPK, Int>) {
+    deltas.filterValues { it != 0 }.toSortedMap(bucketOrder).forEach { (key, delta) ->
+      if (delta > 0) {
+        attendanceDailyRollupRepository.insertBucketIfAbsent(key.prisonId, key.eventDate, key.period.name, key.absentReason, key.attended)
+      }
+      attendanceDailyRollupRepository.addToBucket(key.prisonId, key.eventDate, key.period, key.absentReason, key.attended, delta)
+    }
+  }
+
+  /**
+   * Recounts the rollup from the attendance tables, live and archived, one prison per transaction. Attendances written to a prison while
+   * it is being recounted can be missed, so run it when the prison is quiet and confirm with [check] afterwards.
+   */
+  fun rebuild(prisonId: String?): List<RollupRebuild> {
+    val prisonIds = prisonId?.let { listOf(it) }
+      ?: (attendanceRepository.findDistinctPrisonIds() + attendanceArchiveRepository.findDistinctPrisonIds()).distinct().sorted()
+
+    return prisonIds.map { id ->
+      val buckets = transactionTemplate.execute {
+        attendanceDailyRollupRepository.deleteByPrison(id)
+        attendanceDailyRollupRepository.insertFromAttendances(id)
+      }!!
+      log.info("Rebuilt attendance rollup for {} with {} buckets", id, buckets)
+      RollupRebuild(prisonId = id, buckets = buckets)
+    }
+  }
+
+  @Transactional(readOnly = true)
+  fun check(prisonId: String): RollupConsistency {
+    val expected = (attendanceRepository.countByDayPeriodReasonAndAttended(prisonId) + attendanceArchiveRepository.countByDayPeriodReasonAndAttended(prisonId))
+      .groupingBy {
+        AttendanceDailyRollupPK(
+          prisonId = prisonId,
+          eventDate = it.eventDate,
+          period = it.period,
+          absentReason = it.absentReason?.name ?: NO_ABSENT_REASON,
+          attended = it.attended == true,
+        )
+      }
+      .fold(0L) { total, bucket -> total + bucket.count }
+    val actual = attendanceDailyRollupRepository.findByPrisonId(prisonId)
+      .associate {
+        AttendanceDailyRollupPK(it.prisonId, it.eventDate, it.period, it.absentReason, it.attended) to it.attendanceCount.toLong()
+      }
+
+    val mismatches = (expected.keys + actual.keys).sortedWith(bucketOrder).mapNotNull { key ->
+      val expectedCount = expected[key] ?: 0
+      val actualCount = actual[key] ?: 0
+      if (expectedCount == actualCount) {
+        null
+      } else {
+        RollupMismatch(key.eventDate, key.period, key.absentReason, key.attended, expectedCount, actualCount)
+      }
+    }
+    if (mismatches.isNotEmpty()) log.warn("Attendance rollup for {} differs from the attendances in {} buckets", prisonId, mismatches.size)
+
+    return RollupConsistency(prisonId = prisonId, mismatches = mismatches)
+  }
+}
@@ -1,32 +1,49 @@
 package uk.gov.justice.digital.hmpps.whereabouts.services
 
 import com.microsoft.applicationinsights.TelemetryClient
-import jakarta.transaction.Transactional
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
+import org.springframework.dao.DataAccessException
+import org.springframework.dao.DataIntegrityViolationException
+import org.springframework.dao.OptimisticLockingFailureException
 import org.springframework.data.domain.Page
+import org.springframework.data.domain.PageRequest
 import org.springframework.data.domain.Pageable
 import org.springframework.stereotype.Service
+import org.springframework.transaction.PlatformTransactionManager
+import org.springframework.transaction.annotation.Transactional
+import org.springframework.transaction.support.TransactionTemplate
 import uk.gov.justice.digital.hmpps.whereabouts.config.DisabledPrisonsConfig
+import uk.gov.justice.digital.hmpps.whereabouts.dto.BookingActivity
 import uk.gov.justice.digital.hmpps.whereabouts.dto.OffenderDetails
 import uk.gov.justice.digital.hmpps.whereabouts.dto.PrisonerScheduleDto
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AbsenceDto
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendAllDto
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendanceChangeDto
+import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendanceChangesPageResponse
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendanceDto
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendanceHistoryDto
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendanceSummary
+import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendanceUpdateDto
+import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendanceUpdateResult
+import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendanceUpdateStatus
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendancesDto
+import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendancesResponse
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.CreateAttendanceDto
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.UpdateAttendanceDto
+import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.UpdateAttendancesResponse
 import uk.gov.justice.digital.hmpps.whereabouts.dto.prisonapi.OffenderAttendance
 import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentReason
 import uk.gov.justice.digital.hmpps.whereabouts.model.Attendance
 import uk.gov.justice.digital.hmpps.whereabouts.model.AttendanceChange
 import uk.gov.justice.digital.hmpps.whereabouts.model.AttendanceChangeValues
 import uk.gov.justice.digital.hmpps.whereabouts.model.TimePeriod
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceArchiveRepository
 import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceChangesRepository
 import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceRepository
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceVersion
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceView
+import java.time.Duration
 import java.time.LocalDate
 import java.time.LocalDateTime
 import java.time.temporal.ChronoUnit
@@ -40,16 +57,29 @@ class AttendanceService(
   private val disabledPrisonsConfig: DisabledPrisonsConfig,
   private val attendanceRepository: AttendanceRepository,
   private val attendanceChangesRepository: AttendanceChangesRepository,
+  private val attendanceArchiveRepository: AttendanceArchiveRepository,
   private val prisonApiService: PrisonApiService,
-  private val iepWarningService: IEPWarningService,
+  private val attendanceOutbox: AttendanceOutbox,
   private val nomisEventOutcomeMapper: NomisEventOutcomeMapper,
   private val telemetryClient: TelemetryClient,
+  private val concurrentReads: ConcurrentReads,
+  private val attendanceRollupService: AttendanceRollupService,
+  private val bulkAttendancePush: BulkAttendancePush,
+  transactionManager: PlatformTransactionManager,
 ) {
+  private val transactionTemplate = TransactionTemplate(transactionManager)
 
   private companion object {
     private val log: Logger = LoggerFactory.getLogger(this::class.java)
+
+    private const val SESSION_UK = "OFFENDER_ATTENDANCE_SESSION_UK"
+    private const val IDEMPOTENCY_KEY_UK = "OFFENDER_ATTENDANCE_IDEMPOTENCY_KEY_UK"
+
+    // longer than a transaction writing attendance changes is expected to take to commit
+    private val CHANGES_COMMIT_MARGIN: Duration = Duration.ofSeconds(10)
   }
 
+  @Transactional(readOnly = true)
   fun getAttendanceForEventLocation(
     prisonId: String?,
     eventLocationId: Long?,
@@ -62,6 +92,15 @@ class AttendanceService(
     return attendance.map(this::toAttendanceDto).toSet()
   }
 
+  @Transactional(readOnly = true)
+  fun getAttendanceVersionForEventLocation(
+    prisonId: String,
+    eventLocationId: Long?,
+    date: LocalDate,
+    period: TimePeriod,
+  ): AttendanceVersion = attendanceRepository.findVersionByEventLocation(prisonId, eventLocationId, date, period)
+
+  @Transactional(readOnly = true)
   fun getAbsencesForReason(prisonId: String?, date: LocalDate?, period: TimePeriod?): Set<AttendanceDto> {
     val attendance = attendanceRepository
       .findByPrisonIdAndEventDateAndPeriodAndAbsentReasonNotNull(prisonId, date, period)
@@ -69,6 +108,7 @@ class AttendanceService(
     return attendance.map(this::toAttendanceDto).toSet()
   }
 
+  @Transactional(readOnly = true)
   fun getAttendanceForBookings(
     prisonId: String?,
     bookings: Set<Long?>?,
@@ -81,69 +121,272 @@ class AttendanceService(
     return attendance.map(this::toAttendanceDto).toSet()
   }
 
+  @Transactional(readOnly = true)
+  fun getAttendanceVersionForBookings(
+    prisonId: String,
+    bookings: Set<Long>,
+    fromDate: LocalDate,
+    toDate: LocalDate?,
+    period: TimePeriod?,
+    includeArchived: Boolean = false,
+  ): AttendanceVersion {
+    val periods = if (period == null) setOf(TimePeriod.AM, TimePeriod.PM) else setOf(period)
+    val version = attendanceRepository.findVersionByBookings(prisonId, bookings, fromDate, toDate ?: fromDate, periods)
+    if (!includeArchived) return version
+    return version + attendanceArchiveRepository.findVersionByBookings(prisonId, bookings, fromDate, toDate ?: fromDate, periods)
+  }
+
+  /**
+   * Attendances for months that have been archived are only included when [includeArchived] asks for history, so
+   * that reads of recent weeks stay on the live table.
+   */
+  @Transactional(readOnly = true)
   fun getAttendanceForBookingsOverDateRange(
     prisonId: String,
     bookings: Set<Long>,
     fromDate: LocalDate,
     toDate: LocalDate?,
     period: TimePeriod?,
+    includeArchived: Boolean = false,
   ): Set<AttendanceDto> {
     val periods = if (period == null) setOf(TimePeriod.AM, TimePeriod.PM) else setOf(period)
     val endDate = toDate ?: fromDate
 
     val attendances = attendanceRepository
       .findByPrisonIdAndBookingIdInAndEventDateBetweenAndPeriodIn(prisonId, bookings, fromDate, endDate, periods)
+    val archived = if (includeArchived) {
+      attendanceArchiveRepository.findByPrisonIdAndBookingIdInAndEventDateBetweenAndPeriodIn(prisonId, bookings, fromDate, endDate, periods)
+    } else {
+      emptySet()
+    }
 
-    return attendances.map(this::toAttendanceDto).toSet()
+    return (attendances + archived).map(this::toAttendanceDto).toSet()
   }
 
-  @Transactional
-  @Throws(AttendanceExists::class)
-  fun createAttendance(attendanceDto: CreateAttendanceDto): AttendanceDto {
+  /**
+   * A second attendance for the same booking, event and session is rejected by the unique key on the insert, not
+   * looked for beforehand, so one racing this insert is caught too. A request retried with the same idempotency key is answered with
+   * the attendance it created rather than as a conflict, and one reusing a key for a different attendance is refused.
+   * That lookup needs a fresh transaction, as Postgres will not run anything more in one whose insert failed, and one
+   * that is not read-only, so that it is made on the primary that has just seen the other insert rather than on a
+   * replica that may not have. Any other integrity failure, from the rollup or the outbox, is not a conflict and is
+   * left to propagate.
+   */
+  @Throws(AttendanceExists::class, IdempotencyKeyReused::class)
+  fun createAttendance(attendanceDto: CreateAttendanceDto, idempotencyKey: String? = null): AttendanceDto {
     if (disabledPrisonsConfig.getPrisons().contains(attendanceDto.prisonId)) throw ForbiddenException("whereabouts is no longer active - use A+A")
 
-    val provisionalAttendance = toAttendance(attendanceDto)
-    val existing = attendanceRepository.findByPrisonIdAndBookingIdAndEventIdAndEventDateAndPeriod(
-      provisionalAttendance.prisonId,
-      provisionalAttendance.bookingId,
-      provisionalAttendance.eventId,
-      provisionalAttendance.eventDate,
-      provisionalAttendance.period,
-    )
-
-    if (existing.size > 0) {
-      log.info("Attendance already created")
-      throw AttendanceExists()
+    val attendance = try {
+      transactionTemplate.execute { recordAttendance(toAttendance(attendanceDto).apply { this.idempotencyKey = idempotencyKey }) }!!
+    } catch (e: DataIntegrityViolationException) {
+      val duplicateSession = e.violates(SESSION_UK)
+      if (!duplicateSession && !e.violates(IDEMPOTENCY_KEY_UK)) throw e
+
+      val existing = idempotencyKey?.let { key -> transactionTemplate.execute { attendanceRepository.findByIdempotencyKey(key).orElse(null) } }
+      when {
+        existing == null && duplicateSession -> {
+          log.info("Attendance already created")
+          throw AttendanceExists()
+        }
+        existing == null -> throw e
+        !existing.isFor(attendanceDto) -> {
+          log.info("Idempotency key of attendance {} reused for a different attendance", existing.id)
+          throw IdempotencyKeyReused()
+        }
+        else -> {
+          log.info("Attendance {} already created for idempotency key", existing.id)
+          return toAttendanceDto(existing)
+        }
+      }
     }
 
-    val attendance = attendanceRepository.save(toAttendance(attendanceDto))
-
-    postNomisAttendance(attendance)
-    iepWarningService.postIEPWarningIfRequired(
-      bookingId = attendance.bookingId,
-      caseNoteId = attendance.caseNoteId,
-      reason = attendance.absentReason,
-      subReason = attendance.absentSubReason,
-      text = attendance.comments,
-      eventDate = attendance.eventDate,
-    ).ifPresent { caseNoteId: Long? -> attendance.caseNoteId = caseNoteId }
     log.info("attendance created {}", attendance.toBuilder().comments(null))
     return toAttendanceDto(attendance)
   }
 
+  private fun recordAttendance(attendance: Attendance): Attendance {
+    val saved = attendanceRepository.save(attendance).also { attendanceRepository.flush() }
+    attendanceRollupService.added(listOf(saved))
+    attendanceOutbox.recorded(saved)
+    prisonApiService.evictScheduledActivities(saved.prisonId, saved.eventDate, saved.period)
+    return saved
+  }
+
+  // the constraint is named in the message of the driver's exception, and in Spring's wrapping of it
+  private fun DataIntegrityViolationException.violates(constraint: String) =
+    generateSequence<Throwable>(this) { it.cause }.any { it.message?.contains(constraint, ignoreCase = true) == true }
+
+  private fun Attendance.isFor(attendanceDto: CreateAttendanceDto) = prisonId == attendanceDto.prisonId &&
+    bookingId == attendanceDto.bookingId &&
+    eventId == attendanceDto.eventId &&
+    eventDate == attendanceDto.eventDate &&
+    period == attendanceDto.period
+
+  /**
+   * Updates the attendance and returns its new version. When [expectedVersion] is given the update only goes ahead if
+   * the attendance is still at that version. The update itself is made conditional on the version read, so of two
+   * updates racing on the same attendance the later one fails with [AttendanceConflict] and is rolled back, outbox
+   * entry included, rather than silently overwriting the first.
+   */
   @Transactional
-  @Throws(AttendanceNotFound::class, AttendanceLocked::class)
-  fun updateAttendance(id: Long, newAttendanceDetails: UpdateAttendanceDto) {
+  @Throws(AttendanceNotFound::class, AttendanceLocked::class, AttendanceConflict::class)
+  fun updateAttendance(id: Long, newAttendanceDetails: UpdateAttendanceDto, expectedVersion: Long? = null): Long? {
     val attendance = attendanceRepository.findById(id).orElseThrow { AttendanceNotFound() }
     if (disabledPrisonsConfig.getPrisons().contains(attendance.prisonId)) throw ForbiddenException("whereabouts is no longer active - use A+A")
     if (isAttendanceLocked(attendance)) {
       log.info("Update attempted on locked attendance, attendance id {}", id)
       throw AttendanceLocked()
     }
+    if (expectedVersion != null && expectedVersion != attendance.version) {
+      log.info("Update attempted on attendance id {} at version {}, expected {}", id, attendance.version, expectedVersion)
+      throw AttendanceConflict()
+    }
+
+    val beforeChange = attendance.toBuilder().build()
+    val change = applyUpdate(attendance, newAttendanceDetails)
+
+    attendanceRepository.save(attendance)
+    attendanceRollupService.changed(beforeChange, attendance)
+    attendanceOutbox.changed(attendance, beforeChange.absentReason)
+    prisonApiService.evictScheduledActivities(attendance.prisonId, attendance.eventDate, attendance.period)
+
+    attendanceChangesRepository.save(change)
+
+    try {
+      attendanceRepository.flush()
+    } catch (e: OptimisticLockingFailureException) {
+      log.info("Attendance id {} was updated concurrently", id)
+      throw AttendanceConflict()
+    }
+    return attendance.version
+  }
+
+  /**
+   * Bulk version of [updateAttendance]. The attendances are read in one query and NOMIS is updated a chunk of
+   * bookings at a time for each outcome, without a transaction open. The updates NOMIS accepted are then written in
+   * one transaction, where Hibernate batches the attendance updates and change rows. An update that adds or removes
+   * an incentive level warning goes through the outbox instead, as a single update does, so its case note is dealt
+   * with too.
+   *
+   * An update made against a [AttendanceUpdateDto.version] the attendance has since moved on from is reported as a
+   * CONFLICT without anything being sent. The versions first read are checked again when the updates are written. An
+   * attendance changed by someone else in between is left as they made it and reported as a CONFLICT, and NOMIS,
+   * already sent this update's outcome, is put back in line with it through the outbox. Should writing the updates
+   * together fail, they are written one at a time, so that only those that cannot be written are lost, and NOMIS is
+   * put back for each of those too.
+   */
+  fun updateAttendances(updates: List<AttendanceUpdateDto>): UpdateAttendancesResponse {
+    val requested = updates.associateBy { it.id }
+    // read from the primary, as locking and the outbox are decided on what was last written
+    val attendances = transactionTemplate.execute { attendanceRepository.findAllById(requested.keys) }!!.associateBy { it.id }
+    val disabledPrisons = disabledPrisonsConfig.getPrisons()
+
+    val statuses = mutableMapOf<Long, AttendanceUpdateStatus>()
+    val viaOutbox = mutableSetOf<Long>()
+    val toPush = mutableListOf<Pair<Attendance, AttendanceUpdateDto>>()
+    requested.values.forEach { update ->
+      val attendance = attendances[update.id]
+      when {
+        attendance == null -> statuses[update.id] = AttendanceUpdateStatus.NOT_FOUND
+        disabledPrisons.contains(attendance.prisonId) -> statuses[update.id] = AttendanceUpdateStatus.FORBIDDEN
+        isAttendanceLocked(attendance) -> statuses[update.id] = AttendanceUpdateStatus.LOCKED
+        update.version != null && update.version != attendance.version -> statuses[update.id] = AttendanceUpdateStatus.CONFLICT
+        attendance.absentReason in AbsentReason.iepTriggers || update.absentReason in AbsentReason.iepTriggers -> viaOutbox += update.id
+        else -> toPush += attendance to update
+      }
+    }
+
+    toPush
+      .groupBy { (_, update) ->
+        nomisEventOutcomeMapper.getEventOutcome(update.absentReason, update.absentSubReason, update.attended, update.paid, update.comments)
+      }
+      .forEach { (eventOutcome, group) ->
+        val pushed = bulkAttendancePush.push(group.map { (attendance) -> attendance.bookingActivity() }.toSet(), eventOutcome)
+        group
+          .filter { (attendance) -> attendance.bookingActivity() in pushed.failed }
+          .forEach { (attendance) -> statuses[attendance.id] = AttendanceUpdateStatus.FAILED }
+      }
+
+    val toSave = requested.keys - statuses.keys
+    val saved = if (toSave.isEmpty()) {
+      emptyMap()
+    } else {
+      try {
+        transactionTemplate.execute { saveUpdates(toSave, requested, attendances, viaOutbox, statuses) }!!
+      } catch (e: DataAccessException) {
+        log.warn("Saving {} attendance updates together failed, saving them one at a time", toSave.size, e)
+        toSave.mapNotNull { id -> saveUpdate(id, requested, attendances, viaOutbox, statuses)?.let { id to it } }.toMap()
+      }
+    }
+
+    return UpdateAttendancesResponse(
+      updates.map { it.id }.distinct().map { id ->
+        saved[id]?.let { AttendanceUpdateResult(id, AttendanceUpdateStatus.UPDATED, it) }
+          ?: AttendanceUpdateResult(id, statuses[id] ?: AttendanceUpdateStatus.NOT_FOUND)
+      },
+    )
+  }
+
+  /**
+   * Saves one update on its own, after saving the batch failed. If it cannot be saved either it is reported as FAILED
+   * and NOMIS, which has already been sent its outcome, is put back in line with the attendance as stored.
+   */
+  private fun saveUpdate(
+    id: Long,
+    requested: Map<Long, AttendanceUpdateDto>,
+    read: Map<Long, Attendance>,
+    viaOutbox: Set<Long>,
+    statuses: MutableMap<Long, AttendanceUpdateStatus>,
+  ): AttendanceDto? = try {
+    transactionTemplate.execute { saveUpdates(setOf(id), requested, read, viaOutbox, statuses) }!![id]
+  } catch (e: DataAccessException) {
+    log.error("Failed to save the update of attendance id {}", id, e)
+    statuses[id] = if (e is OptimisticLockingFailureException) AttendanceUpdateStatus.CONFLICT else AttendanceUpdateStatus.FAILED
+    if (id !in viaOutbox) {
+      try {
+        transactionTemplate.executeWithoutResult { attendanceRepository.findById(id).ifPresent { attendanceOutbox.resend(it) } }
+      } catch (e: DataAccessException) {
+        log.error("NOMIS no longer matches attendance id {}, which could not be queued to be sent again", id, e)
+        telemetryClient.trackEvent("AttendanceNomisMismatch", mapOf("attendanceId" to id.toString()), null)
+      }
+    }
+    null
+  }
+
+  private fun saveUpdates(
+    ids: Set<Long>,
+    requested: Map<Long, AttendanceUpdateDto>,
+    read: Map<Long, Attendance>,
+    viaOutbox: Set<Long>,
+    statuses: MutableMap<Long, AttendanceUpdateStatus>,
+  ): Map<Long, AttendanceDto> {
+    val (attendances, changedSince) = attendanceRepository.findAllById(ids).partition { it.version == read.getValue(it.id).version }
+    changedSince.forEach {
+      log.info("Attendance id {} was updated while a bulk update of it was being made", it.id)
+      statuses[it.id] = AttendanceUpdateStatus.CONFLICT
+      if (it.id !in viaOutbox) attendanceOutbox.resend(it)
+    }
+
+    val beforeChanges = attendances.map { it.toBuilder().build() }
+    val changes = attendances.map { applyUpdate(it, requested.getValue(it.id).toUpdateAttendanceDto()) }
 
-    iepWarningService.handleIEPWarningScenarios(attendance, newAttendanceDetails)
-      .ifPresent { caseNoteId: Long? -> attendance.caseNoteId = caseNoteId }
+    attendanceRollupService.changed(beforeChanges.zip(attendances))
+    beforeChanges.zip(attendances)
+      .filter { (_, attendance) -> attendance.id in viaOutbox }
+      .forEach { (beforeChange, attendance) -> attendanceOutbox.changed(attendance, beforeChange.absentReason) }
+    attendanceChangesRepository.saveAll(changes)
+    // so that the versions returned are those written
+    attendanceRepository.flush()
+    attendances.map { Triple(it.prisonId, it.eventDate, it.period) }.distinct()
+      .forEach { (prisonId, eventDate, period) -> prisonApiService.evictScheduledActivities(prisonId, eventDate, period) }
 
+    return attendances.associate { it.id to toAttendanceDto(it) }
+  }
+
+  /**
+   * Applies the new details to the attendance and returns the change to record for it.
+   */
+  private fun applyUpdate(attendance: Attendance, newAttendanceDetails: UpdateAttendanceDto): AttendanceChange {
     val changedFrom = if (attendance.attended) {
       AttendanceChangeValues.Attended
     } else {
@@ -162,20 +405,16 @@ class AttendanceService(
     attendance.absentReason = newAttendanceDetails.absentReason
     attendance.absentSubReason = newAttendanceDetails.absentSubReason
 
-    attendanceRepository.save(attendance)
-    postNomisAttendance(attendance)
-
-    attendanceChangesRepository.save(
-      AttendanceChange(
-        attendance = attendance,
-        changedFrom = changedFrom,
-        changedTo = changedTo,
-      ),
+    return AttendanceChange(
+      attendance = attendance,
+      changedFrom = changedFrom,
+      changedTo = changedTo,
     )
   }
 
-  @Transactional
-  fun attendAll(attendAll: AttendAllDto): Set<AttendanceDto> {
+  private fun Attendance.bookingActivity() = BookingActivity(bookingId = bookingId, activityId = eventId)
+
+  fun attendAll(attendAll: AttendAllDto): AttendancesResponse {
     val eventOutcome = nomisEventOutcomeMapper.getEventOutcome(
       reason = null,
       subReason = null,
@@ -184,9 +423,10 @@ class AttendanceService(
       comment = "",
     )
 
-    prisonApiService.putAttendanceForMultipleBookings(attendAll.bookingActivities, eventOutcome)
+    val bookingActivities = notYetRecorded(attendAll.prisonId!!, attendAll.eventDate!!, attendAll.period!!, attendAll.bookingActivities)
+    val pushed = pushToNomis(bookingActivities, eventOutcome)
 
-    val attendances = attendAll.bookingActivities.map { (bookingId, activityId) ->
+    val attendances = pushed.succeeded.map { (bookingId, activityId) ->
       Attendance.builder()
         .attended(true)
         .paid(true)
@@ -199,30 +439,90 @@ class AttendanceService(
         .build()
     }.toSet()
 
-    attendanceRepository.saveAll(attendances)
+    return saveBulkAttendances(attendances, pushed.failed)
+  }
 
-    return attendances.stream().map(this::toAttendanceDto).collect(Collectors.toSet())
+  /**
+   * Bookings already recorded for the session are left out rather than pushed to NOMIS only to be rejected by the
+   * unique key when saved. They are looked for on the primary, where the latest attendances recorded are.
+   */
+  private fun notYetRecorded(prisonId: String, date: LocalDate, period: TimePeriod, bookingActivities: Set<BookingActivity>): Set<BookingActivity> {
+    if (bookingActivities.isEmpty()) return bookingActivities
+    val recorded = transactionTemplate.execute {
+      attendanceRepository.findByPrisonIdAndBookingIdInAndEventDateAndPeriod(prisonId, bookingActivities.map { it.bookingId }.toSet(), date, period)
+    }!!
+      .map { it.bookingId to it.eventId }
+      .toSet()
+    val notYetRecorded = bookingActivities.filterNot { (it.bookingId to it.activityId) in recorded }.toSet()
+    if (notYetRecorded.size < bookingActivities.size) {
+      log.info("Skipping {} attendances already recorded for {} {} {}", bookingActivities.size - notYetRecorded.size, prisonId, date, period)
+    }
+    return notYetRecorded
   }
 
-  private fun postNomisAttendance(attendance: Attendance) {
-    val eventOutcome = nomisEventOutcomeMapper.getEventOutcome(
-      reason = attendance.absentReason,
-      subReason = attendance.absentSubReason,
-      attended = attendance.attended,
-      paid = attendance.paid,
-      comment = attendance.comments,
+  /**
+   * NOMIS is updated before anything is saved, and without a transaction open, so a slow Prison API does not hold
+   * database connections. Only the bookings NOMIS accepted are then recorded here; the rest are reported back.
+   */
+  private fun pushToNomis(bookingActivities: Set<BookingActivity>, eventOutcome: EventOutcome?): BulkPushResult {
+    val pushed = bulkAttendancePush.push(bookingActivities, eventOutcome)
+    if (pushed.succeeded.isEmpty() && pushed.error != null) throw pushed.error
+    return pushed
+  }
+
+  /**
+   * NOMIS has already been sent the outcomes, so a booking recorded by another request since [notYetRecorded] looked
+   * does not stop the rest being recorded. Should saving them together hit the unique key they are saved one at a
+   * time; any already recorded are reported as failed, and NOMIS is put back in line with the attendance recorded.
+   */
+  private fun saveBulkAttendances(attendances: Set<Attendance>, failed: Set<BookingActivity>): AttendancesResponse {
+    val saved = try {
+      transactionTemplate.execute { recordAttendances(attendances) }!!
+    } catch (e: DataIntegrityViolationException) {
+      if (!e.violates(SESSION_UK)) throw e
+      log.info("Some of {} attendances were recorded by another request, recording them one at a time", attendances.size)
+      // ids and versions handed out to the batch went with its rollback
+      attendances.mapNotNull { recordUnlessRecorded(it.toBuilder().id(null).version(null).build()) }
+    }
+    val alreadyRecorded = attendances.map { it.bookingActivity() }.toSet() - saved.map { it.bookingActivity() }.toSet()
+
+    return AttendancesResponse(
+      attendances = saved.map(this::toAttendanceDto).toSet(),
+      failed = (failed + alreadyRecorded).takeIf { it.isNotEmpty() },
     )
+  }
 
-    log.info("Updating attendance on NOMIS {} {}", attendance.toBuilder().comments(null).build(), eventOutcome)
-    prisonApiService.putAttendance(attendance.bookingId, attendance.eventId, eventOutcome)
+  private fun recordAttendances(attendances: Collection<Attendance>): Collection<Attendance> {
+    attendanceRepository.saveAll(attendances)
+    attendanceRepository.flush()
+    attendanceRollupService.added(attendances)
+    attendances.map { Triple(it.prisonId, it.eventDate, it.period) }.distinct()
+      .forEach { (prisonId, eventDate, period) -> prisonApiService.evictScheduledActivities(prisonId, eventDate, period) }
+    return attendances
   }
 
-  private fun isAttendanceLocked(attendance: Attendance): Boolean {
-    if (attendance.createDateTime == null) return false
-    val dateOfChange =
-      if (attendance.modifyDateTime == null) attendance.createDateTime.toLocalDate() else attendance.modifyDateTime.toLocalDate()
+  private fun recordUnlessRecorded(attendance: Attendance): Attendance? = try {
+    transactionTemplate.execute { recordAttendances(listOf(attendance)) }!!.single()
+  } catch (e: DataIntegrityViolationException) {
+    if (!e.violates(SESSION_UK)) throw e
+    log.info("Attendance for booking {} event {} already recorded by another request", attendance.bookingId, attendance.eventId)
+    transactionTemplate.executeWithoutResult {
+      val recordedIds = attendanceRepository
+        .findByPrisonIdAndBookingIdInAndEventDateAndPeriod(attendance.prisonId, setOf(attendance.bookingId), attendance.eventDate, attendance.period)
+        .filter { it.eventId == attendance.eventId }
+        .mapNotNull { it.id }
+      attendanceRepository.findAllById(recordedIds).forEach { attendanceOutbox.resend(it) }
+    }
+    null
+  }
+
+  private fun isAttendanceLocked(attendance: Attendance): Boolean = isAttendanceLocked(attendance.paid, attendance.createDateTime, attendance.modifyDateTime)
+
+  private fun isAttendanceLocked(paid: Boolean?, createDateTime: LocalDateTime?, modifyDateTime: LocalDateTime?): Boolean {
+    if (createDateTime == null) return false
+    val dateOfChange = (modifyDateTime ?: createDateTime).toLocalDate()
     val dateDifference = ChronoUnit.DAYS.between(dateOfChange, LocalDate.now())
-    return if (attendance.paid) dateDifference >= 1 else dateDifference >= 7
+    return if (paid == true) dateDifference >= 1 else dateDifference >= 7
   }
 
   fun getPrisonersUnaccountedFor(
@@ -230,20 +530,31 @@ class AttendanceService(
     date: LocalDate,
     period: TimePeriod,
   ): List<PrisonerScheduleDto> {
-    // grab all scheduled activities
-    val scheduledActivities = prisonApiService.getScheduledActivities(prisonId, date, period)
-    // grab all the attendances that have taken place
-    val attendances = attendanceRepository.findByPrisonIdAndPeriodAndEventDateBetween(prisonId, period, date, date)
-      .map { Pair(it.bookingId, it.eventId) }.toSet()
+    // grab all scheduled activities while finding the attendances that have taken place
+    val (scheduledActivities, attendances) = concurrentReads.zip(prisonApiService.getScheduledActivitiesAsync(prisonId, date, period)) {
+      attendanceRepository.findByPrisonIdAndPeriodAndEventDateBetween(prisonId, period, date, date)
+        .map { Pair(it.bookingId, it.eventId) }.toSet()
+    }
     // filter to leave the scheduled activities
     return scheduledActivities.filter { !attendances.contains(Pair(it.bookingId, it.eventId)) }
   }
 
-  @Transactional
-  fun createAttendances(attendancesDto: AttendancesDto): Set<AttendanceDto> {
+  fun createAttendances(attendancesDto: AttendancesDto): AttendancesResponse {
     if (disabledPrisonsConfig.getPrisons().contains(attendancesDto.prisonId)) throw ForbiddenException("whereabouts is no longer active - use A+A")
 
-    val attendances = attendancesDto.bookingActivities
+    val eventOutcome = nomisEventOutcomeMapper.getEventOutcome(
+      reason = attendancesDto.reason,
+      // for creating multiple attendances can only specify reasons where sub reason not required
+      subReason = null,
+      attended = attendancesDto.attended,
+      paid = attendancesDto.paid,
+      comment = attendancesDto.comments,
+    )
+
+    val bookingActivities = notYetRecorded(attendancesDto.prisonId, attendancesDto.eventDate, attendancesDto.period, attendancesDto.bookingActivities)
+    val pushed = pushToNomis(bookingActivities, eventOutcome)
+
+    val attendances = pushed.succeeded
       .map { (bookingId, activityId) ->
         Attendance.builder()
           .bookingId(bookingId)
@@ -260,20 +571,7 @@ class AttendanceService(
       }
       .toSet()
 
-    attendanceRepository.saveAll(attendances)
-
-    val eventOutcome = nomisEventOutcomeMapper.getEventOutcome(
-      reason = attendancesDto.reason,
-      // for creating multiple attendances can only specify reasons where sub reason not required
-      subReason = null,
-      attended = attendancesDto.attended,
-      paid = attendancesDto.paid,
-      comment = attendancesDto.comments,
-    )
-
-    prisonApiService.putAttendanceForMultipleBookings(attendancesDto.bookingActivities, eventOutcome)
-
-    return attendances.stream().map(this::toAttendanceDto).collect(Collectors.toSet())
+    return saveBulkAttendances(attendances, pushed.failed)
   }
 
   fun getAbsencesForReason(
@@ -301,21 +599,25 @@ class AttendanceService(
 
   @Transactional
   fun deleteAttendancesForOffenderDeleteEvent(offenderNo: String, bookingIds: List<Long>) {
-    var totalAttendances = 0
-    bookingIds.map { bookingId ->
-      val attendances = attendanceRepository.findByBookingId(bookingId)
-      log.info("Deleting the following attendance records ${attendances.map { it.id }.joinToString(",")}")
-
-      attendanceRepository.deleteAll(attendances)
-      totalAttendances += attendances.size
+    var deletedAttendances = 0
+    var deletedChanges = 0
+    if (bookingIds.isNotEmpty()) {
+      val buckets = attendanceRepository.countByBucketForBookings(bookingIds) + attendanceArchiveRepository.countByBucketForBookings(bookingIds)
+      deletedChanges = attendanceChangesRepository.deleteByAttendanceBookingIdIn(bookingIds) +
+        attendanceArchiveRepository.deleteChangesByBookingIdIn(bookingIds)
+      deletedAttendances = attendanceRepository.deleteByBookingIdIn(bookingIds) + attendanceArchiveRepository.deleteByBookingIdIn(bookingIds)
+      attendanceRollupService.removed(buckets)
     }
+
+    log.info("Deleted {} attendances and {} attendance changes for offender {}", deletedAttendances, deletedChanges, offenderNo)
     telemetryClient.trackEvent(
       "OffenderDelete",
-      mapOf("offenderNo" to offenderNo, "count" to totalAttendances.toString()),
+      mapOf("offenderNo" to offenderNo, "count" to deletedAttendances.toString(), "changes" to deletedChanges.toString()),
       null,
     )
   }
 
+  @Transactional(readOnly = true)
   fun getAttendanceChanges(fromDateTime: LocalDateTime, toDateTime: LocalDateTime?, agencyId: String? = null): Set<AttendanceChangeDto> {
     val changes =
       if (toDateTime == null) {
@@ -324,24 +626,56 @@ class AttendanceService(
         attendanceChangesRepository.findAttendanceChangeByCreateDateTimeBetween(fromDateTime, toDateTime, agencyId)
       }
 
-    return changes
-      .map {
-        AttendanceChangeDto(
-          id = it.id!!,
-          attendanceId = it.attendance.id,
-          bookingId = it.attendance.bookingId,
-          eventId = it.attendance.eventId,
-          eventLocationId = it.attendance.eventLocationId,
-          changedFrom = it.changedFrom,
-          changedTo = it.changedTo,
-          changedOn = it.createDateTime,
-          changedBy = it.createUserId,
-          prisonId = it.attendance.prisonId,
-
-        )
-      }.toSet()
+    return changes.map(this::toAttendanceChangeDto).toSet()
   }
 
+  /**
+   * Walks the changes made between fromDateTime and toDateTime a page at a time. The cursor from each page fetches the
+   * next; once a page comes back not full it can be kept to poll for changes made since. Without a toDateTime each
+   * page reads up to [CHANGES_COMMIT_MARGIN] before now, as a change is stamped before its transaction commits and one
+   * committing late behind a later change would otherwise be passed over by the cursor.
+   */
+  @Transactional(readOnly = true)
+  fun getAttendanceChangesPage(
+    fromDateTime: LocalDateTime,
+    toDateTime: LocalDateTime?,
+    agencyId: String?,
+    cursor: String?,
+    pageSize: Int,
+  ): AttendanceChangesPageResponse {
+    val position = cursor?.let { AttendanceChangesCursor.decode(it) }
+      ?: AttendanceChangesCursor(afterDateTime = fromDateTime, afterId = -1, toDateTime = toDateTime)
+
+    val changes = attendanceChangesRepository.findPageAfter(
+      fromDateTime,
+      position.toDateTime ?: LocalDateTime.now().minus(CHANGES_COMMIT_MARGIN),
+      agencyId,
+      position.afterDateTime,
+      position.afterId,
+      PageRequest.of(0, pageSize),
+    )
+    val next = changes.lastOrNull()?.let { position.copy(afterDateTime = it.createDateTime!!, afterId = it.id!!) } ?: position
+
+    return AttendanceChangesPageResponse(
+      changes = changes.map(this::toAttendanceChangeDto),
+      nextCursor = next.encode(),
+      more = changes.size == pageSize,
+    )
+  }
+
+  private fun toAttendanceChangeDto(change: AttendanceChange): AttendanceChangeDto = AttendanceChangeDto(
+    id = change.id!!,
+    attendanceId = change.attendance.id,
+    bookingId = change.attendance.bookingId,
+    eventId = change.attendance.eventId,
+    eventLocationId = change.attendance.eventLocationId,
+    changedFrom = change.changedFrom,
+    changedTo = change.changedTo,
+    changedOn = change.createDateTime,
+    changedBy = change.createUserId,
+    prisonId = change.attendance.prisonId,
+  )
+
   private fun countAttendances(offenderAttendances: List<OffenderAttendance>): AttendanceSummary {
     val summary = AttendanceSummary()
     offenderAttendances.forEach { offenderAttendance ->
@@ -419,7 +753,7 @@ class AttendanceService(
     suspended = details.suspended,
   )
 
-  private fun toAbsenceDto2(details: OffenderDetails, attendance: Attendance): AbsenceDto = AbsenceDto(
+  internal fun toAbsenceDto2(details: OffenderDetails, attendance: Attendance): AbsenceDto = AbsenceDto(
     attendanceId = attendance.id,
     bookingId = attendance.bookingId,
     offenderNo = details.offenderNo,
@@ -457,7 +791,9 @@ class AttendanceService(
     .comments(attendanceDto.comments)
     .build()
 
-  private fun toAttendanceDto(attendanceData: Attendance): AttendanceDto = AttendanceDto.builder()
+  internal fun toAttendanceDto(attendanceData: Attendance): AttendanceDto = toAttendanceDto(AttendanceView.from(attendanceData))
+
+  private fun toAttendanceDto(attendanceData: AttendanceView): AttendanceDto = AttendanceDto.builder()
     .id(attendanceData.id)
     .eventDate(attendanceData.eventDate)
     .eventId(attendanceData.eventId)
@@ -473,8 +809,9 @@ class AttendanceService(
     .createUserId(attendanceData.createUserId)
     .createDateTime(attendanceData.createDateTime)
     .caseNoteId(attendanceData.caseNoteId)
-    .locked(isAttendanceLocked(attendanceData))
+    .locked(isAttendanceLocked(attendanceData.paid, attendanceData.createDateTime, attendanceData.modifyDateTime))
     .modifyDateTime(attendanceData.modifyDateTime)
     .modifyUserId(attendanceData.modifyUserId)
+    .version(attendanceData.version)
     .build()
 }
@@ -1,6 +1,7 @@
 package uk.gov.justice.digital.hmpps.whereabouts.services
 
 import org.springframework.stereotype.Service
+import org.springframework.transaction.annotation.Transactional
 import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentReason
 import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentReason.AcceptableAbsence
 import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentReason.ApprovedCourse
@@ -13,6 +14,9 @@ import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentReason.SessionCancel
 import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentReason.UnacceptableAbsence
 import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentReason.UnacceptableAbsenceIncentiveLevelWarning
 import uk.gov.justice.digital.hmpps.whereabouts.model.TimePeriod
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceArchiveRepository
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceDailyRollupRepository
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceReasonCount
 import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceRepository
 import java.time.LocalDate
 
@@ -58,21 +62,34 @@ data class Stats(
 @Service
 class AttendanceStatistics(
   private val attendanceRepository: AttendanceRepository,
+  private val attendanceArchiveRepository: AttendanceArchiveRepository,
+  private val attendanceDailyRollupRepository: AttendanceDailyRollupRepository,
   private val prisonApiService: PrisonApiService,
+  private val concurrentReads: ConcurrentReads,
 ) {
+  @Transactional(readOnly = true)
   fun getStats(prisonId: String, period: TimePeriod?, from: LocalDate, to: LocalDate): Stats {
     val periods = period?.let { setOf(it) } ?: setOf(TimePeriod.PM, TimePeriod.AM)
-    val attendances = when (periods.size) {
-      1 -> attendanceRepository.findByPrisonIdAndPeriodAndEventDateBetween(prisonId, period, from, to)
-      else -> attendanceRepository.findByPrisonIdAndEventDateBetweenAndPeriodIn(prisonId, from, to, periods)
-    }
 
-    val attendancesBookingIdsCount = attendances.groupingBy { it.bookingId }.eachCount()
-    val counts = prisonApiService.getScheduleActivityCounts(prisonId, from, to, periods, attendancesBookingIdsCount)
+    // the rollup behind the reason breakdown still counts archived attendances, so the booking counts must too or
+    // Prison API would report them as not recorded
+    val live = attendanceRepository.countByBooking(prisonId, from, to, periods)
+    val archived = attendanceArchiveRepository.countByBooking(prisonId, from, to, periods)
+    val attendancesBookingIdsCount = (live + archived)
+      .groupBy({ it.bookingId }, { it.count })
+      .mapValues { it.value.sum().toInt() }
+
+    // the reason breakdown comes from the daily rollup and doesn't depend on Prison API, so read it while the
+    // activity counts are fetched
+    val (counts, reasonCounts) = concurrentReads.zip(
+      prisonApiService.getScheduleActivityCountsAsync(prisonId, from, to, periods, attendancesBookingIdsCount),
+    ) {
+      attendanceDailyRollupRepository.sumByReasonAndAttended(prisonId, from, to, periods).map { it.toAttendanceReasonCount() }
+    }
 
-    val (paid, unpaid) = attendances.partition { AbsentReason.paidReasons.contains(it.absentReason) }
-    val paidCounts = paid.groupBy { it.absentReason }.mapValues { it.value.count() }
-    val unpaidCounts = unpaid.groupBy { it.absentReason }.mapValues { it.value.count() }
+    val (paid, unpaid) = reasonCounts.partition { AbsentReason.paidReasons.contains(it.absentReason) }
+    val paidCounts = paid.sumByReason()
+    val unpaidCounts = unpaid.sumByReason()
 
     return Stats(
       scheduleActivities = counts.total,
@@ -92,9 +109,11 @@ class AttendanceStatistics(
         restInCellOrSick = unpaidCounts[RestInCellOrSick],
       ),
       suspended = counts.suspended,
-      attended = attendances.count { it.attended },
+      attended = reasonCounts.filter { it.attended == true }.sumOf { it.count }.toInt(),
     )
   }
+
+  private fun List<AttendanceReasonCount>.sumByReason(): Map<AbsentReason?, Int> = groupBy { it.absentReason }.mapValues { group -> group.value.sumOf { it.count }.toInt() }
 }
 
 data class PrisonerActivitiesCount(val total: Int, val suspended: Int, val notRecorded: Int)
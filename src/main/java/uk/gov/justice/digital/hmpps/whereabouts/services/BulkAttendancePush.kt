@@ -0,0 +1,68 @@
+package uk.gov.justice.digital.hmpps.whereabouts.services
+
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.stereotype.Component
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Mono
+import reactor.util.retry.Retry
+import uk.gov.justice.digital.hmpps.whereabouts.dto.BookingActivity
+import java.time.Duration
+
+/**
+ * Outcome of a bulk attendance push. [failed] holds the booking activities whose chunk Prison API still rejected
+ * after any retries; [error] is the last of those rejections, for callers that want to fail outright.
+ */
+data class BulkPushResult(
+  val succeeded: Set<BookingActivity>,
+  val failed: Set<BookingActivity>,
+  val error: Throwable?,
+)
+
+/**
+ * Pushes attendance outcomes for many bookings to Prison API in chunks, several chunks at a time. A chunk that hits
+ * a locked row in NOMIS (423) is retried with backoff; a chunk that still fails is reported rather than failing the
+ * others. Callers should not hold a database transaction open across [push].
+ */
+@Component
+class BulkAttendancePush(
+  private val prisonApiService: PrisonApiService,
+  @Value("\${bulk-attendance.chunk-size:50}") private val chunkSize: Int,
+  @Value("\${bulk-attendance.concurrency:4}") private val concurrency: Int,
+  @Value("\${bulk-attendance.lock-retries:3}") private val lockRetries: Long,
+  @Value("\${bulk-attendance.lock-retry-backoff:250ms}") private val lockRetryBackoff: Duration,
+) {
+  private companion object {
+    private val log: Logger = LoggerFactory.getLogger(this::class.java)
+  }
+
+  fun push(bookingActivities: Set<BookingActivity>, eventOutcome: EventOutcome?): BulkPushResult {
+    val failures = Flux.fromIterable(bookingActivities)
+      .buffer(chunkSize)
+      .flatMap({ chunk -> pushChunk(chunk.toSet(), eventOutcome) }, concurrency)
+      .collectList()
+      .block()!!
+
+    val failed = failures.flatMap { it.first }.toSet()
+    if (failed.isNotEmpty()) log.warn("Prison API rejected attendance for {} of {} bookings", failed.size, bookingActivities.size)
+
+    return BulkPushResult(
+      succeeded = bookingActivities - failed,
+      failed = failed,
+      error = failures.lastOrNull()?.second,
+    )
+  }
+
+  private fun pushChunk(chunk: Set<BookingActivity>, eventOutcome: EventOutcome?): Mono<Pair<Set<BookingActivity>, Throwable>> = prisonApiService.putAttendanceForMultipleBookingsAsync(chunk, eventOutcome)
+    .retryWhen(
+      Retry.backoff(lockRetries, lockRetryBackoff)
+        .filter { it is DatabaseRowLockedException }
+        .onRetryExhaustedThrow { _, signal -> signal.failure() },
+    )
+    .then(Mono.empty<Pair<Set<BookingActivity>, Throwable>>())
+    .onErrorResume { e ->
+      log.warn("Failed to update attendance on NOMIS for bookings {}", chunk.map { it.bookingId }, e)
+      Mono.just(Pair(chunk, e))
+    }
+}
@@ -2,10 +2,10 @@ package uk.gov.justice.digital.hmpps.whereabouts.services
 
 import com.microsoft.applicationinsights.TelemetryClient
 import jakarta.persistence.EntityNotFoundException
-import jakarta.transaction.Transactional
 import org.slf4j.LoggerFactory
 import org.springframework.data.domain.PageRequest
 import org.springframework.stereotype.Service
+import org.springframework.transaction.annotation.Transactional
 import uk.gov.justice.digital.hmpps.whereabouts.dto.CellMoveDetails
 import uk.gov.justice.digital.hmpps.whereabouts.dto.CellMoveReasonDto
 import uk.gov.justice.digital.hmpps.whereabouts.dto.CellMoveResult
@@ -90,6 +90,7 @@ class CellMoveService(
    * hmpps-change-someones-cell-api ahead of this service's decommission. Callers walk the table by
    * passing the last key of the previous page; an empty page means done.
    */
+  @Transactional(readOnly = true)
   fun getCellMoveReasons(lastBookingId: Long, lastBedAssignmentSequence: Int, pageSize: Int): List<CellMoveReasonDto> = cellMoveRepository
     .findPageAfter(lastBookingId, lastBedAssignmentSequence, PageRequest.of(0, pageSize))
     .map { CellMoveReasonDto(it.bookingId, it.bedAssignmentsSequence, it.caseNoteId) }
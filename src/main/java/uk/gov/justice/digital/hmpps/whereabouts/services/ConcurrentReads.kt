@@ -0,0 +1,53 @@
+package uk.gov.justice.digital.hmpps.whereabouts.services
+
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.stereotype.Component
+import reactor.core.publisher.Mono
+import java.time.Duration
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+
+class ReadDeadlineExceeded(message: String) : RuntimeException(message)
+
+/**
+ * Overlaps an independent Prison API call with database work for read endpoints.
+ *
+ * The remote call is subscribed first, on the calling thread so that it picks up the current user, and is in flight
+ * while the local work runs on that same thread, which keeps it inside any surrounding transaction. Both share one
+ * deadline. Neither outlives the call: if the local work fails or the deadline passes the remote call is cancelled,
+ * and a remote failure is rethrown as is.
+ */
+@Component
+class ConcurrentReads(
+  @Value("\${concurrent-reads.deadline:20s}") private val deadline: Duration,
+) {
+
+  fun <R : Any, L> zip(remote: Mono<R>, local: () -> L): Pair<R, L> {
+    val expiry = System.nanoTime() + deadline.toNanos()
+    val remoteResult = remote.single().toFuture()
+
+    val localResult = try {
+      local()
+    } catch (e: Throwable) {
+      remoteResult.cancel(true)
+      throw e
+    }
+
+    return try {
+      Pair(remoteResult.get(expiry - System.nanoTime(), TimeUnit.NANOSECONDS), localResult)
+    } catch (e: TimeoutException) {
+      remoteResult.cancel(true)
+      throw ReadDeadlineExceeded("Prison API did not respond within $deadline")
+    } catch (e: InterruptedException) {
+      remoteResult.cancel(true)
+      Thread.currentThread().interrupt()
+      throw e
+    } catch (e: ExecutionException) {
+      throw e.cause ?: e
+    } catch (e: CancellationException) {
+      throw ReadDeadlineExceeded("Prison API call was cancelled")
+    }
+  }
+}
@@ -13,7 +13,7 @@ import java.util.Optional
 @Service
 class IEPWarningService(
   private val caseNotesService: CaseNotesService,
-  private val prisonApiService: PrisonApiService,
+  private val offenderNoCache: OffenderNoCache,
 ) {
   private companion object {
     private val log: Logger = LoggerFactory.getLogger(this::class.java)
@@ -35,7 +35,7 @@ class IEPWarningService(
       val rescindedReason =
         "Incentive level warning removed: " + if (newAttendanceDetails.attended) "attended" else formattedAbsentReason
       log.info("{} raised for {}", rescindedReason, attendance.toBuilder().comments(null))
-      val offenderNo = prisonApiService.getOffenderNoFromBookingId(attendance.bookingId)
+      val offenderNo = offenderNoCache.getOffenderNo(attendance.bookingId)
       caseNotesService.putCaseNoteAmendment(offenderNo, attendance.caseNoteId, rescindedReason)
       return Optional.empty()
     }
@@ -43,7 +43,7 @@ class IEPWarningService(
     if (shouldReinstatePreviousIEPWarning) {
       val reinstatedReason = "Incentive level warning added: $formattedAbsentReason"
       log.info("{} raised for {}", reinstatedReason, attendance.toBuilder().comments(null))
-      val offenderNo = prisonApiService.getOffenderNoFromBookingId(attendance.bookingId)
+      val offenderNo = offenderNoCache.getOffenderNo(attendance.bookingId)
       caseNotesService.putCaseNoteAmendment(offenderNo, attendance.caseNoteId, reinstatedReason)
       return Optional.empty()
     }
@@ -59,7 +59,7 @@ class IEPWarningService(
   }
 
   fun postIEPWarningIfRequired(
-    bookingId: Long?,
+    bookingId: Long,
     caseNoteId: Long?,
     reason: AbsentReason?,
     subReason: AbsentSubReason?,
@@ -67,7 +67,7 @@ class IEPWarningService(
     eventDate: LocalDate,
   ): Optional<Long> {
     if (caseNoteId == null && reason != null && AbsentReason.iepTriggers.contains(reason)) {
-      val offenderNo = prisonApiService.getOffenderNoFromBookingId(bookingId)
+      val offenderNo = offenderNoCache.getOffenderNo(bookingId)
       val modifiedTextWithReason = formatReasonAndComment(reason, subReason, text)
       val caseNote = caseNotesService.postCaseNote(
         offenderNo,
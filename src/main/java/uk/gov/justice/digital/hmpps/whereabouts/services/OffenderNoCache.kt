@@ -0,0 +1,25 @@
+package uk.gov.justice.digital.hmpps.whereabouts.services
+
+import org.springframework.cache.CacheManager
+import org.springframework.stereotype.Component
+import uk.gov.justice.digital.hmpps.whereabouts.config.CacheConfiguration
+import uk.gov.justice.digital.hmpps.whereabouts.dto.OffenderBooking
+
+/**
+ * A booking always belongs to the same offender, so once the offender number for a booking is known it is kept
+ * rather than asked of the Prison API again. Callers that already hold bookings from a batch lookup can record them
+ * here so that later single lookups for those bookings are hits.
+ */
+@Component
+class OffenderNoCache(
+  cacheManager: CacheManager,
+  private val prisonApiService: PrisonApiService,
+) {
+  private val cache = requireNotNull(cacheManager.getCache(CacheConfiguration.OFFENDER_NOS))
+
+  fun getOffenderNo(bookingId: Long): String? = cache.get(bookingId) { prisonApiService.getOffenderNoFromBookingId(bookingId) }
+
+  fun record(bookings: Collection<OffenderBooking>) {
+    bookings.forEach { cache.put(it.bookingId, it.offenderNo) }
+  }
+}
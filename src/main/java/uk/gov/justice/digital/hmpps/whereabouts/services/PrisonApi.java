@@ -5,6 +5,8 @@ import lombok.Data;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.cache.annotation.CacheEvict;
+import org.springframework.cache.annotation.Cacheable;
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
@@ -12,6 +14,7 @@ import org.springframework.data.domain.Pageable;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.reactive.function.client.WebClientResponseException;
 import reactor.core.publisher.Mono;
+import uk.gov.justice.digital.hmpps.whereabouts.config.CacheConfiguration;
 import uk.gov.justice.digital.hmpps.whereabouts.dto.BookingActivity;
 import uk.gov.justice.digital.hmpps.whereabouts.dto.CellMoveResult;
 import uk.gov.justice.digital.hmpps.whereabouts.dto.CreateBookingAppointment;
@@ -43,6 +46,17 @@ import java.util.Set;
 import static org.springframework.http.HttpStatus.BAD_REQUEST;
 import static org.springframework.http.HttpStatus.NOT_FOUND;
 
+/**
+ * Client for the Prison API. Each call is available in two forms: a blocking one that returns the
+ * result directly, and an {@code ...Async} one returning a {@link Mono} that only makes the request
+ * when subscribed. The blocking form is the async one followed by {@code block()}, so both send the
+ * same request and map errors the same way.
+ * <p>
+ * Callers that can overlap a Prison API round-trip with other work, or hand the {@link Mono} straight
+ * back to Spring MVC, should use the async form so the request thread is not parked for the duration.
+ * The {@link Mono} must still be subscribed on the request thread: that is where the current user is
+ * picked up for the token request.
+ */
 public abstract class PrisonApi {
     private static final Logger logger = LoggerFactory.getLogger(PrisonApi.class);
     private final WebClient webClient;
@@ -82,7 +96,11 @@ public abstract class PrisonApi {
     }
 
     public void putAttendance(final Long bookingId, final long activityId, final EventOutcome eventOutcome) {
-        webClient.put()
+        putAttendanceAsync(bookingId, activityId, eventOutcome).block();
+    }
+
+    public Mono<Void> putAttendanceAsync(final Long bookingId, final long activityId, final EventOutcome eventOutcome) {
+        return webClient.put()
             .uri("/bookings/{bookingId}/activities/{activityId}/attendance?lockTimeout=true", bookingId, activityId)
             .bodyValue(eventOutcome)
             .retrieve()
@@ -91,11 +109,15 @@ public abstract class PrisonApi {
                 WebClientResponseException.class,
                 e -> Mono.error(e.getStatusCode().value() == 423 ? new DatabaseRowLockedException() : e)
             )
-            .block();
+            .then();
     }
 
     public void putAttendanceForMultipleBookings(final Set<BookingActivity> bookingActivities, final EventOutcome eventOutcome) {
-        webClient.put()
+        putAttendanceForMultipleBookingsAsync(bookingActivities, eventOutcome).block();
+    }
+
+    public Mono<Void> putAttendanceForMultipleBookingsAsync(final Set<BookingActivity> bookingActivities, final EventOutcome eventOutcome) {
+        return webClient.put()
             .uri("/bookings/activities/attendance")
             .bodyValue(new EventOutcomesDto(
                 eventOutcome.getEventOutcome(),
@@ -105,7 +127,11 @@ public abstract class PrisonApi {
             ))
             .retrieve()
             .bodyToMono(String.class)
-            .block();
+            .onErrorResume(
+                WebClientResponseException.class,
+                e -> Mono.error(e.getStatusCode().value() == 423 ? new DatabaseRowLockedException() : e)
+            )
+            .then();
     }
 
     @Data
@@ -116,8 +142,14 @@ public abstract class PrisonApi {
 
     public Page<OffenderAttendance> getAttendanceForOffender(final String offenderNo, final LocalDate fromDate, final LocalDate toDate,
                                                              final String outcome, final Pageable pageable) {
+        return getAttendanceForOffenderAsync(offenderNo, fromDate, toDate, outcome, pageable)
+            .switchIfEmpty(Mono.error(() -> new RuntimeException("No data returned")))
+            .block();
+    }
 
-        final var data = webClient.get()
+    public Mono<Page<OffenderAttendance>> getAttendanceForOffenderAsync(final String offenderNo, final LocalDate fromDate, final LocalDate toDate,
+                                                                        final String outcome, final Pageable pageable) {
+        return webClient.get()
             .uri(uriBuilder -> uriBuilder
                 .path("/offender-activities/{offenderNo}/attendance-history")
                 .queryParam("fromDate", fromDate)
@@ -128,38 +160,57 @@ public abstract class PrisonApi {
                 .build(offenderNo))
             .retrieve()
             .bodyToMono(AttendancePage.class)
-            .block();
-        if (data == null) {
-            throw new RuntimeException("No data returned");
-        }
-        if (data.getTotalPages() > 1) {
-            throw new RuntimeException("Too many rows returned");
-        }
-        return new PageImpl<>(data.content, pageable, data.totalPages);
+            .handle((data, sink) -> {
+                if (data.getTotalPages() > 1) {
+                    sink.error(new RuntimeException("Too many rows returned"));
+                } else {
+                    sink.next(new PageImpl<>(data.content, pageable, data.totalPages));
+                }
+            });
     }
 
     public List<PrisonerScheduleDto> getScheduledActivities(final String prisonId, final LocalDate date, final TimePeriod period) {
+        return Objects.requireNonNull(getScheduledActivitiesAsync(prisonId, date, period).block());
+    }
+
+    /**
+     * Cached briefly per prison, date and period, as many members of staff ask for the same schedule at once.
+     * Unlike the other async calls, the request is made when this is called rather than when the {@link Mono}
+     * is subscribed, so that concurrent callers can share it.
+     */
+    @Cacheable(cacheNames = CacheConfiguration.SCHEDULED_ACTIVITIES, sync = true)
+    public Mono<List<PrisonerScheduleDto>> getScheduledActivitiesAsync(final String prisonId, final LocalDate date, final TimePeriod period) {
         final var responseType = new ParameterizedTypeReference<List<PrisonerScheduleDto>>() {
         };
 
-        return Objects.requireNonNull(webClient.get()
+        return webClient.get()
             .uri("/schedules/{prisonId}/activities?date={date}&timeSlot={period}", prisonId, date, period)
             .retrieve()
-            .bodyToMono(responseType)
-            .block());
+            .bodyToMono(responseType);
+    }
+
+    @CacheEvict(cacheNames = CacheConfiguration.SCHEDULED_ACTIVITIES)
+    public void evictScheduledActivities(final String prisonId, final LocalDate date, final TimePeriod period) {
     }
 
     public String getOffenderNoFromBookingId(final Long bookingId) {
+        return getOffenderNoFromBookingIdAsync(bookingId).block();
+    }
+
+    public Mono<String> getOffenderNoFromBookingIdAsync(final Long bookingId) {
         return webClient.get()
             .uri("/bookings/{bookingId}?basicInfo=true", bookingId)
             .retrieve()
             .bodyToMono(Map.class)
             .map(entry -> entry.get("offenderNo"))
-            .cast(String.class)
-            .block();
+            .cast(String.class);
     }
 
     public List<OffenderBooking> getOffenderDetailsFromOffenderNos(final Collection<String> offenderNos, boolean isActive) {
+        return getOffenderDetailsFromOffenderNosAsync(offenderNos, isActive).block();
+    }
+
+    public Mono<List<OffenderBooking>> getOffenderDetailsFromOffenderNosAsync(final Collection<String> offenderNos, boolean isActive) {
         final var responseType = new ParameterizedTypeReference<List<OffenderBooking>>() {
         };
 
@@ -167,12 +218,16 @@ public abstract class PrisonApi {
             .uri("/bookings/offenders?activeOnly={isActive}", isActive)
             .bodyValue(offenderNos)
             .retrieve()
-            .bodyToMono(responseType)
-            .block();
+            .bodyToMono(responseType);
     }
 
     public List<OffenderDetails> getScheduleActivityOffenderData(final String prisonId,
                                                                  final Set<Long> eventIds) {
+        return getScheduleActivityOffenderDataAsync(prisonId, eventIds).block();
+    }
+
+    public Mono<List<OffenderDetails>> getScheduleActivityOffenderDataAsync(final String prisonId,
+                                                                            final Set<Long> eventIds) {
         final var responseType = new ParameterizedTypeReference<List<OffenderDetails>>() {
         };
 
@@ -180,8 +235,7 @@ public abstract class PrisonApi {
             .uri("/schedules/{prisonId}/activities-by-event-ids", prisonId)
             .bodyValue(eventIds)
             .retrieve()
-            .bodyToMono(responseType)
-            .block();
+            .bodyToMono(responseType);
     }
 
     public PrisonerActivitiesCount getScheduleActivityCounts(final String prisonId,
@@ -189,6 +243,15 @@ public abstract class PrisonApi {
                                                              final LocalDate toDate,
                                                              final Set<TimePeriod> periods,
                                                              final Map<Long, Integer> attendancesBookingIdsCount
+    ) {
+        return getScheduleActivityCountsAsync(prisonId, fromDate, toDate, periods, attendancesBookingIdsCount).block();
+    }
+
+    public Mono<PrisonerActivitiesCount> getScheduleActivityCountsAsync(final String prisonId,
+                                                                        final LocalDate fromDate,
+                                                                        final LocalDate toDate,
+                                                                        final Set<TimePeriod> periods,
+                                                                        final Map<Long, Integer> attendancesBookingIdsCount
     ) {
         return webClient.post()
             .uri("/schedules/{prisonId}/count-activities",
@@ -198,8 +261,7 @@ public abstract class PrisonApi {
                     .build(prisonId))
             .bodyValue(attendancesBookingIdsCount)
             .retrieve()
-            .bodyToMono(PrisonerActivitiesCount.class)
-            .block();
+            .bodyToMono(PrisonerActivitiesCount.class);
     }
     /**
      * Version of getAgencyLocationsForType that does not check that the invoker has the selected agency in their caseload.
@@ -258,6 +320,10 @@ public abstract class PrisonApi {
     }
 
     public List<CreatedAppointmentDetailsDto> createAppointments(final CreatePrisonAppointment createPrisonAppointment) {
+        return createAppointmentsAsync(createPrisonAppointment).block();
+    }
+
+    public Mono<List<CreatedAppointmentDetailsDto>> createAppointmentsAsync(final CreatePrisonAppointment createPrisonAppointment) {
         final var responseType = new ParameterizedTypeReference<List<CreatedAppointmentDetailsDto>>() {
         };
 
@@ -265,11 +331,14 @@ public abstract class PrisonApi {
             .uri("/appointments")
             .bodyValue(createPrisonAppointment)
             .retrieve()
-            .bodyToMono(responseType)
-            .block();
+            .bodyToMono(responseType);
     }
 
     public CellMoveResult putCellMove(final long bookingId, final String internalLocationDescription, final String reasonCode, final Boolean lockTimeout) {
+        return putCellMoveAsync(bookingId, internalLocationDescription, reasonCode, lockTimeout).block();
+    }
+
+    public Mono<CellMoveResult> putCellMoveAsync(final long bookingId, final String internalLocationDescription, final String reasonCode, final Boolean lockTimeout) {
         final var responseType = new ParameterizedTypeReference<CellMoveResult>() {
         };
 
@@ -281,23 +350,30 @@ public abstract class PrisonApi {
             .onErrorResume(
                 WebClientResponseException.class,
                 e -> Mono.error(e.getStatusCode().value() == 423 ? new DatabaseRowLockedException() : e))
-            .timeout(Duration.ofSeconds(12))
-            .block();
+            .timeout(Duration.ofSeconds(12));
     }
 
     public PrisonAppointment getPrisonAppointment(long appointmentId) {
+        return getPrisonAppointmentAsync(appointmentId).blockOptional().orElse(null);
+    }
+
+    /**
+     * Completes empty rather than with an error when the appointment does not exist.
+     */
+    public Mono<PrisonAppointment> getPrisonAppointmentAsync(long appointmentId) {
         return webClient.get()
             .uri("/appointments/{appointmentId}", appointmentId)
             .retrieve()
             .bodyToMono(PrisonAppointment.class)
-            .onErrorResume(WebClientResponseException.NotFound.class, notFound -> Mono.empty())
-            .blockOptional()
-            .orElse(null);
+            .onErrorResume(WebClientResponseException.NotFound.class, notFound -> Mono.empty());
     }
 
     public void deleteAppointment(final Long appointmentId, final EventPropagation propagation) {
+        deleteAppointmentAsync(appointmentId, propagation).block();
+    }
 
-        webClient.delete()
+    public Mono<Void> deleteAppointmentAsync(final Long appointmentId, final EventPropagation propagation) {
+        return webClient.delete()
             .uri("/appointments/{appointmentId}", appointmentId)
             .header("no-event-propagation", propagation.doNotPropagate())
             .retrieve()
@@ -306,10 +382,14 @@ public abstract class PrisonApi {
                 logger.info("Ignoring appointment with id: '{}' that does not exist in nomis", appointmentId);
                 return Mono.empty();
             })
-            .block();
+            .then();
     }
 
     public List<ScheduledAppointmentSearchDto> getScheduledAppointments(final String agencyId, final LocalDate date, final TimePeriod timeSlot, final Long locationId) {
+        return getScheduledAppointmentsAsync(agencyId, date, timeSlot, locationId).block();
+    }
+
+    public Mono<List<ScheduledAppointmentSearchDto>> getScheduledAppointmentsAsync(final String agencyId, final LocalDate date, final TimePeriod timeSlot, final Long locationId) {
         return webClient.get()
             .uri(uriBuilder -> uriBuilder
                 .path("/schedules/{agencyId}/appointments")
@@ -319,8 +399,7 @@ public abstract class PrisonApi {
                 .build(agencyId, date))
             .retrieve()
             .bodyToMono(new ParameterizedTypeReference<List<ScheduledAppointmentSearchDto>>() {
-            })
-            .block();
+            });
     }
 
     public LocationDto getLocation(long locationId) {
@@ -334,13 +413,17 @@ public abstract class PrisonApi {
     }
 
     public void deleteAppointments(final List<Long> appointmentIds, final EventPropagation propagation) {
-        webClient.post()
+        deleteAppointmentsAsync(appointmentIds, propagation).block();
+    }
+
+    public Mono<Void> deleteAppointmentsAsync(final List<Long> appointmentIds, final EventPropagation propagation) {
+        return webClient.post()
             .uri("/appointments/delete")
             .bodyValue(appointmentIds)
             .header("no-event-propagation", propagation.doNotPropagate())
             .retrieve()
             .toBodilessEntity()
-            .block();
+            .then();
     }
 
     public List<ScheduledEventDto> getScheduledEvents(final String offenderNo, final LocalDate fromDate, final LocalDate toDate) {
@@ -0,0 +1,17 @@
+CREATE TABLE ATTENDANCE_DAILY_ROLLUP
+(
+  PRISON_ID                       VARCHAR(6)      NOT NULL,
+  EVENT_DATE                      DATE            NOT NULL,
+  PERIOD                          VARCHAR(2)      NOT NULL,
+  ABSENT_REASON                   VARCHAR(40)     NOT NULL,
+  ATTENDED                        BOOLEAN         NOT NULL,
+  ATTENDANCE_COUNT                INTEGER         NOT NULL,
+  CONSTRAINT ATTENDANCE_DAILY_ROLLUP_PK PRIMARY KEY (PRISON_ID, EVENT_DATE, PERIOD, ABSENT_REASON, ATTENDED)
+);
+
+COMMENT ON TABLE ATTENDANCE_DAILY_ROLLUP IS 'Number of attendances per prison, day, period, absent reason (NONE when attended) and attended flag, kept current by the attendance write paths';
+
+INSERT INTO ATTENDANCE_DAILY_ROLLUP (PRISON_ID, EVENT_DATE, PERIOD, ABSENT_REASON, ATTENDED, ATTENDANCE_COUNT)
+SELECT PRISON_ID, EVENT_DATE, PERIOD, COALESCE(ABSENT_REASON, 'NONE'), COALESCE(ATTENDED, FALSE), COUNT(*)
+FROM OFFENDER_ATTENDANCE
+GROUP BY PRISON_ID, EVENT_DATE, PERIOD, COALESCE(ABSENT_REASON, 'NONE'), COALESCE(ATTENDED, FALSE);
@@ -0,0 +1,4 @@
+-- Hibernate allocates attendance ids 50 at a time from this sequence, so bulk saves can be sent as JDBC batches.
+-- On PostgreSQL it is the sequence the SERIAL column already uses; other databases get one of the same name.
+CREATE SEQUENCE IF NOT EXISTS OFFENDER_ATTENDANCE_ID_SEQ;
+ALTER SEQUENCE OFFENDER_ATTENDANCE_ID_SEQ INCREMENT BY 50;
@@ -0,0 +1,17 @@
+CREATE TABLE ATTENDANCE_OUTBOX
+(
+  ID                              BIGSERIAL       PRIMARY KEY,
+  ATTENDANCE_ID                   BIGINT          NOT NULL,
+  CREATED                         BOOLEAN         NOT NULL,
+  PREVIOUS_ABSENT_REASON          VARCHAR(40),
+  ATTEMPTS                        INTEGER         NOT NULL,
+  NEXT_ATTEMPT_AT                 TIMESTAMP       NOT NULL,
+  LAST_ERROR                      VARCHAR(255),
+  CREATE_DATETIME                 TIMESTAMP       NOT NULL,
+  CREATE_USER_ID                  VARCHAR(32)
+);
+
+COMMENT ON TABLE ATTENDANCE_OUTBOX IS 'Attendance changes still to be sent to NOMIS and the case notes service, written in the same transaction as the change';
+
+CREATE INDEX ATTENDANCE_OUTBOX_ATTENDANCE_ID_IDX ON ATTENDANCE_OUTBOX (ATTENDANCE_ID);
+CREATE INDEX ATTENDANCE_OUTBOX_NEXT_ATTEMPT_AT_IDX ON ATTENDANCE_OUTBOX (NEXT_ATTEMPT_AT);
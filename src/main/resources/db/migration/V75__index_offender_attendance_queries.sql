@@ -0,0 +1,58 @@
+-- Attendances recorded more than once for the same booking, event and session by racing requests are merged, so
+-- that the unique index below can be built. The one kept is the one changed last, as that is the one NOMIS was sent
+-- last; each of the others is paired with it here.
+CREATE TABLE OFFENDER_ATTENDANCE_MERGE AS
+SELECT ID, KEPT_ID
+FROM (
+  SELECT ID, FIRST_VALUE(ID) OVER (
+    PARTITION BY PRISON_ID, BOOKING_ID, EVENT_DATE, PERIOD, EVENT_ID
+    ORDER BY COALESCE(MODIFY_DATETIME, CREATE_DATETIME) DESC, ID DESC
+  ) AS KEPT_ID
+  FROM OFFENDER_ATTENDANCE
+) RANKED
+WHERE ID <> KEPT_ID;
+
+-- Their changes move across to the one kept
+UPDATE ATTENDANCE_CHANGES
+SET ATTENDANCE_ID = (SELECT KEPT_ID FROM OFFENDER_ATTENDANCE_MERGE WHERE OFFENDER_ATTENDANCE_MERGE.ID = ATTENDANCE_CHANGES.ATTENDANCE_ID)
+WHERE ATTENDANCE_ID IN (SELECT ID FROM OFFENDER_ATTENDANCE_MERGE);
+
+-- As does a case note raised for one of them when the one kept has none, the latest if there are several
+UPDATE OFFENDER_ATTENDANCE
+SET CASE_NOTE_ID = (
+  SELECT MAX(DUPLICATE.CASE_NOTE_ID)
+  FROM OFFENDER_ATTENDANCE_MERGE
+  JOIN OFFENDER_ATTENDANCE DUPLICATE ON DUPLICATE.ID = OFFENDER_ATTENDANCE_MERGE.ID
+  WHERE OFFENDER_ATTENDANCE_MERGE.KEPT_ID = OFFENDER_ATTENDANCE.ID
+)
+WHERE CASE_NOTE_ID IS NULL
+  AND ID IN (SELECT KEPT_ID FROM OFFENDER_ATTENDANCE_MERGE);
+
+DELETE FROM OFFENDER_ATTENDANCE
+WHERE ID IN (SELECT ID FROM OFFENDER_ATTENDANCE_MERGE);
+
+DROP TABLE OFFENDER_ATTENDANCE_MERGE;
+
+-- The duplicates removed were counted in the rollup, so it is recounted as when it was created
+DELETE FROM ATTENDANCE_DAILY_ROLLUP;
+
+INSERT INTO ATTENDANCE_DAILY_ROLLUP (PRISON_ID, EVENT_DATE, PERIOD, ABSENT_REASON, ATTENDED, ATTENDANCE_COUNT)
+SELECT PRISON_ID, EVENT_DATE, PERIOD, COALESCE(ABSENT_REASON, 'NONE'), COALESCE(ATTENDED, FALSE), COUNT(*)
+FROM OFFENDER_ATTENDANCE
+GROUP BY PRISON_ID, EVENT_DATE, PERIOD, COALESCE(ABSENT_REASON, 'NONE'), COALESCE(ATTENDED, FALSE);
+
+-- One attendance per booking, event and session. Also serves lookups by prison and bookings over a date range.
+CREATE UNIQUE INDEX OFFENDER_ATTENDANCE_SESSION_UK ON OFFENDER_ATTENDANCE (PRISON_ID, BOOKING_ID, EVENT_DATE, PERIOD, EVENT_ID);
+
+-- Whole-prison reads for a day or date range and period: absences, unaccounted for, and the rollup recount, which
+-- groups by the trailing columns and can be answered from the index alone
+CREATE INDEX OFFENDER_ATTENDANCE_SESSION_IDX ON OFFENDER_ATTENDANCE (PRISON_ID, EVENT_DATE, PERIOD, ABSENT_REASON, ATTENDED);
+
+-- Absences for one reason over a date range
+CREATE INDEX OFFENDER_ATTENDANCE_REASON_IDX ON OFFENDER_ATTENDANCE (PRISON_ID, ABSENT_REASON, EVENT_DATE, PERIOD);
+
+-- Covered by the leading column of each of the indexes above
+DROP INDEX OFFENDER_ATTENDANCE_AI_IDX;
+
+-- Changes are found and deleted by attendance, including when an offender's attendances are deleted
+CREATE INDEX ATTENDANCE_CHANGES_ATTENDANCE_ID_IDX ON ATTENDANCE_CHANGES (ATTENDANCE_ID);
@@ -0,0 +1,4 @@
+-- Key sent by a client with a new attendance, so that a retried request is answered with the attendance it created
+ALTER TABLE OFFENDER_ATTENDANCE ADD COLUMN IDEMPOTENCY_KEY VARCHAR(64);
+
+CREATE UNIQUE INDEX OFFENDER_ATTENDANCE_IDEMPOTENCY_KEY_UK ON OFFENDER_ATTENDANCE (IDEMPOTENCY_KEY);
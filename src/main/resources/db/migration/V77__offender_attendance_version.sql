@@ -0,0 +1,2 @@
+-- Incremented on every update of an attendance, so that updates can be made conditional on the version read
+ALTER TABLE OFFENDER_ATTENDANCE ADD COLUMN VERSION BIGINT DEFAULT 0 NOT NULL;
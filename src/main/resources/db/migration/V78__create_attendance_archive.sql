@@ -0,0 +1,51 @@
+-- Attendances, and their changes, for months long since locked, moved out of OFFENDER_ATTENDANCE and
+-- ATTENDANCE_CHANGES by the archival job so that the tables, and their indexes, only hold what is still being worked
+-- on. Rows are copied unchanged and never updated once here.
+CREATE TABLE OFFENDER_ATTENDANCE_ARCHIVE
+(
+  ID                              BIGINT          PRIMARY KEY,
+  BOOKING_ID                      BIGINT          NOT NULL,
+  EVENT_ID                        BIGINT          NOT NULL,
+  EVENT_DATE                      DATE            NOT NULL,
+  EVENT_LOCATION_ID               BIGINT          NOT NULL,
+  PERIOD                          VARCHAR(2)      NOT NULL,
+  PRISON_ID                       VARCHAR(6)      NOT NULL,
+  ATTENDED                        BOOLEAN,
+  PAID                            BOOLEAN,
+  ABSENT_REASON                   VARCHAR(40),
+  ABSENT_SUB_REASON               VARCHAR(30),
+  COMMENTS                        VARCHAR(500),
+  CASE_NOTE_ID                    BIGINT,
+  CREATE_DATETIME                 TIMESTAMP       NOT NULL,
+  CREATE_USER_ID                  VARCHAR(32)     NOT NULL,
+  MODIFY_DATETIME                 TIMESTAMP,
+  MODIFY_USER_ID                  VARCHAR(32),
+  VERSION                         BIGINT          NOT NULL
+);
+
+COMMENT ON TABLE OFFENDER_ATTENDANCE_ARCHIVE IS 'Attendances for months that are closed, moved out of OFFENDER_ATTENDANCE';
+
+-- History for bookings over a date range, and removal of an offender's attendances
+CREATE INDEX OFFENDER_ATTENDANCE_ARCHIVE_BOOKING_IDX ON OFFENDER_ATTENDANCE_ARCHIVE (BOOKING_ID, EVENT_DATE);
+
+-- Rollup rebuilds and checks for a prison
+CREATE INDEX OFFENDER_ATTENDANCE_ARCHIVE_PRISON_IDX ON OFFENDER_ATTENDANCE_ARCHIVE (PRISON_ID, EVENT_DATE, PERIOD);
+
+CREATE TABLE ATTENDANCE_CHANGES_ARCHIVE
+(
+  ID                              BIGINT          PRIMARY KEY,
+  ATTENDANCE_ID                   BIGINT          NOT NULL REFERENCES OFFENDER_ATTENDANCE_ARCHIVE (ID),
+  CHANGED_FROM                    VARCHAR(40)     NOT NULL,
+  CHANGED_TO                      VARCHAR(40)     NOT NULL,
+  CREATE_DATETIME                 TIMESTAMP       NOT NULL,
+  CREATE_USER_ID                  VARCHAR(32),
+  MODIFY_DATETIME                 TIMESTAMP,
+  MODIFY_USER_ID                  VARCHAR(32)
+);
+
+COMMENT ON TABLE ATTENDANCE_CHANGES_ARCHIVE IS 'Changes to the attendances in OFFENDER_ATTENDANCE_ARCHIVE, moved out of ATTENDANCE_CHANGES with them';
+
+CREATE INDEX ATTENDANCE_CHANGES_ARCHIVE_ATTENDANCE_ID_IDX ON ATTENDANCE_CHANGES_ARCHIVE (ATTENDANCE_ID);
+
+-- Candidates for archiving are found by date
+CREATE INDEX OFFENDER_ATTENDANCE_EVENT_DATE_IDX ON OFFENDER_ATTENDANCE (EVENT_DATE);
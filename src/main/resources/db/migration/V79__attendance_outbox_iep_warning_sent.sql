@@ -0,0 +1,3 @@
+-- Set, and committed, as soon as the incentive level warning for an entry has been dealt with, so that a retry after
+-- a later failure does not post the same warning again
+ALTER TABLE ATTENDANCE_OUTBOX ADD COLUMN IEP_WARNING_SENT BOOLEAN DEFAULT FALSE NOT NULL;
@@ -0,0 +1,5 @@
+-- Hibernate allocates attendance change ids 50 at a time from this sequence, so the change rows of a bulk update can
+-- be sent as JDBC batches. On PostgreSQL it is the sequence the SERIAL column already uses; other databases get one of
+-- the same name.
+CREATE SEQUENCE IF NOT EXISTS ATTENDANCE_CHANGES_ID_SEQ;
+ALTER SEQUENCE ATTENDANCE_CHANGES_ID_SEQ INCREMENT BY 50;
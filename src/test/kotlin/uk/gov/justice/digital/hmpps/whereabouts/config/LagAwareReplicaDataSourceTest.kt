@@ -0,0 +1,104 @@
+package uk.gov.justice.digital.hmpps.whereabouts.config
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.whenever
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.jdbc.datasource.DriverManagerDataSource
+import java.time.Clock
+import java.time.Duration
+import javax.sql.DataSource
+
+class LagAwareReplicaDataSourceTest {
+  private val primary = database("primary")
+  private val replica = database("replica")
+  private val clock: Clock = mock()
+
+  private val dataSource = LagAwareReplicaDataSource(
+    replica = replica,
+    primary = primary,
+    maxLag = Duration.ofSeconds(2),
+    lagCheckInterval = Duration.ofSeconds(5),
+    lagQuery = "select lag_seconds from replica_status",
+    clock = clock,
+  )
+
+  @BeforeEach
+  fun setUp() {
+    JdbcTemplate(replica).execute("create table replica_status (lag_seconds double precision)")
+    JdbcTemplate(replica).update("insert into replica_status values (0)")
+    whenever(clock.millis()).thenReturn(0)
+  }
+
+  @AfterEach
+  fun tearDown() {
+    JdbcTemplate(primary).execute("shutdown")
+    JdbcTemplate(replica).execute("shutdown")
+  }
+
+  @Test
+  fun `reads from the replica while it keeps up`() {
+    assertThat(connectedTo()).isEqualTo("replica")
+  }
+
+  @Test
+  fun `reads from the primary while the replica lags`() {
+    replicaLag(10.5)
+
+    assertThat(connectedTo()).isEqualTo("primary")
+  }
+
+  @Test
+  fun `only checks the lag once an interval`() {
+    assertThat(connectedTo()).isEqualTo("replica")
+
+    replicaLag(10.0)
+    whenever(clock.millis()).thenReturn(4_999)
+    assertThat(connectedTo()).isEqualTo("replica")
+
+    whenever(clock.millis()).thenReturn(5_000)
+    assertThat(connectedTo()).isEqualTo("primary")
+
+    replicaLag(1.0)
+    whenever(clock.millis()).thenReturn(9_999)
+    assertThat(connectedTo()).isEqualTo("primary")
+
+    whenever(clock.millis()).thenReturn(10_000)
+    assertThat(connectedTo()).isEqualTo("replica")
+  }
+
+  @Test
+  fun `reads from the primary when the lag cannot be checked`() {
+    JdbcTemplate(replica).execute("drop table replica_status")
+
+    assertThat(connectedTo()).isEqualTo("primary")
+  }
+
+  @Test
+  fun `reads from the primary when the replica is down`() {
+    val down = LagAwareReplicaDataSource(
+      replica = DriverManagerDataSource("jdbc:h2:mem:replica-down;IFEXISTS=TRUE"),
+      primary = primary,
+      maxLag = Duration.ofSeconds(2),
+      lagCheckInterval = Duration.ofSeconds(5),
+      lagQuery = "select 0",
+      clock = clock,
+    )
+
+    assertThat(JdbcTemplate(down).queryForObject("select name from which_database", String::class.java)).isEqualTo("primary")
+  }
+
+  private fun connectedTo(): String? = JdbcTemplate(dataSource).queryForObject("select name from which_database", String::class.java)
+
+  private fun replicaLag(seconds: Double) {
+    JdbcTemplate(replica).update("update replica_status set lag_seconds = ?", seconds)
+  }
+
+  private fun database(name: String): DataSource = DriverManagerDataSource("jdbc:h2:mem:$name;DB_CLOSE_DELAY=-1").also {
+    JdbcTemplate(it).execute("create table which_database (name varchar(10))")
+    JdbcTemplate(it).update("insert into which_database values (?)", name)
+  }
+}
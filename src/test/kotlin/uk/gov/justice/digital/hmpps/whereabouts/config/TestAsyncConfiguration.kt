@@ -12,4 +12,7 @@ class TestAsyncConfiguration {
 
   @Bean
   fun asyncExecutor(): Executor? = SyncTaskExecutor()
+
+  @Bean
+  fun attendanceOutboxExecutor(): Executor? = SyncTaskExecutor()
 }
@@ -0,0 +1,99 @@
+package uk.gov.justice.digital.hmpps.whereabouts.config
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import org.mockito.kotlin.any
+import org.mockito.kotlin.argumentCaptor
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.times
+import org.mockito.kotlin.verify
+import org.mockito.kotlin.whenever
+import org.springframework.security.authentication.AnonymousAuthenticationToken
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken
+import org.springframework.security.core.Authentication
+import org.springframework.security.core.authority.AuthorityUtils
+import org.springframework.security.oauth2.client.OAuth2AuthorizeRequest
+import org.springframework.security.oauth2.client.endpoint.OAuth2AccessTokenResponseClient
+import org.springframework.security.oauth2.client.endpoint.OAuth2ClientCredentialsGrantRequest
+import org.springframework.security.oauth2.client.registration.ClientRegistration
+import org.springframework.security.oauth2.client.registration.InMemoryClientRegistrationRepository
+import org.springframework.security.oauth2.core.AuthorizationGrantType
+import org.springframework.security.oauth2.core.OAuth2AccessToken
+import org.springframework.security.oauth2.core.endpoint.OAuth2AccessTokenResponse
+import java.time.Clock
+import java.time.Instant
+import java.time.ZoneId
+
+class UsernameAwareAuthorizedClientManagerTest {
+  private val registration = ClientRegistration.withRegistrationId("elite2-api")
+    .clientId("whereabouts")
+    .clientSecret("secret")
+    .authorizationGrantType(AuthorizationGrantType.CLIENT_CREDENTIALS)
+    .tokenUri("http://localhost:8090/auth/oauth/token")
+    .build()
+  private val tokenResponseClient: OAuth2AccessTokenResponseClient<OAuth2ClientCredentialsGrantRequest> = mock()
+  private val clock = MutableClock(Instant.now())
+  private val manager = UsernameAwareAuthorizedClientManager(
+    InMemoryClientRegistrationRepository(registration),
+    tokenResponseClient,
+    clock,
+  )
+
+  @Test
+  fun `requests the token with the username of the principal`() {
+    whenever(tokenResponseClient.getTokenResponse(any())).thenReturn(tokenResponse("token-bob"))
+
+    val client = manager.authorize(authorizeRequest(user("BOB")))
+
+    assertThat(client?.accessToken?.tokenValue).isEqualTo("token-bob")
+    argumentCaptor<OAuth2ClientCredentialsGrantRequest>().apply {
+      verify(tokenResponseClient).getTokenResponse(capture())
+      assertThat((firstValue as UsernameClientCredentialsGrantRequest).username).isEqualTo("BOB")
+    }
+  }
+
+  @Test
+  fun `anonymous calls request the token without a username`() {
+    whenever(tokenResponseClient.getTokenResponse(any())).thenReturn(tokenResponse("token-system"))
+
+    manager.authorize(authorizeRequest(AnonymousAuthenticationToken("key", "anonymousUser", AuthorityUtils.createAuthorityList("ROLE_ANONYMOUS"))))
+
+    argumentCaptor<OAuth2ClientCredentialsGrantRequest>().apply {
+      verify(tokenResponseClient).getTokenResponse(capture())
+      assertThat((firstValue as UsernameClientCredentialsGrantRequest).username).isNull()
+    }
+  }
+
+  @Test
+  fun `reuses a cached token per user until it is about to expire`() {
+    whenever(tokenResponseClient.getTokenResponse(any()))
+      .thenReturn(tokenResponse("token-bob-1"), tokenResponse("token-jane"), tokenResponse("token-bob-2"))
+
+    assertThat(manager.authorize(authorizeRequest(user("BOB")))?.accessToken?.tokenValue).isEqualTo("token-bob-1")
+    assertThat(manager.authorize(authorizeRequest(user("BOB")))?.accessToken?.tokenValue).isEqualTo("token-bob-1")
+    assertThat(manager.authorize(authorizeRequest(user("JANE")))?.accessToken?.tokenValue).isEqualTo("token-jane")
+
+    // tokens last an hour and are refreshed a minute early
+    clock.now = clock.now.plusSeconds(3541)
+    assertThat(manager.authorize(authorizeRequest(user("BOB")))?.accessToken?.tokenValue).isEqualTo("token-bob-2")
+
+    verify(tokenResponseClient, times(3)).getTokenResponse(any())
+  }
+
+  private fun user(username: String) = UsernamePasswordAuthenticationToken(username, null, emptyList())
+
+  private fun authorizeRequest(principal: Authentication) = OAuth2AuthorizeRequest.withClientRegistrationId("elite2-api")
+    .principal(principal)
+    .build()
+
+  private fun tokenResponse(token: String) = OAuth2AccessTokenResponse.withToken(token)
+    .tokenType(OAuth2AccessToken.TokenType.BEARER)
+    .expiresIn(3600)
+    .build()
+
+  private class MutableClock(var now: Instant) : Clock() {
+    override fun getZone(): ZoneId = ZoneId.of("UTC")
+    override fun withZone(zone: ZoneId?): Clock = this
+    override fun instant(): Instant = now
+  }
+}
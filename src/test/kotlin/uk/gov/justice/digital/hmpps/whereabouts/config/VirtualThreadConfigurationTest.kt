@@ -0,0 +1,29 @@
+package uk.gov.justice.digital.hmpps.whereabouts.config
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import org.springframework.core.task.SimpleAsyncTaskExecutor
+import org.springframework.core.task.SyncTaskExecutor
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.TimeUnit
+
+class VirtualThreadConfigurationTest {
+
+  @Test
+  fun `sqs messages are processed on the listener thread without virtual threads`() {
+    val executor = VirtualThreadConfiguration(virtualThreadsEnabled = false).sqsListenerExecutor()
+
+    assertThat(executor).isInstanceOf(SyncTaskExecutor::class.java)
+  }
+
+  @Test
+  fun `sqs messages are processed on a virtual thread with virtual threads`() {
+    val executor = VirtualThreadConfiguration(virtualThreadsEnabled = true).sqsListenerExecutor()
+    val ranOnVirtualThread = CompletableFuture<Boolean>()
+
+    executor.execute { ranOnVirtualThread.complete(Thread.currentThread().isVirtual) }
+
+    assertThat(executor).isInstanceOf(SimpleAsyncTaskExecutor::class.java)
+    assertThat(ranOnVirtualThread.get(5, TimeUnit.SECONDS)).isTrue()
+  }
+}
@@ -0,0 +1,40 @@
+package uk.gov.justice.digital.hmpps.whereabouts.config
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+
+class VirtualThreadPinningMonitorTest {
+
+  @Test
+  fun `pinning under hibernate or the connection pool comes from jpa`() {
+    val frames = listOf(
+      "java.lang.Object.wait0:-1",
+      "com.zaxxer.hikari.pool.HikariPool.getConnection:181",
+      "org.hibernate.engine.jdbc.connections.internal.DatasourceConnectionProviderImpl.getConnection:122",
+      "uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceService.createAttendance:180",
+    )
+
+    assertThat(classifyPinningSource(frames)).isEqualTo("jpa")
+  }
+
+  @Test
+  fun `pinning under spring security oauth2 comes from oauth`() {
+    val frames = listOf(
+      "jdk.internal.misc.Unsafe.park:-1",
+      "org.springframework.security.oauth2.client.AuthorizedClientServiceOAuth2AuthorizedClientManager.authorize:144",
+      "uk.gov.justice.digital.hmpps.whereabouts.services.PrisonApiService.getScheduleActivityCounts:52",
+    )
+
+    assertThat(classifyPinningSource(frames)).isEqualTo("oauth")
+  }
+
+  @Test
+  fun `pinning anywhere else is other`() {
+    val frames = listOf(
+      "java.lang.ClassLoader.loadClass:526",
+      "uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceService.toAttendanceDto:412",
+    )
+
+    assertThat(classifyPinningSource(frames)).isEqualTo("other")
+  }
+}
@@ -3,6 +3,8 @@ package uk.gov.justice.digital.hmpps.whereabouts.controllers
 import org.junit.jupiter.api.Test
 import org.mockito.ArgumentMatchers.anyLong
 import org.mockito.kotlin.any
+import org.mockito.kotlin.anyOrNull
+import org.mockito.kotlin.verify
 import org.mockito.kotlin.whenever
 import org.springframework.boot.webmvc.test.autoconfigure.WebMvcTest
 import org.springframework.http.MediaType
@@ -12,9 +14,12 @@ import org.springframework.test.context.bean.override.mockito.MockitoBean
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put
 import org.springframework.test.web.servlet.result.MockMvcResultHandlers.print
+import org.springframework.test.web.servlet.result.MockMvcResultMatchers.header
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath
 import org.springframework.test.web.servlet.result.MockMvcResultMatchers.status
+import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.UpdateAttendanceDto
 import uk.gov.justice.digital.hmpps.whereabouts.model.TimePeriod
+import uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceConflict
 import uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceExists
 import uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceLocked
 import uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceNotFound
@@ -192,7 +197,7 @@ class AttendanceControllerTest : TestController() {
   @Test
   @WithMockUser(username = "ITAG_USER")
   fun `should return a 404 when attempting to update non existent attendance`() {
-    whenever(attendanceService.updateAttendance(anyLong(), any()))
+    whenever(attendanceService.updateAttendance(anyLong(), any(), anyOrNull()))
       .thenThrow(AttendanceNotFound())
 
     mockMvc.perform(
@@ -214,7 +219,7 @@ class AttendanceControllerTest : TestController() {
   @Test
   @WithMockUser(username = "ITAG_USER")
   fun `should return a http conflict when attendance already exists`() {
-    whenever(attendanceService.createAttendance(any())).thenThrow(AttendanceExists())
+    whenever(attendanceService.createAttendance(any(), anyOrNull())).thenThrow(AttendanceExists())
 
     mockMvc.perform(
       post("/attendance")
@@ -242,7 +247,7 @@ class AttendanceControllerTest : TestController() {
   @Test
   @WithMockUser(username = "ITAG_USER")
   fun `should return a http bad request when attempting to update a locked attendance record`() {
-    whenever(attendanceService.updateAttendance(anyLong(), any())).thenThrow(AttendanceLocked())
+    whenever(attendanceService.updateAttendance(anyLong(), any(), anyOrNull())).thenThrow(AttendanceLocked())
 
     val lockedMessage = "Attendance record is locked"
     mockMvc.perform(
@@ -262,4 +267,53 @@ class AttendanceControllerTest : TestController() {
       .andExpect(jsonPath(".developerMessage").value(lockedMessage))
       .andExpect(jsonPath(".userMessage").value(lockedMessage))
   }
+
+  @Test
+  @WithMockUser(username = "ITAG_USER")
+  fun `should update against the version in If-Match and return the new version as the ETag`() {
+    whenever(attendanceService.updateAttendance(anyLong(), any(), anyOrNull())).thenReturn(4)
+
+    mockMvc.perform(
+      put("/attendance/1")
+        .header("If-Match", "\"3\"")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content(objectMapper.writeValueAsString(mapOf("attended" to true, "paid" to true))),
+    )
+      .andDo(print())
+      .andExpect(status().isNoContent)
+      .andExpect(header().string("ETag", "\"4\""))
+
+    verify(attendanceService).updateAttendance(1, UpdateAttendanceDto(attended = true, paid = true), 3)
+  }
+
+  @Test
+  @WithMockUser(username = "ITAG_USER")
+  fun `should update any version when If-Match is a wildcard`() {
+    mockMvc.perform(
+      put("/attendance/1")
+        .header("If-Match", "*")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content(objectMapper.writeValueAsString(mapOf("attended" to true, "paid" to true))),
+    )
+      .andDo(print())
+      .andExpect(status().isNoContent)
+
+    verify(attendanceService).updateAttendance(1, UpdateAttendanceDto(attended = true, paid = true), null)
+  }
+
+  @Test
+  @WithMockUser(username = "ITAG_USER")
+  fun `should return a http conflict when the attendance has been changed since the version in If-Match`() {
+    whenever(attendanceService.updateAttendance(anyLong(), any(), anyOrNull())).thenThrow(AttendanceConflict())
+
+    mockMvc.perform(
+      put("/attendance/1")
+        .header("If-Match", "\"3\"")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content(objectMapper.writeValueAsString(mapOf("attended" to true, "paid" to true))),
+    )
+      .andDo(print())
+      .andExpect(status().isConflict)
+      .andExpect(jsonPath(".developerMessage").value("Attendance has been changed since it was read"))
+  }
 }
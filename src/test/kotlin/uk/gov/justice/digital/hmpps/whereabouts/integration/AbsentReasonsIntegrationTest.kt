@@ -1,5 +1,6 @@
 package uk.gov.justice.digital.hmpps.whereabouts.integration
 
+import org.assertj.core.api.Assertions.assertThat
 import org.junit.jupiter.api.Test
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AbsentReasonDto
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AbsentReasonsDto
@@ -60,4 +61,26 @@ class AbsentReasonsIntegrationTest : IntegrationTest() {
       .expectBody()
       .json(objectMapper.writeValueAsString(expected))
   }
+
+  @Test
+  fun `should answer a request carrying the current ETag with not modified`() {
+    val eTag = webTestClient.get()
+      .uri("/absence-reasons")
+      .headers(setHeaders())
+      .exchange()
+      .expectStatus().isOk
+      .expectHeader().valueMatches("Cache-Control", ".*max-age=3600.*")
+      .returnResult(String::class.java)
+      .responseHeaders.eTag
+
+    assertThat(eTag).startsWith("\"")
+
+    webTestClient.get()
+      .uri("/absence-reasons")
+      .headers(setHeaders())
+      .header("If-None-Match", eTag!!)
+      .exchange()
+      .expectStatus().isNotModified
+      .expectBody().isEmpty
+  }
 }
@@ -0,0 +1,132 @@
+package uk.gov.justice.digital.hmpps.whereabouts.integration
+
+import com.microsoft.applicationinsights.TelemetryClient
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import org.mockito.kotlin.mock
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.transaction.PlatformTransactionManager
+import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentReason
+import uk.gov.justice.digital.hmpps.whereabouts.model.Attendance
+import uk.gov.justice.digital.hmpps.whereabouts.model.AttendanceChange
+import uk.gov.justice.digital.hmpps.whereabouts.model.AttendanceChangeValues
+import uk.gov.justice.digital.hmpps.whereabouts.model.AttendanceOutboxEntry
+import uk.gov.justice.digital.hmpps.whereabouts.model.TimePeriod
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceArchiveRepository
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceChangesRepository
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceOutboxRepository
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceRepository
+import uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceArchiver
+import uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceService
+import java.time.Clock
+import java.time.Duration
+import java.time.LocalDate
+
+class AttendanceArchiveIntegrationTest : IntegrationTest() {
+
+  @Autowired
+  lateinit var attendanceRepository: AttendanceRepository
+
+  @Autowired
+  lateinit var attendanceChangesRepository: AttendanceChangesRepository
+
+  @Autowired
+  lateinit var attendanceArchiveRepository: AttendanceArchiveRepository
+
+  @Autowired
+  lateinit var attendanceOutboxRepository: AttendanceOutboxRepository
+
+  @Autowired
+  lateinit var attendanceService: AttendanceService
+
+  @Autowired
+  lateinit var transactionManager: PlatformTransactionManager
+
+  private val today = LocalDate.now()
+  private val bookingIds = mutableListOf<Long>()
+
+  // run as if two years on, so that everything recorded today is long since locked and in a closed month
+  private val archiver by lazy {
+    AttendanceArchiver(
+      attendanceRepository,
+      attendanceChangesRepository,
+      attendanceArchiveRepository,
+      mock<TelemetryClient>(),
+      Clock.offset(Clock.systemDefaultZone(), Duration.ofDays(730)),
+      transactionManager,
+      keepMonths = 13,
+      batchSize = 2,
+    )
+  }
+
+  @AfterEach
+  fun cleanUp() {
+    attendanceOutboxRepository.deleteAll()
+    attendanceChangesRepository.deleteAll()
+    attendanceRepository.deleteAll()
+    attendanceService.deleteAttendancesForOffenderDeleteEvent("A1234AA", bookingIds)
+  }
+
+  @Test
+  fun `moves closed months to the archive, where they can still be read as history`() {
+    val archived = (1..3).map { saveAttendance(today) }
+    attendanceChangesRepository.save(
+      AttendanceChange(attendance = archived[0], changedFrom = AttendanceChangeValues.Refused, changedTo = AttendanceChangeValues.Attended, createUserId = "user"),
+    )
+    val recent = saveAttendance(today.plusDays(700))
+
+    assertThat(archiver.archive()).isEqualTo(3)
+
+    assertThat(attendanceRepository.findAll().map { it.id }).containsExactly(recent.id)
+    assertThat(attendanceChangesRepository.findAll()).isEmpty()
+
+    val live = attendanceService.getAttendanceForBookingsOverDateRange("LEI", bookingIds.toSet(), today, today.plusDays(700), null)
+    assertThat(live.map { it.id }).containsExactly(recent.id)
+
+    val history = attendanceService.getAttendanceForBookingsOverDateRange("LEI", bookingIds.toSet(), today, today.plusDays(700), null, true)
+    assertThat(history.map { it.id }).containsExactlyInAnyOrderElementsOf(archived.map { it.id } + recent.id)
+    assertThat(history.first { it.id == archived[0].id }.absentReason).isEqualTo(AbsentReason.Refused)
+  }
+
+  @Test
+  fun `leaves attendances still waiting to be sent to NOMIS`() {
+    val waiting = saveAttendance(today)
+    attendanceOutboxRepository.save(AttendanceOutboxEntry(attendanceId = waiting.id, created = true, nextAttemptAt = today.atStartOfDay()))
+
+    assertThat(archiver.archive()).isEqualTo(0)
+    assertThat(attendanceRepository.findById(waiting.id)).isPresent
+  }
+
+  @Test
+  fun `offender deletion removes archived attendances too`() {
+    val attendance = saveAttendance(today)
+    attendanceChangesRepository.save(
+      AttendanceChange(attendance = attendance, changedFrom = AttendanceChangeValues.Refused, changedTo = AttendanceChangeValues.Attended, createUserId = "user"),
+    )
+    archiver.archive()
+
+    attendanceService.deleteAttendancesForOffenderDeleteEvent("A1234AA", bookingIds)
+
+    val history = attendanceService.getAttendanceForBookingsOverDateRange("LEI", bookingIds.toSet(), today, today, null, true)
+    assertThat(history).isEmpty()
+  }
+
+  private fun saveAttendance(eventDate: LocalDate): Attendance {
+    val bookingId = getNextBookingId().also { bookingIds += it }
+    return attendanceRepository.save(
+      Attendance.builder()
+        .bookingId(bookingId)
+        .paid(false)
+        .attended(false)
+        .absentReason(AbsentReason.Refused)
+        .eventDate(eventDate)
+        .eventId(2)
+        .eventLocationId(2)
+        .prisonId("LEI")
+        .period(TimePeriod.AM)
+        .createUserId("user")
+        .build(),
+    )
+  }
+}
@@ -5,17 +5,23 @@ import com.github.tomakehurst.wiremock.client.WireMock.matchingJsonPath
 import com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor
 import com.github.tomakehurst.wiremock.client.WireMock.putRequestedFor
 import com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo
+import org.assertj.core.api.Assertions.assertThat
 import org.junit.jupiter.api.AfterEach
 import org.junit.jupiter.api.Test
 import org.springframework.beans.factory.annotation.Autowired
+import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendanceDto
+import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendanceUpdateDto
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.CreateAttendanceDto
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.UpdateAttendanceDto
+import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.UpdateAttendancesDto
 import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentReason
 import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentSubReason
 import uk.gov.justice.digital.hmpps.whereabouts.model.Attendance
 import uk.gov.justice.digital.hmpps.whereabouts.model.TimePeriod
 import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceChangesRepository
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceOutboxRepository
 import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceRepository
+import uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceOutboxDispatcher
 import java.time.LocalDate
 import java.time.LocalDateTime
 
@@ -27,8 +33,15 @@ class AttendanceIntegrationTest : IntegrationTest() {
   @Autowired
   lateinit var attendanceChangesRepository: AttendanceChangesRepository
 
+  @Autowired
+  lateinit var attendanceOutboxRepository: AttendanceOutboxRepository
+
+  @Autowired
+  lateinit var attendanceOutboxDispatcher: AttendanceOutboxDispatcher
+
   @AfterEach
   fun cleanUp() {
+    attendanceOutboxRepository.deleteAll()
     attendanceChangesRepository.deleteAll()
     attendanceRepository.deleteAll()
   }
@@ -118,6 +131,45 @@ class AttendanceIntegrationTest : IntegrationTest() {
     )
   }
 
+  @Test
+  fun `should answer a retried create with the attendance it created`() {
+    val bookingId = getNextBookingId()
+    prisonApiMockServer.stubUpdateAttendance(bookingId)
+
+    val attendance = CreateAttendanceDto(
+      prisonId = "LEI",
+      bookingId = bookingId,
+      eventId = 2,
+      eventLocationId = 2,
+      eventDate = LocalDate.now(),
+      period = TimePeriod.AM,
+      attended = true,
+      paid = true,
+    )
+    val create = { idempotencyKey: String? ->
+      webTestClient.post()
+        .uri("/attendance")
+        .bodyValue(attendance)
+        .headers(setHeaders())
+        .headers { headers -> idempotencyKey?.let { headers.set("Idempotency-Key", it) } }
+        .exchange()
+    }
+
+    val created = create("key-$bookingId").expectStatus().isCreated.expectBody(AttendanceDto::class.java).returnResult().responseBody!!
+    val retried = create("key-$bookingId").expectStatus().isCreated.expectBody(AttendanceDto::class.java).returnResult().responseBody!!
+    create(null).expectStatus().isEqualTo(409)
+    webTestClient.post()
+      .uri("/attendance")
+      .bodyValue(attendance.copy(bookingId = getNextBookingId()))
+      .headers(setHeaders())
+      .header("Idempotency-Key", "key-$bookingId")
+      .exchange()
+      .expectStatus().isEqualTo(422)
+
+    assertThat(retried.id).isEqualTo(created.id)
+    assertThat(attendanceRepository.findByBookingId(bookingId)).hasSize(1)
+  }
+
   @Test
   fun `should make a case note service request to create a IEP warning case note`() {
     val activityId = 2L
@@ -205,7 +257,122 @@ class AttendanceIntegrationTest : IntegrationTest() {
   }
 
   @Test
-  fun `update attendance with unexpected error`() {
+  fun `should reject an update made against a version that has since been updated`() {
+    val bookingId = getNextBookingId()
+
+    prisonApiMockServer.stubUpdateAttendance(bookingId)
+
+    val persistedAttendance = createAttendance(bookingId)
+
+    webTestClient.put()
+      .uri("/attendance/${persistedAttendance.id}")
+      .header("If-Match", "\"${persistedAttendance.version}\"")
+      .bodyValue(UpdateAttendanceDto(attended = true, paid = true))
+      .headers(setHeaders())
+      .exchange()
+      .expectStatus().isNoContent
+      .expectHeader().valueEquals("ETag", "\"${persistedAttendance.version + 1}\"")
+
+    webTestClient.put()
+      .uri("/attendance/${persistedAttendance.id}")
+      .header("If-Match", "\"${persistedAttendance.version}\"")
+      .bodyValue(UpdateAttendanceDto(attended = false, paid = false, absentReason = AbsentReason.Refused))
+      .headers(setHeaders())
+      .exchange()
+      .expectStatus().isEqualTo(409)
+      .expectBody()
+      .jsonPath("$.userMessage").isEqualTo("Attendance has been changed since it was read")
+
+    assertThat(attendanceRepository.findById(persistedAttendance.id).orElseThrow().attended).isTrue()
+    assertThat(attendanceChangesRepository.findAll().filter { it.attendance.id == persistedAttendance.id }).hasSize(1)
+  }
+
+  @Test
+  fun `should update many attendances at once`() {
+    prisonApiMockServer.stubUpdateAttendanceForBookingIds()
+    val first = createAttendance(getNextBookingId())
+    val second = createAttendance(getNextBookingId())
+
+    webTestClient.put()
+      .uri("/attendances")
+      .bodyValue(
+        UpdateAttendancesDto(
+          listOf(
+            AttendanceUpdateDto(id = first.id, attended = true, paid = true),
+            AttendanceUpdateDto(id = second.id, attended = true, paid = true),
+            AttendanceUpdateDto(id = -1, attended = true, paid = true),
+          ),
+        ),
+      )
+      .headers(setHeaders())
+      .exchange()
+      .expectStatus().isOk
+      .expectBody()
+      .jsonPath("$.results[*].status").isEqualTo(listOf("UPDATED", "UPDATED", "NOT_FOUND"))
+
+    prisonApiMockServer.verify(1, putRequestedFor(urlEqualTo("/api/bookings/activities/attendance")))
+    assertThat(attendanceRepository.findAllById(listOf(first.id, second.id))).allMatch { it.attended && it.absentReason == null }
+    assertThat(attendanceChangesRepository.findAll()).hasSize(2)
+  }
+
+  @Test
+  fun `should report a conflict for a bulk update made against a stale version`() {
+    prisonApiMockServer.stubUpdateAttendanceForBookingIds()
+    val first = createAttendance(getNextBookingId())
+    val second = createAttendance(getNextBookingId())
+    prisonApiMockServer.stubUpdateAttendance(first.bookingId)
+
+    webTestClient.put()
+      .uri("/attendance/${first.id}")
+      .bodyValue(UpdateAttendanceDto(attended = false, paid = false, absentReason = AbsentReason.SessionCancelled))
+      .headers(setHeaders())
+      .exchange()
+      .expectStatus().isNoContent
+
+    webTestClient.put()
+      .uri("/attendances")
+      .bodyValue(
+        UpdateAttendancesDto(
+          listOf(
+            AttendanceUpdateDto(id = first.id, attended = true, paid = true, version = first.version),
+            AttendanceUpdateDto(id = second.id, attended = true, paid = true, version = second.version),
+          ),
+        ),
+      )
+      .headers(setHeaders())
+      .exchange()
+      .expectStatus().isOk
+      .expectBody()
+      .jsonPath("$.results[*].status").isEqualTo(listOf("CONFLICT", "UPDATED"))
+      .jsonPath("$.results[1].attendance.version").isEqualTo(second.version + 1)
+
+    assertThat(attendanceRepository.findById(first.id).orElseThrow().absentReason).isEqualTo(AbsentReason.SessionCancelled)
+    assertThat(attendanceRepository.findById(second.id).orElseThrow().attended).isTrue()
+  }
+
+  @Test
+  fun `should reject a bulk update listing the same attendance twice`() {
+    val attendance = createAttendance(getNextBookingId())
+
+    webTestClient.put()
+      .uri("/attendances")
+      .bodyValue(
+        UpdateAttendancesDto(
+          listOf(
+            AttendanceUpdateDto(id = attendance.id, attended = true, paid = true),
+            AttendanceUpdateDto(id = attendance.id, attended = false, paid = false, absentReason = AbsentReason.Refused),
+          ),
+        ),
+      )
+      .headers(setHeaders())
+      .exchange()
+      .expectStatus().isBadRequest
+
+    assertThat(attendanceRepository.findById(attendance.id).orElseThrow().attended).isEqualTo(attendance.attended)
+  }
+
+  @Test
+  fun `update attendance keeps the NOMIS update for later when prison api fails`() {
     val bookingId = getNextBookingId()
 
     prisonApiMockServer.stubUpdateAttendance(bookingId, 2, 400)
@@ -218,14 +385,18 @@ class AttendanceIntegrationTest : IntegrationTest() {
       .headers(setHeaders())
       .exchange()
       .expectStatus()
-      .is5xxServerError
-      .expectBody()
-      .jsonPath("$.developerMessage").isEqualTo("400 Bad Request from PUT http://localhost:8999/api/bookings/" + bookingId + "/activities/2/attendance")
+      .isNoContent
+
+    val entries = attendanceOutboxRepository.findAll().filter { it.attendanceId == persistedAttendance.id }
+    assertThat(entries).hasSize(1)
+    assertThat(entries[0].attempts).isEqualTo(1)
+    assertThat(entries[0].lastError).startsWith("400 Bad Request from PUT http://localhost:8999/api/bookings/$bookingId/activities/2/attendance")
   }
 
   @Test
-  fun `update attendance should return correct lock error`() {
+  fun `update attendance is sent again once the NOMIS row is unlocked`() {
     val bookingId = getNextBookingId()
+    val updateAttendanceUrl = "/api/bookings/$bookingId/activities/2/attendance?lockTimeout=true"
 
     prisonApiMockServer.stubUpdateAttendance(bookingId, 2, 423)
 
@@ -237,7 +408,13 @@ class AttendanceIntegrationTest : IntegrationTest() {
       .headers(setHeaders())
       .exchange()
       .expectStatus()
-      .isEqualTo(423)
+      .isNoContent
+
+    prisonApiMockServer.stubUpdateAttendance(bookingId, 2)
+    attendanceOutboxDispatcher.dispatchDue()
+
+    prisonApiMockServer.verify(2, putRequestedFor(urlEqualTo(updateAttendanceUrl)))
+    assertThat(attendanceOutboxRepository.count()).isZero()
   }
 
   @Test
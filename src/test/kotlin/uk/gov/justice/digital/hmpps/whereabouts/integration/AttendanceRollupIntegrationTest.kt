@@ -0,0 +1,141 @@
+package uk.gov.justice.digital.hmpps.whereabouts.integration
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import org.springframework.beans.factory.annotation.Autowired
+import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.CreateAttendanceDto
+import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentReason
+import uk.gov.justice.digital.hmpps.whereabouts.model.Attendance
+import uk.gov.justice.digital.hmpps.whereabouts.model.AttendanceDailyRollupPK
+import uk.gov.justice.digital.hmpps.whereabouts.model.TimePeriod
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceChangesRepository
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceDailyRollupRepository
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceRepository
+import java.time.LocalDate
+
+class AttendanceRollupIntegrationTest : IntegrationTest() {
+
+  @Autowired
+  lateinit var attendanceRepository: AttendanceRepository
+
+  @Autowired
+  lateinit var attendanceChangesRepository: AttendanceChangesRepository
+
+  @Autowired
+  lateinit var attendanceDailyRollupRepository: AttendanceDailyRollupRepository
+
+  private val prisonId = "BXI"
+  private val eventDate = LocalDate.of(2021, 3, 14)
+
+  @AfterEach
+  fun cleanUp() {
+    attendanceChangesRepository.deleteAll()
+    attendanceRepository.deleteAll()
+    attendanceDailyRollupRepository.deleteAll()
+  }
+
+  @Test
+  fun `requires the rollup role`() {
+    webTestClient.get()
+      .uri("/attendance-statistics/rollup/consistency?prisonId=$prisonId")
+      .headers(setHeaders())
+      .exchange()
+      .expectStatus().isUnauthorized
+  }
+
+  @Test
+  fun `recording an attendance counts it in the rollup`() {
+    val bookingId = getNextBookingId()
+    prisonApiMockServer.stubUpdateAttendance(bookingId)
+
+    webTestClient.post()
+      .uri("/attendance")
+      .bodyValue(
+        CreateAttendanceDto(
+          prisonId = prisonId,
+          bookingId = bookingId,
+          eventId = 2,
+          eventLocationId = 2,
+          eventDate = eventDate,
+          period = TimePeriod.AM,
+          attended = true,
+          paid = true,
+        ),
+      )
+      .headers(setHeaders())
+      .exchange()
+      .expectStatus().isCreated
+
+    val bucket = attendanceDailyRollupRepository.findById(AttendanceDailyRollupPK(prisonId, eventDate, TimePeriod.AM, "NONE", true))
+    assertThat(bucket).hasValueSatisfying { assertThat(it.attendanceCount).isEqualTo(1) }
+
+    webTestClient.get()
+      .uri("/attendance-statistics/rollup/consistency?prisonId=$prisonId")
+      .headers(setRollupHeaders())
+      .exchange()
+      .expectStatus().isOk
+      .expectBody()
+      .jsonPath("$.mismatches.length()").isEqualTo(0)
+  }
+
+  @Test
+  fun `rebuild recounts attendances the rollup missed`() {
+    // saved straight through the repository, so the rollup never hears about them
+    attendanceRepository.saveAll(
+      listOf(
+        attendance(bookingId = 1, absentReason = null),
+        attendance(bookingId = 2, absentReason = AbsentReason.Refused),
+        attendance(bookingId = 3, absentReason = AbsentReason.Refused),
+      ),
+    )
+
+    webTestClient.get()
+      .uri("/attendance-statistics/rollup/consistency?prisonId=$prisonId")
+      .headers(setRollupHeaders())
+      .exchange()
+      .expectStatus().isOk
+      .expectBody()
+      .jsonPath("$.mismatches.length()").isEqualTo(2)
+      .jsonPath("$.mismatches[0].absentReason").isEqualTo("NONE")
+      .jsonPath("$.mismatches[0].expected").isEqualTo(1)
+      .jsonPath("$.mismatches[0].actual").isEqualTo(0)
+      .jsonPath("$.mismatches[1].absentReason").isEqualTo("Refused")
+      .jsonPath("$.mismatches[1].expected").isEqualTo(2)
+
+    webTestClient.post()
+      .uri("/attendance-statistics/rollup/rebuild?prisonId=$prisonId")
+      .headers(setRollupHeaders())
+      .exchange()
+      .expectStatus().isOk
+      .expectBody()
+      .jsonPath("$[0].prisonId").isEqualTo(prisonId)
+      .jsonPath("$[0].buckets").isEqualTo(2)
+
+    webTestClient.get()
+      .uri("/attendance-statistics/rollup/consistency?prisonId=$prisonId")
+      .headers(setRollupHeaders())
+      .exchange()
+      .expectStatus().isOk
+      .expectBody()
+      .jsonPath("$.mismatches.length()").isEqualTo(0)
+  }
+
+  private fun attendance(bookingId: Long, absentReason: AbsentReason?) = Attendance.builder()
+    .bookingId(bookingId)
+    .eventId(1)
+    .eventLocationId(1)
+    .eventDate(eventDate)
+    .period(TimePeriod.PM)
+    .prisonId(prisonId)
+    .attended(absentReason == null)
+    .paid(absentReason == null)
+    .absentReason(absentReason)
+    .build()
+
+  private fun setRollupHeaders() = jwtAuthHelper.setAuthorisationHeader(
+    username = "ITAG_USER",
+    roles = listOf("ROLE_ATTENDANCE_STATISTICS__ROLLUP__RW"),
+    clientId = "elite2apiclient",
+  )
+}
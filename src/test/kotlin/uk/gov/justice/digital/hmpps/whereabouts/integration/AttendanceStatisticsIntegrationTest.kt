@@ -9,15 +9,20 @@ import org.junit.jupiter.api.Test
 import org.mockito.kotlin.any
 import org.mockito.kotlin.whenever
 import org.springframework.test.context.bean.override.mockito.MockitoBean
-import uk.gov.justice.digital.hmpps.whereabouts.model.Attendance
 import uk.gov.justice.digital.hmpps.whereabouts.model.TimePeriod
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceDailyRollupRepository
 import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceRepository
+import uk.gov.justice.digital.hmpps.whereabouts.repository.BookingAttendanceCount
+import uk.gov.justice.digital.hmpps.whereabouts.repository.RollupReasonCount
 import java.time.LocalDate
 
 class AttendanceStatisticsIntegrationTest : IntegrationTest() {
   @MockitoBean
   private lateinit var attendanceRepository: AttendanceRepository
 
+  @MockitoBean
+  private lateinit var attendanceDailyRollupRepository: AttendanceDailyRollupRepository
+
   private val prisonId = "MDI"
   private val fromDate = LocalDate.of(2019, 10, 10)
   private val toDate = LocalDate.of(2019, 10, 11)
@@ -27,19 +32,8 @@ class AttendanceStatisticsIntegrationTest : IntegrationTest() {
   fun `should request schedules by date range`() {
     prisonApiMockServer.stubScheduleActivityCount(prisonId)
 
-    whenever(attendanceRepository.findByPrisonIdAndPeriodAndEventDateBetween(any(), any(), any(), any())).thenReturn(
-      setOf(
-        Attendance
-          .builder()
-          .bookingId(1)
-          .attended(true)
-          .prisonId(prisonId)
-          .period(period)
-          .eventDate(fromDate)
-          .eventId(1)
-          .eventLocationId(1)
-          .build(),
-      ),
+    whenever(attendanceRepository.countByBooking(any(), any(), any(), any())).thenReturn(
+      listOf(BookingAttendanceCount(1, 1)),
     )
 
     webTestClient.get()
@@ -85,19 +79,8 @@ class AttendanceStatisticsIntegrationTest : IntegrationTest() {
   fun `should populate stats with data`() {
     prisonApiMockServer.stubScheduleActivityCount(prisonId)
 
-    whenever(attendanceRepository.findByPrisonIdAndPeriodAndEventDateBetween(any(), any(), any(), any())).thenReturn(
-      setOf(
-        Attendance
-          .builder()
-          .bookingId(1)
-          .attended(true)
-          .prisonId(prisonId)
-          .period(period)
-          .eventDate(fromDate)
-          .eventId(1)
-          .eventLocationId(1)
-          .build(),
-      ),
+    whenever(attendanceDailyRollupRepository.sumByReasonAndAttended(any(), any(), any(), any())).thenReturn(
+      listOf(RollupReasonCount("NONE", true, 1)),
     )
 
     webTestClient.get()
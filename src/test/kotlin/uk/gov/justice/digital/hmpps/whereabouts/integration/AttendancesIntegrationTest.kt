@@ -1,13 +1,19 @@
 package uk.gov.justice.digital.hmpps.whereabouts.integration
 
+import com.fasterxml.jackson.dataformat.csv.CsvMapper
+import com.fasterxml.jackson.dataformat.csv.CsvSchema
 import com.github.tomakehurst.wiremock.client.WireMock
 import com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor
 import com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 import org.mockito.ArgumentMatchers.anySet
 import org.mockito.kotlin.any
 import org.mockito.kotlin.verify
 import org.mockito.kotlin.whenever
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.http.MediaType
 import org.springframework.test.context.bean.override.mockito.MockitoBean
 import uk.gov.justice.digital.hmpps.whereabouts.dto.BookingActivity
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendancesDto
@@ -16,16 +22,29 @@ import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentSubReason
 import uk.gov.justice.digital.hmpps.whereabouts.model.Attendance
 import uk.gov.justice.digital.hmpps.whereabouts.model.TimePeriod
 import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceRepository
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceVersion
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceView
+import uk.gov.justice.digital.hmpps.whereabouts.services.PrisonApiService
 import java.time.LocalDate
 import java.time.LocalDateTime
 import java.time.format.DateTimeFormatter
 import java.util.stream.Collectors
+import java.util.stream.Stream
 
 class AttendancesIntegrationTest : IntegrationTest() {
 
   @MockitoBean
   lateinit var attendanceRepository: AttendanceRepository
 
+  @Autowired
+  lateinit var prisonApiService: PrisonApiService
+
+  @BeforeEach
+  fun stubVersions() {
+    whenever(attendanceRepository.findVersionByEventLocation(any(), any(), any(), any())).thenReturn(AttendanceVersion(0, null, 0))
+    whenever(attendanceRepository.findVersionByBookings(any(), any(), any(), any(), any())).thenReturn(AttendanceVersion(0, null, 0))
+  }
+
   @Test
   fun `post attendances is forbidden for WDI`() {
     val attendAll = AttendancesDto(
@@ -55,7 +74,7 @@ class AttendancesIntegrationTest : IntegrationTest() {
 
     whenever(attendanceRepository.findByPrisonIdAndEventLocationIdAndEventDateAndPeriod(any(), any(), any(), any()))
       .thenReturn(
-        setOf(
+        viewsOf(
           Attendance
             .builder()
             .id(1)
@@ -103,6 +122,74 @@ class AttendancesIntegrationTest : IntegrationTest() {
       .jsonPath(".attendances[0].locked").isEqualTo(false)
   }
 
+  @Test
+  fun `should answer not modified for a location whose attendances have not changed`() {
+    whenever(attendanceRepository.findVersionByEventLocation(any(), any(), any(), any()))
+      .thenReturn(AttendanceVersion(2, LocalDateTime.of(2019, 10, 10, 10, 0), 0))
+    whenever(attendanceRepository.findByPrisonIdAndEventLocationIdAndEventDateAndPeriod(any(), any(), any(), any()))
+      .thenReturn(emptySet())
+
+    val getAttendances = { ifNoneMatch: String? ->
+      webTestClient
+        .get()
+        .uri {
+          it.path("/attendances/LEI/2")
+            .queryParam("date", LocalDate.of(2019, 10, 10))
+            .queryParam("period", TimePeriod.PM)
+            .build()
+        }
+        .headers(setHeaders())
+        .headers { headers -> ifNoneMatch?.let { headers.ifNoneMatch = listOf(it) } }
+        .exchange()
+    }
+
+    val eTag = getAttendances(null)
+      .expectStatus().isOk
+      .expectHeader().valueEquals("Cache-Control", "no-cache, private")
+      .returnResult(String::class.java)
+      .responseHeaders.eTag!!
+
+    getAttendances(eTag)
+      .expectStatus().isNotModified
+      .expectBody().isEmpty
+    verify(attendanceRepository).findByPrisonIdAndEventLocationIdAndEventDateAndPeriod(any(), any(), any(), any())
+
+    whenever(attendanceRepository.findVersionByEventLocation(any(), any(), any(), any()))
+      .thenReturn(AttendanceVersion(2, LocalDateTime.of(2019, 10, 10, 11, 0), 0))
+
+    getAttendances(eTag)
+      .expectStatus().isOk
+  }
+
+  @Test
+  fun `should answer not modified for bookings by post whose attendances have not changed`() {
+    whenever(attendanceRepository.findByPrisonIdAndBookingIdInAndEventDateAndPeriod(any(), any(), any(), any()))
+      .thenReturn(emptySet())
+
+    val postBookings = { bookings: Set<Long>, ifNoneMatch: String? ->
+      webTestClient
+        .post()
+        .uri {
+          it.path("/attendances/LEI")
+            .queryParam("date", LocalDate.of(2019, 10, 10))
+            .queryParam("period", TimePeriod.PM)
+            .build()
+        }
+        .headers(setHeaders())
+        .headers { headers -> ifNoneMatch?.let { headers.ifNoneMatch = listOf(it) } }
+        .bodyValue(bookings)
+        .exchange()
+    }
+
+    val eTag = postBookings(setOf(1L, 2L), null)
+      .expectStatus().isOk
+      .returnResult(String::class.java)
+      .responseHeaders.eTag!!
+
+    postBookings(setOf(2L, 1L), eTag).expectStatus().isNotModified
+    postBookings(setOf(1L, 3L), eTag).expectStatus().isOk
+  }
+
   @Test
   fun `should return modified by and modified on`() {
     prisonApiMockServer.stubUpdateAttendance()
@@ -111,7 +198,7 @@ class AttendancesIntegrationTest : IntegrationTest() {
 
     whenever(attendanceRepository.findByPrisonIdAndEventLocationIdAndEventDateAndPeriod(any(), any(), any(), any()))
       .thenReturn(
-        setOf(
+        viewsOf(
           Attendance.builder()
             .id(1)
             .bookingId(1)
@@ -156,7 +243,7 @@ class AttendancesIntegrationTest : IntegrationTest() {
 
     whenever(attendanceRepository.findByPrisonIdAndBookingIdInAndEventDateAndPeriod(any(), any(), any(), any()))
       .thenReturn(
-        setOf(
+        viewsOf(
           Attendance
             .builder()
             .id(1)
@@ -215,7 +302,7 @@ class AttendancesIntegrationTest : IntegrationTest() {
 
     whenever(attendanceRepository.findByPrisonIdAndBookingIdInAndEventDateAndPeriod(any(), any(), any(), any()))
       .thenReturn(
-        setOf(
+        viewsOf(
           Attendance
             .builder()
             .id(1)
@@ -286,7 +373,7 @@ class AttendancesIntegrationTest : IntegrationTest() {
       ),
     )
       .thenReturn(
-        setOf(
+        viewsOf(
           Attendance
             .builder()
             .id(1)
@@ -341,6 +428,44 @@ class AttendancesIntegrationTest : IntegrationTest() {
       .jsonPath(".attendances[1].bookingId").isEqualTo(2)
   }
 
+  @Test
+  fun `should stream attendance information for set of bookings ids over date range as ndjson`() {
+    whenever(
+      attendanceRepository.streamByPrisonIdAndBookingIdInAndEventDateBetweenAndPeriodInOrderById(any(), any(), any(), any(), any()),
+    )
+      .thenReturn(
+        Stream.of(
+          Attendance.builder().id(1).bookingId(1).eventId(1).period(TimePeriod.PM).prisonId("LEI").attended(true).paid(true)
+            .eventDate(LocalDate.of(2019, 10, 10)).build(),
+          Attendance.builder().id(2).bookingId(2).eventId(1).period(TimePeriod.PM).prisonId("LEI").attended(true).paid(true)
+            .eventDate(LocalDate.of(2019, 10, 11)).build(),
+        ),
+      )
+
+    val body = webTestClient
+      .post()
+      .uri {
+        it.path("/attendances/LEI/attendance-over-date-range")
+          .queryParam("fromDate", LocalDate.of(2019, 10, 10))
+          .queryParam("toDate", LocalDate.of(2019, 10, 11))
+          .queryParam("period", TimePeriod.PM)
+          .queryParam("format", "NDJSON")
+          .build()
+      }
+      .headers(setHeaders())
+      .accept(MediaType.APPLICATION_NDJSON)
+      .bodyValue(setOf(1, 2))
+      .exchange()
+      .expectStatus().isOk
+      .expectHeader().contentType(MediaType.APPLICATION_NDJSON)
+      .expectBody(String::class.java)
+      .returnResult().responseBody!!
+
+    val lines = body.lines().filter { it.isNotBlank() }.map { objectMapper.readTree(it) }
+    assertThat(lines.map { it["id"].asLong() }).containsExactly(1L, 2L)
+    assertThat(lines.map { it["eventDate"].asText() }).containsExactly("2019-10-10", "2019-10-11")
+  }
+
   @Test
   fun `should create multiple attendances`() {
     val bookingIds = setOf(1L, 2L)
@@ -420,6 +545,42 @@ class AttendancesIntegrationTest : IntegrationTest() {
     prisonApiMockServer.verify(getRequestedFor(urlEqualTo("/api/schedules/$prisonId/activities?date=$date&timeSlot=$period")))
   }
 
+  @Test
+  fun `should share scheduled activities between requests until the entry is evicted`() {
+    val prisonId = "MDI"
+    val date = LocalDate.now().plusDays(1)
+    val period = TimePeriod.PM
+    prisonApiMockServer.stubGetScheduledActivities(prisonId, date, period)
+
+    whenever(attendanceRepository.findByPrisonIdAndPeriodAndEventDateBetween(any(), any(), any(), any()))
+      .thenReturn(emptySet())
+
+    val getUnaccountedFor = {
+      webTestClient
+        .get()
+        .uri {
+          it.path("/attendances/$prisonId/unaccounted-for")
+            .queryParam("date", date)
+            .queryParam("period", period)
+            .build()
+        }
+        .headers(setHeaders())
+        .exchange()
+        .expectStatus().isOk
+        .expectBody()
+        .jsonPath("\$.scheduled[*].offenderNo").isEqualTo(listOf("A123B", "B123C"))
+    }
+    val scheduleRequest = getRequestedFor(urlEqualTo("/api/schedules/$prisonId/activities?date=$date&timeSlot=$period"))
+
+    getUnaccountedFor()
+    getUnaccountedFor()
+    prisonApiMockServer.verify(1, scheduleRequest)
+
+    prisonApiService.evictScheduledActivities(prisonId, date, period)
+    getUnaccountedFor()
+    prisonApiMockServer.verify(2, scheduleRequest)
+  }
+
   @Test
   fun `should return absences for scheduled activity`() {
     val prisonId = "MDI"
@@ -477,6 +638,52 @@ class AttendancesIntegrationTest : IntegrationTest() {
       .jsonPath("\$.absences[0].period").isEqualTo("AM")
   }
 
+  @Test
+  fun `should stream absences for scheduled activity as csv`() {
+    val prisonId = "MDI"
+    val date = LocalDate.now()
+    val reason = AbsentReason.RefusedIncentiveLevelWarning
+
+    prisonApiMockServer.stubGetScheduledActivitiesForEventIds()
+
+    whenever(
+      attendanceRepository.streamByPrisonIdAndEventDateBetweenAndPeriodInAndAbsentReasonOrderByEventIdAscIdAsc(any(), any(), any(), anySet(), any()),
+    )
+      .thenReturn(
+        Stream.of(
+          Attendance.builder().id(1).absentReason(reason).absentSubReason(AbsentSubReason.Courses).attended(false).paid(false)
+            .eventId(1).eventDate(date).eventLocationId(3).period(TimePeriod.AM).prisonId(prisonId).bookingId(1L).build(),
+        ),
+      )
+
+    val body = webTestClient
+      .get()
+      .uri {
+        it.path("/attendances/$prisonId/absences-for-scheduled-activities/$reason")
+          .queryParam("fromDate", date)
+          .queryParam("period", TimePeriod.AM)
+          .queryParam("format", "CSV")
+          .build()
+      }
+      .headers(setHeaders())
+      .exchange()
+      .expectStatus().isOk
+      .expectHeader().contentType("text/csv")
+      .expectBody(String::class.java)
+      .returnResult().responseBody!!
+
+    val rows = CsvMapper().readerFor(Map::class.java)
+      .with(CsvSchema.emptySchema().withHeader())
+      .readValues<Map<String, String>>(body)
+      .readAll()
+    assertThat(rows).hasSize(1)
+    assertThat(rows[0]["attendanceId"]).isEqualTo("1")
+    assertThat(rows[0]["period"]).isEqualTo("AM")
+    assertThat(rows[0]["eventDate"]).isEqualTo(date.toString())
+    assertThat(rows[0]["subReasonDescription"]).isEqualTo("Courses, programmes and interventions")
+    prisonApiMockServer.verify(WireMock.postRequestedFor(urlEqualTo("/api/schedules/$prisonId/activities-by-event-ids")))
+  }
+
   @Test
   fun `should return attendance summary for offender`() {
     val offenderNo = "A1234AX"
@@ -567,4 +774,6 @@ class AttendancesIntegrationTest : IntegrationTest() {
     .createUserId("user")
     .caseNoteId(1)
     .build()
+
+  private fun viewsOf(vararg attendances: Attendance): Set<AttendanceView> = attendances.map(AttendanceView::from).toSet()
 }
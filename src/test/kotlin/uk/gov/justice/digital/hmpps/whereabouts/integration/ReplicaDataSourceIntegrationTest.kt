@@ -0,0 +1,116 @@
+package uk.gov.justice.digital.hmpps.whereabouts.integration
+
+import org.assertj.core.api.Assertions.assertThat
+import org.flywaydb.core.Flyway
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Test
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.jdbc.datasource.DriverManagerDataSource
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy
+import org.springframework.test.context.TestPropertySource
+import uk.gov.justice.digital.hmpps.whereabouts.model.Attendance
+import uk.gov.justice.digital.hmpps.whereabouts.model.TimePeriod
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceRepository
+import uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceService
+import uk.gov.justice.digital.hmpps.whereabouts.services.CellMoveService
+import java.time.LocalDate
+
+@TestPropertySource(
+  properties = [
+    "spring.datasource.replica.url=$REPLICA_URL",
+    "spring.datasource.replica.username=sa",
+    "spring.datasource.replica.lag-query=select 0",
+  ],
+)
+class ReplicaDataSourceIntegrationTest : IntegrationTest() {
+
+  @Autowired
+  lateinit var attendanceService: AttendanceService
+
+  @Autowired
+  lateinit var attendanceRepository: AttendanceRepository
+
+  @Autowired
+  lateinit var cellMoveService: CellMoveService
+
+  @Autowired
+  lateinit var flyway: Flyway
+
+  private val primary = JdbcTemplate(DriverManagerDataSource("jdbc:h2:mem:whereabouts-api-db;MODE=PostgreSQL", "sa", ""))
+  private val replica = JdbcTemplate(DriverManagerDataSource(REPLICA_URL, "sa", ""))
+  private val today = LocalDate.now()
+
+  companion object {
+    // the replica is a copy of the schema, so that what is read from it can be told apart from what is on the primary
+    @BeforeAll
+    @JvmStatic
+    fun migrateReplica() {
+      Flyway.configure().dataSource(REPLICA_URL, "sa", "").load().migrate()
+    }
+  }
+
+  @AfterEach
+  fun cleanUp() {
+    replica.update("delete from offender_attendance")
+    replica.update("delete from cell_move_reason")
+    attendanceRepository.deleteAll(attendanceRepository.findByBookingId(REPLICA_BOOKING_ID))
+  }
+
+  @Test
+  fun `read-only transactions read from the replica`() {
+    replica.update(
+      "insert into offender_attendance (id, booking_id, event_id, event_date, event_location_id, period, prison_id, attended, paid) " +
+        "values (?, ?, 2, ?, 3, 'AM', 'LEI', true, true)",
+      -1L,
+      REPLICA_BOOKING_ID,
+      today,
+    )
+
+    val attendances = attendanceService.getAttendanceForBookings("LEI", setOf(REPLICA_BOOKING_ID), today, TimePeriod.AM)
+
+    assertThat(attendances).extracting("id").containsExactly(-1L)
+  }
+
+  @Test
+  fun `read-only transactions around declared query methods read from the replica`() {
+    replica.update("insert into cell_move_reason (booking_id, bed_assignment_sequence, case_note_id) values (?, 1, 3)", REPLICA_BOOKING_ID)
+
+    val reasons = cellMoveService.getCellMoveReasons(REPLICA_BOOKING_ID - 1, 0, 10)
+
+    assertThat(reasons).extracting("bookingId").containsExactly(REPLICA_BOOKING_ID)
+  }
+
+  @Test
+  fun `writes go to the primary`() {
+    val saved = attendanceRepository.save(
+      Attendance.builder()
+        .bookingId(REPLICA_BOOKING_ID)
+        .eventId(2L)
+        .eventLocationId(3L)
+        .eventDate(today)
+        .period(TimePeriod.AM)
+        .prisonId("LEI")
+        .attended(true)
+        .paid(true)
+        .build(),
+    )
+
+    assertThat(count(primary, saved.id)).isEqualTo(1)
+    assertThat(count(replica, saved.id)).isEqualTo(0)
+  }
+
+  @Test
+  fun `flyway migrates the primary`() {
+    val dataSource = flyway.configuration.dataSource
+
+    assertThat(dataSource).isInstanceOf(LazyConnectionDataSourceProxy::class.java)
+    dataSource.connection.use { assertThat(it.metaData.url).startsWith("jdbc:h2:mem:whereabouts-api-db") }
+  }
+
+  private fun count(database: JdbcTemplate, id: Long) = database.queryForObject("select count(*) from offender_attendance where id = ?", Int::class.java, id)
+}
+
+private const val REPLICA_URL = "jdbc:h2:mem:whereabouts-api-replica;MODE=PostgreSQL;DB_CLOSE_DELAY=-1"
+private const val REPLICA_BOOKING_ID = 990_001L
@@ -1,21 +1,84 @@
 package uk.gov.justice.digital.hmpps.whereabouts.listeners
 
 import com.google.gson.Gson
+import com.microsoft.applicationinsights.TelemetryClient
+import io.awspring.cloud.sqs.listener.acknowledgement.BatchAcknowledgement
+import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
+import org.mockito.kotlin.any
+import org.mockito.kotlin.argThat
+import org.mockito.kotlin.eq
 import org.mockito.kotlin.mock
 import org.mockito.kotlin.verify
+import org.mockito.kotlin.whenever
+import org.springframework.core.task.SyncTaskExecutor
+import org.springframework.messaging.support.MessageBuilder
 import uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceService
 import wiremock.org.apache.commons.io.IOUtils
 import java.nio.charset.StandardCharsets
+import java.time.Clock
+import java.time.Instant
+import java.time.ZoneOffset
+import java.util.concurrent.CompletableFuture
+import org.springframework.messaging.Message as QueueMessage
 
 class SqsOffenderEventListenerTest {
   private val attendanceService: AttendanceService = mock()
-  private val listener = SqsOffenderEventListener(attendanceService, Gson())
+  private val telemetryClient: TelemetryClient = mock()
+  private val acknowledgement: BatchAcknowledgement<String> = mock()
+  private val clock = Clock.fixed(Instant.parse("2019-11-11T11:12:11.111111Z"), ZoneOffset.UTC)
+  private val listener = SqsOffenderEventListener(attendanceService, Gson(), SyncTaskExecutor(), telemetryClient, clock)
+
+  @BeforeEach
+  fun stubAcknowledgement() {
+    whenever(acknowledgement.acknowledgeAsync(any<Collection<QueueMessage<String>>>()))
+      .thenReturn(CompletableFuture.completedFuture(null))
+  }
 
   @Test
   fun `should call delete with the correct offenderNo`() {
-    listener.handleEvents(getJson("/listeners/offender-deletion-request.json"))
+    val message = MessageBuilder.withPayload(getJson("/listeners/offender-deletion-request.json")).build()
+
+    listener.handleEvents(listOf(message), acknowledgement).join()
+
+    verify(attendanceService).deleteAttendancesForOffenderDeleteEvent("A1234AA", listOf(321L, 322L))
+    verify(acknowledgement).acknowledgeAsync(listOf(message))
+  }
+
+  @Test
+  fun `should acknowledge the rest of a batch when one message fails`() {
+    val failing = MessageBuilder.withPayload("not json").build()
+    val deletion = MessageBuilder.withPayload(getJson("/listeners/offender-deletion-request.json")).build()
+
+    listener.handleEvents(listOf(failing, deletion), acknowledgement).join()
+
     verify(attendanceService).deleteAttendancesForOffenderDeleteEvent("A1234AA", listOf(321L, 322L))
+    verify(acknowledgement).acknowledgeAsync(listOf(deletion))
+  }
+
+  @Test
+  fun `should record throughput and lag per event type`() {
+    val deletion = MessageBuilder.withPayload(getJson("/listeners/offender-deletion-request.json")).build()
+
+    listener.handleEvents(listOf(deletion, deletion), acknowledgement).join()
+
+    verify(telemetryClient).trackEvent(
+      eq("OffenderEventsProcessed"),
+      eq(mapOf("eventType" to "DATA_COMPLIANCE_DELETE-OFFENDER")),
+      argThat { this["processed"] == 2.0 && this["failed"] == 0.0 && this["maxLagMillis"] == 60_000.0 },
+    )
+  }
+
+  @Test
+  fun `should count messages that cannot be read as unknown`() {
+    listener.handleEvents(listOf(MessageBuilder.withPayload("not json").build()), acknowledgement).join()
+
+    verify(telemetryClient).trackEvent(
+      eq("OffenderEventsProcessed"),
+      eq(mapOf("eventType" to "unknown")),
+      argThat { this["processed"] == 0.0 && this["failed"] == 1.0 && this["maxLagMillis"] == null },
+    )
+    verify(acknowledgement).acknowledgeAsync(emptyList())
   }
 
   private fun getJson(filename: String): String = IOUtils.toString(javaClass.getResourceAsStream(filename), StandardCharsets.UTF_8.toString())
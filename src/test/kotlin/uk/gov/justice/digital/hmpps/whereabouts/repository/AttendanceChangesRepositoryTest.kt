@@ -7,6 +7,7 @@ import org.mockito.kotlin.whenever
 import org.springframework.beans.factory.annotation.Autowired
 import org.springframework.boot.data.jpa.test.autoconfigure.DataJpaTest
 import org.springframework.context.annotation.Import
+import org.springframework.data.domain.PageRequest
 import org.springframework.test.context.ActiveProfiles
 import org.springframework.test.context.bean.override.mockito.MockitoBean
 import org.springframework.test.context.transaction.TestTransaction
@@ -19,6 +20,7 @@ import uk.gov.justice.digital.hmpps.whereabouts.model.AttendanceChangeValues
 import uk.gov.justice.digital.hmpps.whereabouts.model.TimePeriod
 import uk.gov.justice.digital.hmpps.whereabouts.security.AuthenticationFacade
 import java.time.LocalDate
+import java.time.LocalDateTime
 
 @ActiveProfiles("test")
 @Import(AuditConfiguration::class)
@@ -40,6 +42,7 @@ class AttendanceChangesRepositoryTest {
     whenever(authenticationFacade.currentUsername).thenReturn("user")
 
     attendanceChangesRepository.deleteAll()
+    attendanceRepository.deleteAll()
 
     TestTransaction.flagForCommit()
     TestTransaction.end()
@@ -79,4 +82,45 @@ class AttendanceChangesRepositoryTest {
     assertThat(recordedChanges.changedTo).isEqualTo(AttendanceChangeValues.NotRequired)
     assertThat(recordedChanges.createUserId).isEqualTo("user")
   }
+
+  @Test
+  fun `should walk changes a page at a time in creation order`() {
+    val attendance = attendanceRepository.save(
+      Attendance.builder()
+        .attended(true)
+        .paid(true)
+        .bookingId(122)
+        .eventDate(LocalDate.now())
+        .eventId(1)
+        .eventLocationId(1)
+        .prisonId("LEI")
+        .period(TimePeriod.AM)
+        .build(),
+    )
+    val from = LocalDateTime.now().minusMinutes(1)
+    val ids = (1..5).map {
+      attendanceChangesRepository.save(
+        AttendanceChange(attendance = attendance, changedFrom = AttendanceChangeValues.Refused, changedTo = AttendanceChangeValues.Attended),
+      ).id!!
+    }
+    TestTransaction.flagForCommit()
+    TestTransaction.end()
+    val to = LocalDateTime.now().plusMinutes(1)
+
+    val walked = mutableListOf<AttendanceChange>()
+    var afterDateTime = from
+    var afterId = -1L
+    do {
+      val page = attendanceChangesRepository.findPageAfter(from, to, "LEI", afterDateTime, afterId, PageRequest.of(0, 2))
+      walked += page
+      page.lastOrNull()?.let {
+        afterDateTime = it.createDateTime!!
+        afterId = it.id!!
+      }
+    } while (page.size == 2)
+
+    assertThat(walked.map { it.id }).containsExactlyElementsOf(ids)
+    assertThat(walked.map { it.attendance.bookingId }).containsOnly(122L)
+    assertThat(attendanceChangesRepository.findPageAfter(from, to, "MDI", from, -1, PageRequest.of(0, 2))).isEmpty()
+  }
 }
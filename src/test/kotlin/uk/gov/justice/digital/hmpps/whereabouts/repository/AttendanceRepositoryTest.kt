@@ -1,5 +1,6 @@
 package uk.gov.justice.digital.hmpps.whereabouts.repository
 
+import jakarta.persistence.EntityManager
 import jakarta.validation.ConstraintViolationException
 import org.assertj.core.api.Assertions.assertThat
 import org.assertj.core.api.Assertions.assertThatThrownBy
@@ -11,6 +12,7 @@ import org.mockito.kotlin.whenever
 import org.springframework.beans.factory.annotation.Autowired
 import org.springframework.boot.data.jpa.test.autoconfigure.DataJpaTest
 import org.springframework.context.annotation.Import
+import org.springframework.dao.DataIntegrityViolationException
 import org.springframework.test.context.ActiveProfiles
 import org.springframework.test.context.bean.override.mockito.MockitoBean
 import org.springframework.test.context.junit.jupiter.SpringExtension
@@ -20,6 +22,8 @@ import uk.gov.justice.digital.hmpps.whereabouts.config.AuditConfiguration
 import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentReason
 import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentSubReason
 import uk.gov.justice.digital.hmpps.whereabouts.model.Attendance
+import uk.gov.justice.digital.hmpps.whereabouts.model.AttendanceChange
+import uk.gov.justice.digital.hmpps.whereabouts.model.AttendanceChangeValues
 import uk.gov.justice.digital.hmpps.whereabouts.model.TimePeriod
 import uk.gov.justice.digital.hmpps.whereabouts.security.AuthenticationFacade
 import java.time.LocalDate
@@ -41,6 +45,9 @@ class AttendanceRepositoryTest {
   @Autowired
   lateinit var attendanceChangesRepository: AttendanceChangesRepository
 
+  @Autowired
+  lateinit var entityManager: EntityManager
+
   private val now = LocalDate.now()
 
   private val attendance = Attendance.builder()
@@ -240,6 +247,165 @@ class AttendanceRepositoryTest {
     assertThat(results).extracting("eventId").containsExactly(2L, 1L)
   }
 
+  @Test
+  fun `should count attendances by booking and by day, period, reason and attended flag`() {
+    val attendance = Attendance.builder()
+      .eventLocationId(1)
+      .eventDate(LocalDate.now())
+      .prisonId("MDI")
+      .period(TimePeriod.AM)
+      .createUserId("test")
+      .build()
+
+    attendanceRepository.saveAll(
+      setOf(
+        attendance.toBuilder().bookingId(1).eventId(1).attended(true).paid(true).build(),
+        attendance.toBuilder().bookingId(1).eventId(2).attended(true).paid(true).build(),
+        attendance.toBuilder().bookingId(2).eventId(1).attended(false).paid(false).absentReason(AbsentReason.Refused).build(),
+        attendance.toBuilder().bookingId(2).eventId(2).attended(false).paid(false).absentReason(AbsentReason.Refused).build(),
+        attendance.toBuilder().bookingId(3).eventId(1).attended(false).paid(true).absentReason(AbsentReason.NotRequired).build(),
+        attendance.toBuilder().bookingId(3).eventId(2).attended(true).period(TimePeriod.ED).build(),
+        attendance.toBuilder().bookingId(3).eventId(3).attended(true).eventDate(LocalDate.now().minusYears(1)).build(),
+      ),
+    )
+
+    TestTransaction.flagForCommit()
+    TestTransaction.end()
+    TestTransaction.start()
+
+    val periods = setOf(TimePeriod.AM, TimePeriod.PM)
+
+    assertThat(attendanceRepository.countByBooking("MDI", LocalDate.now().minusDays(1), LocalDate.now(), periods))
+      .containsExactlyInAnyOrder(
+        BookingAttendanceCount(1, 2),
+        BookingAttendanceCount(2, 2),
+        BookingAttendanceCount(3, 1),
+      )
+    assertThat(attendanceRepository.countByDayPeriodReasonAndAttended("MDI"))
+      .containsExactlyInAnyOrder(
+        AttendanceBucketCount(LocalDate.now(), TimePeriod.AM, null, true, 2),
+        AttendanceBucketCount(LocalDate.now(), TimePeriod.AM, AbsentReason.Refused, false, 2),
+        AttendanceBucketCount(LocalDate.now(), TimePeriod.AM, AbsentReason.NotRequired, false, 1),
+        AttendanceBucketCount(LocalDate.now(), TimePeriod.ED, null, true, 1),
+        AttendanceBucketCount(LocalDate.now().minusYears(1), TimePeriod.AM, null, true, 1),
+      )
+  }
+
+  @Test
+  fun `should version the attendances for a location and for a set of bookings`() {
+    val attendance = Attendance.builder()
+      .eventLocationId(1)
+      .eventDate(LocalDate.now())
+      .prisonId("MDI")
+      .period(TimePeriod.AM)
+      .attended(true)
+      .paid(true)
+      .build()
+
+    attendanceRepository.saveAll(
+      listOf(
+        attendance.toBuilder().bookingId(1).eventId(1).caseNoteId(10).build(),
+        attendance.toBuilder().bookingId(2).eventId(1).caseNoteId(5).build(),
+        attendance.toBuilder().bookingId(3).eventId(1).eventLocationId(2).build(),
+      ),
+    )
+
+    TestTransaction.flagForCommit()
+    TestTransaction.end()
+    TestTransaction.start()
+
+    val byLocation = attendanceRepository.findVersionByEventLocation("MDI", 1, LocalDate.now(), TimePeriod.AM)
+    assertThat(byLocation.count).isEqualTo(2)
+    assertThat(byLocation.lastChanged).isNotNull()
+    assertThat(byLocation.caseNoteIdTotal).isEqualTo(15)
+
+    val byBookings = attendanceRepository.findVersionByBookings("MDI", setOf(2L, 3L), LocalDate.now(), LocalDate.now(), setOf(TimePeriod.AM))
+    assertThat(byBookings.count).isEqualTo(2)
+    assertThat(byBookings.caseNoteIdTotal).isEqualTo(5)
+
+    val none = attendanceRepository.findVersionByEventLocation("MDI", 1, LocalDate.now(), TimePeriod.PM)
+    assertThat(none).isEqualTo(AttendanceVersion(0, null, 0))
+  }
+
+  @Test
+  fun `should delete the attendances of a set of bookings along with their changes`() {
+    val attendance = Attendance.builder()
+      .eventLocationId(1)
+      .eventDate(LocalDate.now())
+      .prisonId("MDI")
+      .period(TimePeriod.AM)
+      .attended(true)
+      .paid(true)
+      .build()
+
+    val saved = attendanceRepository.saveAll(
+      listOf(
+        attendance.toBuilder().bookingId(1).eventId(1).build(),
+        attendance.toBuilder().bookingId(1).eventId(2).attended(false).absentReason(AbsentReason.Refused).build(),
+        attendance.toBuilder().bookingId(2).eventId(1).prisonId("LEI").build(),
+        attendance.toBuilder().bookingId(3).eventId(1).build(),
+      ),
+    ).toList()
+    attendanceChangesRepository.save(
+      AttendanceChange(attendance = saved[1], changedFrom = AttendanceChangeValues.Attended, changedTo = AttendanceChangeValues.Refused),
+    )
+    attendanceChangesRepository.save(
+      AttendanceChange(attendance = saved[3], changedFrom = AttendanceChangeValues.Attended, changedTo = AttendanceChangeValues.Refused),
+    )
+
+    TestTransaction.flagForCommit()
+    TestTransaction.end()
+    TestTransaction.start()
+
+    assertThat(attendanceRepository.countByBucketForBookings(listOf(1L, 2L)))
+      .containsExactlyInAnyOrder(
+        PrisonAttendanceBucketCount("MDI", LocalDate.now(), TimePeriod.AM, null, true, 1),
+        PrisonAttendanceBucketCount("MDI", LocalDate.now(), TimePeriod.AM, AbsentReason.Refused, false, 1),
+        PrisonAttendanceBucketCount("LEI", LocalDate.now(), TimePeriod.AM, null, true, 1),
+      )
+    assertThat(attendanceChangesRepository.deleteByAttendanceBookingIdIn(listOf(1L, 2L))).isEqualTo(1)
+    assertThat(attendanceRepository.deleteByBookingIdIn(listOf(1L, 2L))).isEqualTo(3)
+
+    TestTransaction.flagForCommit()
+    TestTransaction.end()
+
+    assertThat(attendanceRepository.findAll()).extracting("bookingId").containsExactly(3L)
+    assertThat(attendanceChangesRepository.findAll()).hasSize(1)
+  }
+
+  @Test
+  fun `should reject a second attendance for the same booking, event and session`() {
+    attendanceRepository.saveAndFlush(attendance.toBuilder().build())
+
+    assertThatThrownBy {
+      attendanceRepository.saveAndFlush(attendance.toBuilder().attended(false).absentReason(AbsentReason.Refused).build())
+    }.isInstanceOf(DataIntegrityViolationException::class.java)
+  }
+
+  @Test
+  fun `should plan the attendance queries against their indexes`() {
+    fun plan(query: String) = entityManager.createNativeQuery("EXPLAIN $query").singleResult.toString()
+
+    assertThat(
+      plan(
+        "SELECT * FROM OFFENDER_ATTENDANCE WHERE PRISON_ID = 'MDI' AND BOOKING_ID = 1 AND EVENT_ID = 2 " +
+          "AND EVENT_DATE = DATE '2020-01-01' AND PERIOD = 'AM'",
+      ),
+    ).contains("OFFENDER_ATTENDANCE_SESSION_UK")
+    assertThat(
+      plan(
+        "SELECT * FROM OFFENDER_ATTENDANCE WHERE PRISON_ID = 'MDI' AND EVENT_DATE = DATE '2020-01-01' AND PERIOD = 'AM' " +
+          "AND ABSENT_REASON IS NOT NULL",
+      ),
+    ).contains("OFFENDER_ATTENDANCE_SESSION_IDX")
+    assertThat(
+      plan(
+        "SELECT * FROM OFFENDER_ATTENDANCE WHERE PRISON_ID = 'MDI' AND ABSENT_REASON = 'Refused' " +
+          "AND EVENT_DATE BETWEEN DATE '2020-01-01' AND DATE '2020-01-31' AND PERIOD IN ('AM', 'PM')",
+      ),
+    ).contains("OFFENDER_ATTENDANCE_REASON_IDX")
+  }
+
   @Test
   fun `should match on date range, period and absent reason`() {
     val attendances = setOf(
@@ -14,8 +14,11 @@ import org.mockito.kotlin.any
 import org.mockito.kotlin.anyOrNull
 import org.mockito.kotlin.eq
 import org.mockito.kotlin.mock
+import org.mockito.kotlin.never
 import org.mockito.kotlin.verify
 import org.mockito.kotlin.whenever
+import org.springframework.cache.concurrent.ConcurrentMapCacheManager
+import uk.gov.justice.digital.hmpps.whereabouts.config.CacheConfiguration
 import uk.gov.justice.digital.hmpps.whereabouts.dto.AppointmentSearchDto
 import uk.gov.justice.digital.hmpps.whereabouts.dto.CreatedAppointmentDetailsDto
 import uk.gov.justice.digital.hmpps.whereabouts.dto.OffenderBooking
@@ -34,6 +37,7 @@ import java.util.*
 
 class AppointmentServiceTest {
   private val prisonApiService: PrisonApiService = mock()
+  private val offenderNoCache = OffenderNoCache(ConcurrentMapCacheManager(CacheConfiguration.OFFENDER_NOS), prisonApiService)
   private val recurringAppointmentRepository: RecurringAppointmentRepository = mock()
   private val telemetryClient: TelemetryClient = mock()
 
@@ -43,6 +47,7 @@ class AppointmentServiceTest {
   fun before() {
     appointmentService = AppointmentService(
       prisonApiService,
+      offenderNoCache,
       recurringAppointmentRepository,
       telemetryClient,
     )
@@ -274,6 +279,30 @@ class AppointmentServiceTest {
       verify(prisonApiService).getOffenderNoFromBookingId(BOOKING_ID)
     }
 
+    @Test
+    fun `only asks for the nomis prison number of a booking once`() {
+      appointmentService.getAppointment(1)
+      appointmentService.getAppointment(1)
+
+      verify(prisonApiService).getOffenderNoFromBookingId(BOOKING_ID)
+    }
+
+    @Test
+    fun `uses the nomis prison number of a booking already seen in a batch lookup`() {
+      whenever(prisonApiService.getScheduledAppointments(anyString(), any(), anyOrNull(), anyOrNull())).thenReturn(emptyList())
+      whenever(prisonApiService.getOffenderDetailsFromOffenderNos(any(), any())).thenReturn(
+        listOf(
+          OffenderBooking(BOOKING_ID, "123", "A1234BB", "A", "Name", "MDI", LocalDate.of(2000, 1, 2), 44L, "MDI-1-1"),
+        ),
+      )
+
+      appointmentService.getAppointments(AGENCY_ID, DATE, TIME_SLOT, OFFENDER_LOCATION_PREFIX, LOCATION_ID)
+      val appointment = appointmentService.getAppointment(1)
+
+      assertThat(appointment.appointment.offenderNo).isEqualTo("A1234BB")
+      verify(prisonApiService, never()).getOffenderNoFromBookingId(any())
+    }
+
     @Test
     fun `throws entity not found exception`() {
       whenever(prisonApiService.getPrisonAppointment(anyLong())).thenThrow(EntityNotFoundException::class.java)
@@ -0,0 +1,247 @@
+package uk.gov.justice.digital.hmpps.whereabouts.services
+
+import com.microsoft.applicationinsights.TelemetryClient
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.mockito.kotlin.any
+import org.mockito.kotlin.anyOrNull
+import org.mockito.kotlin.argumentCaptor
+import org.mockito.kotlin.doAnswer
+import org.mockito.kotlin.doThrow
+import org.mockito.kotlin.eq
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.never
+import org.mockito.kotlin.times
+import org.mockito.kotlin.verify
+import org.mockito.kotlin.verifyNoInteractions
+import org.mockito.kotlin.whenever
+import org.springframework.transaction.PlatformTransactionManager
+import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.UpdateAttendanceDto
+import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentReason
+import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentSubReason
+import uk.gov.justice.digital.hmpps.whereabouts.model.Attendance
+import uk.gov.justice.digital.hmpps.whereabouts.model.AttendanceOutboxEntry
+import uk.gov.justice.digital.hmpps.whereabouts.model.TimePeriod
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceOutboxRepository
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceRepository
+import java.time.Clock
+import java.time.Duration
+import java.time.LocalDate
+import java.time.LocalDateTime
+import java.time.ZoneId
+import java.util.Optional
+
+class AttendanceOutboxDispatcherTest {
+  private val attendanceOutboxRepository: AttendanceOutboxRepository = mock()
+  private val attendanceRepository: AttendanceRepository = mock()
+  private val prisonApiService: PrisonApiService = mock()
+  private val iepWarningService: IEPWarningService = mock()
+  private val nomisEventOutcomeMapper: NomisEventOutcomeMapper = mock()
+  private val telemetryClient: TelemetryClient = mock()
+
+  private val now = LocalDateTime.of(2026, 10, 1, 10, 0)
+  private val clock = Clock.fixed(now.atZone(ZoneId.systemDefault()).toInstant(), ZoneId.systemDefault())
+
+  private val dispatcher = AttendanceOutboxDispatcher(
+    attendanceOutboxRepository,
+    attendanceRepository,
+    prisonApiService,
+    iepWarningService,
+    nomisEventOutcomeMapper,
+    telemetryClient,
+    clock,
+    mock<PlatformTransactionManager>(),
+    50,
+    3,
+    Duration.ofSeconds(30),
+    Duration.ofMinutes(5),
+  )
+
+  private val attendance = Attendance.builder()
+    .id(1)
+    .bookingId(100)
+    .eventId(2)
+    .eventLocationId(3)
+    .eventDate(LocalDate.of(2026, 10, 1))
+    .period(TimePeriod.AM)
+    .prisonId("LEI")
+    .attended(false)
+    .paid(false)
+    .absentReason(AbsentReason.RefusedIncentiveLevelWarning)
+    .absentSubReason(AbsentSubReason.ExternalMoves)
+    .comments("hello")
+    .build()
+
+  private val eventOutcome = EventOutcome("UNACAB", null, "External moves. hello")
+
+  @BeforeEach
+  fun before() {
+    whenever(attendanceRepository.findById(1)).thenReturn(Optional.of(attendance))
+    whenever(nomisEventOutcomeMapper.getEventOutcome(anyOrNull(), anyOrNull(), any(), any(), anyOrNull())).thenReturn(eventOutcome)
+    whenever(iepWarningService.postIEPWarningIfRequired(any(), anyOrNull(), anyOrNull(), anyOrNull(), anyOrNull(), any())).thenReturn(Optional.empty())
+    whenever(iepWarningService.handleIEPWarningScenarios(any(), any())).thenReturn(Optional.empty())
+  }
+
+  @Test
+  fun `sends a new attendance to NOMIS and stores the case note id of the warning`() {
+    val entry = entry(id = 10, created = true)
+    whenever(attendanceOutboxRepository.findByAttendanceIdForUpdate(1)).thenReturn(listOf(entry))
+    whenever(iepWarningService.postIEPWarningIfRequired(any(), anyOrNull(), anyOrNull(), anyOrNull(), anyOrNull(), any())).thenReturn(Optional.of(99L))
+
+    assertThat(dispatcher.dispatch(1)).isTrue()
+
+    verify(nomisEventOutcomeMapper).getEventOutcome(AbsentReason.RefusedIncentiveLevelWarning, AbsentSubReason.ExternalMoves, false, false, "hello")
+    verify(prisonApiService).putAttendance(100, 2, eventOutcome)
+    verify(iepWarningService).postIEPWarningIfRequired(100, null, AbsentReason.RefusedIncentiveLevelWarning, AbsentSubReason.ExternalMoves, "hello", LocalDate.of(2026, 10, 1))
+    verify(attendanceRepository).updateCaseNoteId(1, 99)
+    verify(attendanceOutboxRepository).deleteAllById(listOf(10L))
+  }
+
+  @Test
+  fun `decides on warnings from the state before the earliest change`() {
+    whenever(attendanceOutboxRepository.findByAttendanceIdForUpdate(1)).thenReturn(
+      listOf(entry(id = 10, previousAbsentReason = null), entry(id = 11, previousAbsentReason = AbsentReason.Refused)),
+    )
+
+    assertThat(dispatcher.dispatch(1)).isTrue()
+
+    val before = argumentCaptor<Attendance>()
+    verify(iepWarningService).handleIEPWarningScenarios(
+      before.capture(),
+      eq(
+        UpdateAttendanceDto(
+          attended = false,
+          paid = false,
+          absentReason = AbsentReason.RefusedIncentiveLevelWarning,
+          absentSubReason = AbsentSubReason.ExternalMoves,
+          comments = "hello",
+        ),
+      ),
+    )
+    assertThat(before.firstValue.absentReason).isNull()
+    verify(prisonApiService).putAttendance(100, 2, eventOutcome)
+    verify(attendanceRepository, never()).updateCaseNoteId(any(), any())
+    verify(attendanceOutboxRepository).deleteAllById(listOf(10L, 11L))
+  }
+
+  @Test
+  fun `does not post the warning again when the entries could not be removed`() {
+    val entry = entry(id = 10, created = true)
+    whenever(attendanceOutboxRepository.findByAttendanceIdForUpdate(1)).thenReturn(listOf(entry))
+    whenever(attendanceOutboxRepository.findAllById(listOf(10L))).thenReturn(listOf(entry))
+    whenever(iepWarningService.postIEPWarningIfRequired(any(), anyOrNull(), anyOrNull(), anyOrNull(), anyOrNull(), any())).thenReturn(Optional.of(99L))
+    doThrow(RuntimeException("connection lost")).doNothing().whenever(attendanceOutboxRepository).deleteAllById(listOf(10L))
+
+    assertThat(dispatcher.dispatch(1)).isFalse()
+    assertThat(entry.iepWarningSent).isTrue()
+    verify(attendanceRepository).updateCaseNoteId(1, 99)
+
+    entry.nextAttemptAt = now
+    whenever(attendanceRepository.findById(1)).thenReturn(Optional.of(attendance.toBuilder().caseNoteId(99).build()))
+
+    assertThat(dispatcher.dispatch(1)).isTrue()
+
+    verify(iepWarningService, times(1)).postIEPWarningIfRequired(any(), anyOrNull(), anyOrNull(), anyOrNull(), anyOrNull(), any())
+    verify(prisonApiService, times(2)).putAttendance(100, 2, eventOutcome)
+    verify(attendanceOutboxRepository, times(2)).deleteAllById(listOf(10L))
+  }
+
+  @Test
+  fun `decides on warnings from the earliest change not yet sent`() {
+    whenever(attendanceOutboxRepository.findByAttendanceIdForUpdate(1)).thenReturn(
+      listOf(
+        entry(id = 10, previousAbsentReason = null, iepWarningSent = true),
+        entry(id = 11, previousAbsentReason = AbsentReason.Refused),
+      ),
+    )
+
+    assertThat(dispatcher.dispatch(1)).isTrue()
+
+    val before = argumentCaptor<Attendance>()
+    verify(iepWarningService).handleIEPWarningScenarios(before.capture(), any())
+    assertThat(before.firstValue.absentReason).isEqualTo(AbsentReason.Refused)
+    verify(attendanceOutboxRepository).findAllById(listOf(11L))
+    verify(attendanceOutboxRepository).deleteAllById(listOf(10L, 11L))
+  }
+
+  @Test
+  fun `leaves entries that are claimed or backing off`() {
+    whenever(attendanceOutboxRepository.findByAttendanceIdForUpdate(1)).thenReturn(
+      listOf(entry(id = 10), entry(id = 11, nextAttemptAt = now.plusSeconds(1))),
+    )
+
+    assertThat(dispatcher.dispatch(1)).isFalse()
+
+    verifyNoInteractions(prisonApiService, iepWarningService)
+  }
+
+  @Test
+  fun `claims entries before sending them`() {
+    val entry = entry(id = 10)
+    whenever(attendanceOutboxRepository.findByAttendanceIdForUpdate(1)).thenReturn(listOf(entry))
+    doAnswer { assertThat(entry.nextAttemptAt).isEqualTo(now.plusMinutes(5)) }
+      .whenever(prisonApiService).putAttendance(any(), any(), any())
+
+    dispatcher.dispatch(1)
+
+    verify(prisonApiService).putAttendance(100, 2, eventOutcome)
+  }
+
+  @Test
+  fun `puts entries back with a backoff when NOMIS fails`() {
+    val entry = entry(id = 10, attempts = 1)
+    whenever(attendanceOutboxRepository.findByAttendanceIdForUpdate(1)).thenReturn(listOf(entry))
+    whenever(attendanceOutboxRepository.findAllById(listOf(10L))).thenReturn(listOf(entry))
+    doThrow(DatabaseRowLockedException()).whenever(prisonApiService).putAttendance(any(), any(), any())
+
+    assertThat(dispatcher.dispatch(1)).isFalse()
+
+    assertThat(entry.attempts).isEqualTo(2)
+    assertThat(entry.nextAttemptAt).isEqualTo(now.plusSeconds(60))
+    assertThat(entry.lastError).isEqualTo(DatabaseRowLockedException().message)
+    verify(attendanceOutboxRepository, never()).deleteAllById(any())
+    verifyNoInteractions(iepWarningService, telemetryClient)
+  }
+
+  @Test
+  fun `gives up after the last attempt`() {
+    val entry = entry(id = 10, attempts = 2)
+    whenever(attendanceOutboxRepository.findByAttendanceIdForUpdate(1)).thenReturn(listOf(entry))
+    whenever(attendanceOutboxRepository.findAllById(listOf(10L))).thenReturn(listOf(entry))
+    doThrow(RuntimeException("boom")).whenever(prisonApiService).putAttendance(any(), any(), any())
+
+    dispatcher.dispatch(1)
+
+    verify(telemetryClient).trackEvent("AttendanceOutboxGaveUp", mapOf("attendanceId" to "1", "error" to "boom"), null)
+  }
+
+  @Test
+  fun `drops entries for an attendance that has been deleted`() {
+    whenever(attendanceOutboxRepository.findByAttendanceIdForUpdate(1)).thenReturn(listOf(entry(id = 10)))
+    whenever(attendanceRepository.findById(1)).thenReturn(Optional.empty())
+
+    assertThat(dispatcher.dispatch(1)).isTrue()
+
+    verifyNoInteractions(prisonApiService, iepWarningService)
+    verify(attendanceOutboxRepository).deleteAllById(listOf(10L))
+  }
+
+  private fun entry(
+    id: Long,
+    created: Boolean = false,
+    previousAbsentReason: AbsentReason? = null,
+    attempts: Int = 0,
+    nextAttemptAt: LocalDateTime = now,
+    iepWarningSent: Boolean = false,
+  ) = AttendanceOutboxEntry(
+    id = id,
+    attendanceId = 1,
+    created = created,
+    previousAbsentReason = previousAbsentReason,
+    attempts = attempts,
+    nextAttemptAt = nextAttemptAt,
+    iepWarningSent = iepWarningSent,
+    createUserId = "user",
+  )
+}
@@ -13,17 +13,26 @@ import org.mockito.ArgumentMatchers
 import org.mockito.ArgumentMatchers.anySet
 import org.mockito.kotlin.any
 import org.mockito.kotlin.anyOrNull
+import org.mockito.kotlin.argumentCaptor
 import org.mockito.kotlin.doAnswer
+import org.mockito.kotlin.doThrow
 import org.mockito.kotlin.eq
 import org.mockito.kotlin.mock
+import org.mockito.kotlin.never
 import org.mockito.kotlin.spy
+import org.mockito.kotlin.times
 import org.mockito.kotlin.verify
 import org.mockito.kotlin.verifyNoInteractions
 import org.mockito.kotlin.whenever
+import org.springframework.dao.DataIntegrityViolationException
+import org.springframework.orm.ObjectOptimisticLockingFailureException
 import org.springframework.data.domain.PageImpl
+import org.springframework.data.domain.PageRequest
 import org.springframework.data.domain.Pageable
 import org.springframework.security.authentication.TestingAuthenticationToken
 import org.springframework.security.core.context.SecurityContextHolder
+import org.springframework.transaction.PlatformTransactionManager
+import reactor.core.publisher.Mono
 import uk.gov.justice.digital.hmpps.whereabouts.config.DisabledPrisonsConfig
 import uk.gov.justice.digital.hmpps.whereabouts.dto.BookingActivity
 import uk.gov.justice.digital.hmpps.whereabouts.dto.OffenderBooking
@@ -33,6 +42,8 @@ import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendAllDto
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendanceDto
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendanceHistoryDto
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendanceSummary
+import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendanceUpdateDto
+import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendanceUpdateStatus
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.AttendancesDto
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.CreateAttendanceDto
 import uk.gov.justice.digital.hmpps.whereabouts.dto.attendance.UpdateAttendanceDto
@@ -43,8 +54,12 @@ import uk.gov.justice.digital.hmpps.whereabouts.model.Attendance
 import uk.gov.justice.digital.hmpps.whereabouts.model.AttendanceChange
 import uk.gov.justice.digital.hmpps.whereabouts.model.AttendanceChangeValues
 import uk.gov.justice.digital.hmpps.whereabouts.model.TimePeriod
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceArchiveRepository
 import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceChangesRepository
 import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceRepository
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceView
+import uk.gov.justice.digital.hmpps.whereabouts.repository.PrisonAttendanceBucketCount
+import java.time.Duration
 import java.time.LocalDate
 import java.time.LocalDateTime
 import java.util.Optional
@@ -53,10 +68,12 @@ import java.util.stream.Collectors
 class AttendanceServiceTest {
   private val attendanceRepository: AttendanceRepository = spy()
   private val attendanceChangesRepository: AttendanceChangesRepository = spy()
-  private val iepWarningService: IEPWarningService = mock()
+  private val attendanceArchiveRepository: AttendanceArchiveRepository = mock()
+  private val attendanceOutbox: AttendanceOutbox = mock()
   private val prisonApiService: PrisonApiService = mock()
   private val nomisEventOutcomeMapper: NomisEventOutcomeMapper = mock()
   private val telemetryClient: TelemetryClient = mock()
+  private val attendanceRollupService: AttendanceRollupService = mock()
 
   private val today: LocalDate = LocalDate.now()
   private val disabledPrisonsConfig: DisabledPrisonsConfig = mock()
@@ -90,10 +107,15 @@ class AttendanceServiceTest {
     disabledPrisonsConfig,
     attendanceRepository,
     attendanceChangesRepository,
+    attendanceArchiveRepository,
     prisonApiService,
-    iepWarningService,
+    attendanceOutbox,
     nomisEventOutcomeMapper,
     telemetryClient,
+    ConcurrentReads(Duration.ofSeconds(5)),
+    attendanceRollupService,
+    BulkAttendancePush(prisonApiService, 50, 4, 3, Duration.ofMillis(1)),
+    mock<PlatformTransactionManager>(),
   )
 
   init {
@@ -107,6 +129,7 @@ class AttendanceServiceTest {
       .save(ArgumentMatchers.any(Attendance::class.java))
 
     whenever(disabledPrisonsConfig.getPrisons()).thenReturn(emptyList())
+    whenever(prisonApiService.putAttendanceForMultipleBookingsAsync(any(), any())).thenReturn(Mono.empty())
   }
 
   @Test
@@ -118,7 +141,7 @@ class AttendanceServiceTest {
         .findByPrisonIdAndEventLocationIdAndEventDateAndPeriod("LEI", 1, today, TimePeriod.AM),
     )
       .thenReturn(
-        setOf(
+        viewsOf(
           Attendance.builder()
             .id(1)
             .absentReason(AbsentReason.Refused)
@@ -173,7 +196,7 @@ class AttendanceServiceTest {
         .findByPrisonIdAndEventLocationIdAndEventDateAndPeriod("LEI", 1, sevenDaysAgoTime.toLocalDate(), TimePeriod.AM),
     )
       .thenReturn(
-        setOf(
+        viewsOf(
           Attendance.builder()
             .id(1)
             .absentReason(AbsentReason.Refused)
@@ -228,7 +251,7 @@ class AttendanceServiceTest {
         .findByPrisonIdAndEventLocationIdAndEventDateAndPeriod("LEI", 1, sixDaysAgoTime.toLocalDate(), TimePeriod.AM),
     )
       .thenReturn(
-        setOf(
+        viewsOf(
           Attendance.builder()
             .id(1)
             .absentReason(AbsentReason.Refused)
@@ -283,7 +306,7 @@ class AttendanceServiceTest {
         .findByPrisonIdAndEventLocationIdAndEventDateAndPeriod("LEI", 1, yesterdayTime.toLocalDate(), TimePeriod.AM),
     )
       .thenReturn(
-        setOf(
+        viewsOf(
           Attendance.builder()
             .id(1)
             .absentReason(AbsentReason.Refused)
@@ -353,82 +376,23 @@ class AttendanceServiceTest {
         .comments("hello")
         .build(),
     )
-  }
-
-  @Test
-  fun `should call nomisEventOutcomeMapper with the correct parameters`() {
-    whenever(nomisEventOutcomeMapper.getEventOutcome(any(), any(), any(), any(), any())).thenReturn(
-      EventOutcome(
-        "ACCAB",
-        null,
-        "hello",
-      ),
-    )
-
-    val attendance = testAttendanceDto.copy(
-      absentReason = AbsentReason.AcceptableAbsence,
-      attended = false,
-      paid = true,
-    )
-
-    service.createAttendance(attendance)
-
-    verify(nomisEventOutcomeMapper).getEventOutcome(
-      AbsentReason.AcceptableAbsence,
-      AbsentSubReason.ExternalMoves,
-      false,
-      true,
-      "hello",
-    )
-  }
-
-  @Test
-  fun `should save case note id returned from the postCaseNote api call`() {
-    whenever(
-      iepWarningService.postIEPWarningIfRequired(
-        any(),
-        anyOrNull(),
-        any(),
-        any(),
-        any(),
-        any(),
+    verify(attendanceRollupService).added(
+      listOf(
+        Attendance.builder()
+          .attended(true)
+          .paid(true)
+          .eventId(2)
+          .eventLocationId(3)
+          .period(TimePeriod.AM)
+          .prisonId("LEI")
+          .bookingId(100)
+          .eventDate(today)
+          .comments("hello")
+          .build(),
       ),
-    ).thenReturn(Optional.of(100L))
-
-    service.createAttendance(
-      testAttendanceDto
-        .copy(
-          attended = false,
-          paid = false,
-          absentReason = AbsentReason.Refused,
-          absentSubReason = AbsentSubReason.ExternalMoves,
-          eventId = 2,
-          eventLocationId = 3,
-          period = TimePeriod.AM,
-          prisonId = "LEI",
-          bookingId = 100L,
-          eventDate = today,
-          comments = "hello, world",
-        ),
-    )
-
-    verify(attendanceRepository).save(
-      Attendance
-        .builder()
-        .attended(false)
-        .paid(false)
-        .absentReason(AbsentReason.Refused)
-        .absentSubReason(AbsentSubReason.ExternalMoves)
-        .eventId(2)
-        .eventLocationId(3)
-        .period(TimePeriod.AM)
-        .prisonId("LEI")
-        .bookingId(100L)
-        .caseNoteId(100L)
-        .eventDate(today)
-        .comments("hello, world")
-        .build(),
     )
+    verify(attendanceOutbox).recorded(any())
+    verify(prisonApiService).evictScheduledActivities("LEI", today, TimePeriod.AM)
   }
 
   @Test
@@ -440,32 +404,13 @@ class AttendanceServiceTest {
     }.isExactlyInstanceOf(AttendanceNotFound::class.java)
   }
 
+  private val duplicateSession = DataIntegrityViolationException(
+    "could not execute statement [ERROR: duplicate key value violates unique constraint \"offender_attendance_session_uk\"]",
+  )
+
   @Test
   fun `should throw an AttendanceExistsException when attendance already created`() {
-    whenever(
-      attendanceRepository.findByPrisonIdAndBookingIdAndEventIdAndEventDateAndPeriod(
-        "LEI",
-        1,
-        1,
-        LocalDate.now(),
-        TimePeriod.AM,
-      ),
-    ).thenReturn(
-      setOf(
-        Attendance
-          .builder()
-          .id(1)
-          .attended(true)
-          .paid(true)
-          .eventId(1)
-          .eventLocationId(2)
-          .eventDate(LocalDate.now())
-          .prisonId("LEI")
-          .bookingId(1)
-          .period(TimePeriod.AM)
-          .build(),
-      ),
-    )
+    doThrow(duplicateSession).whenever(attendanceRepository).flush()
 
     assertThatThrownBy {
       service.createAttendance(
@@ -486,6 +431,42 @@ class AttendanceServiceTest {
     }.isExactlyInstanceOf(AttendanceExists::class.java)
   }
 
+  @Test
+  fun `should return the attendance already created for a retried idempotency key`() {
+    val attendance = CreateAttendanceDto(
+      attended = true,
+      paid = true,
+      bookingId = 1,
+      eventId = 1,
+      eventLocationId = 2,
+      period = TimePeriod.AM,
+      prisonId = "LEI",
+      eventDate = LocalDate.now(),
+    )
+    doThrow(duplicateSession).whenever(attendanceRepository).flush()
+    whenever(attendanceRepository.findByIdempotencyKey("key-1")).thenReturn(
+      Optional.of(
+        Attendance.builder().id(5).bookingId(1).eventId(1).eventLocationId(2).eventDate(LocalDate.now())
+          .prisonId("LEI").period(TimePeriod.AM).attended(true).paid(true).idempotencyKey("key-1").build(),
+      ),
+    )
+
+    assertThat(service.createAttendance(attendance, "key-1").id).isEqualTo(5)
+    assertThatThrownBy { service.createAttendance(attendance.copy(eventId = 9), "key-1") }
+      .isExactlyInstanceOf(IdempotencyKeyReused::class.java)
+    assertThatThrownBy { service.createAttendance(attendance, "key-2") }
+      .isExactlyInstanceOf(AttendanceExists::class.java)
+  }
+
+  @Test
+  fun `should not take other integrity failures when creating an attendance for a conflict`() {
+    val rollupFailure = DataIntegrityViolationException("value too long for ATTENDANCE_DAILY_ROLLUP.ABSENT_REASON")
+    doThrow(rollupFailure).whenever(attendanceRollupService).added(any())
+
+    assertThatThrownBy { service.createAttendance(testAttendanceDto, "key-1") }.isSameAs(rollupFailure)
+    verify(attendanceRepository, never()).findByIdempotencyKey(any())
+  }
+
   @Test
   fun `should update select fields only`() {
     whenever(attendanceRepository.findById(1)).thenReturn(
@@ -537,8 +518,6 @@ class AttendanceServiceTest {
 
   @Test
   fun `should go from unpaid none attendance to paid attendance `() {
-    whenever(iepWarningService.handleIEPWarningScenarios(any(), any())).thenReturn(Optional.empty())
-
     whenever(attendanceRepository.findById(1)).thenReturn(
       Optional.of(
         Attendance
@@ -586,7 +565,8 @@ class AttendanceServiceTest {
         .build(),
     )
 
-    verify(iepWarningService).handleIEPWarningScenarios(any(), any())
+    verify(attendanceOutbox).changed(any(), eq(AbsentReason.Refused))
+    verify(prisonApiService).evictScheduledActivities("LEI", LocalDate.now(), TimePeriod.AM)
   }
 
   @Test
@@ -619,6 +599,160 @@ class AttendanceServiceTest {
     }.isExactlyInstanceOf(AttendanceLocked::class.java)
   }
 
+  @Test
+  fun `should reject an update made against an earlier version`() {
+    whenever(attendanceRepository.findById(1)).thenReturn(
+      Optional.of(
+        Attendance.builder().id(1).attended(true).paid(true).eventId(1).eventLocationId(2).eventDate(today)
+          .prisonId("LEI").bookingId(1).period(TimePeriod.AM).version(4).build(),
+      ),
+    )
+
+    assertThatThrownBy {
+      service.updateAttendance(1, UpdateAttendanceDto(paid = false, attended = false), 3)
+    }.isExactlyInstanceOf(AttendanceConflict::class.java)
+
+    verify(attendanceRepository, never()).save(any())
+    verifyNoInteractions(attendanceOutbox, prisonApiService)
+  }
+
+  @Test
+  fun `should report a conflict when the attendance is updated concurrently`() {
+    whenever(attendanceRepository.findById(1)).thenReturn(
+      Optional.of(
+        Attendance.builder().id(1).attended(true).paid(true).eventId(1).eventLocationId(2).eventDate(today)
+          .prisonId("LEI").bookingId(1).period(TimePeriod.AM).version(4).build(),
+      ),
+    )
+    doThrow(ObjectOptimisticLockingFailureException(Attendance::class.java, 1L)).whenever(attendanceRepository).flush()
+
+    assertThatThrownBy {
+      service.updateAttendance(1, UpdateAttendanceDto(paid = false, attended = false), 4)
+    }.isExactlyInstanceOf(AttendanceConflict::class.java)
+  }
+
+  @Test
+  fun `should update many attendances, pushing to NOMIS in bulk and reporting each one`() {
+    val attendance = Attendance.builder()
+      .attended(true)
+      .paid(true)
+      .eventId(1)
+      .eventLocationId(2)
+      .eventDate(today)
+      .prisonId("LEI")
+      .period(TimePeriod.AM)
+      .build()
+    val stored = mapOf(
+      1L to attendance.toBuilder().id(1).bookingId(1).build(),
+      2L to attendance.toBuilder().id(2).bookingId(2).createDateTime(today.minusDays(2).atTime(10, 10)).build(),
+      3L to attendance.toBuilder().id(3).bookingId(3).attended(false).paid(false).absentReason(AbsentReason.RefusedIncentiveLevelWarning).build(),
+      4L to attendance.toBuilder().id(4).bookingId(4).build(),
+    )
+    whenever(attendanceRepository.findAllById(any())).thenAnswer { invocation ->
+      invocation.getArgument<Iterable<Long>>(0).mapNotNull { stored[it]?.toBuilder()?.build() }
+    }
+    whenever(nomisEventOutcomeMapper.getEventOutcome(anyOrNull(), anyOrNull(), any(), any(), anyOrNull())).thenAnswer { invocation ->
+      EventOutcome(invocation.getArgument<AbsentReason?>(0)?.eventOutcome ?: "ATT")
+    }
+    whenever(prisonApiService.putAttendanceForMultipleBookingsAsync(any(), eq(EventOutcome("CANC"))))
+      .thenReturn(Mono.error(RuntimeException("rejected")))
+
+    val results = service.updateAttendances(
+      listOf(
+        AttendanceUpdateDto(id = 1, attended = false, paid = false, absentReason = AbsentReason.UnacceptableAbsence),
+        AttendanceUpdateDto(id = 2, attended = false, paid = false, absentReason = AbsentReason.UnacceptableAbsence),
+        AttendanceUpdateDto(id = 3, attended = true, paid = true),
+        AttendanceUpdateDto(id = 4, attended = false, paid = false, absentReason = AbsentReason.SessionCancelled),
+        AttendanceUpdateDto(id = 99, attended = true, paid = true),
+      ),
+    ).results
+
+    assertThat(results).extracting("id", "status").containsExactly(
+      Tuple(1L, AttendanceUpdateStatus.UPDATED),
+      Tuple(2L, AttendanceUpdateStatus.LOCKED),
+      Tuple(3L, AttendanceUpdateStatus.UPDATED),
+      Tuple(4L, AttendanceUpdateStatus.FAILED),
+      Tuple(99L, AttendanceUpdateStatus.NOT_FOUND),
+    )
+    assertThat(results[0].attendance?.absentReason).isEqualTo(AbsentReason.UnacceptableAbsence)
+
+    verify(prisonApiService).putAttendanceForMultipleBookingsAsync(
+      setOf(BookingActivity(bookingId = 1, activityId = 1)),
+      EventOutcome(AbsentReason.UnacceptableAbsence.eventOutcome),
+    )
+    verify(prisonApiService).putAttendanceForMultipleBookingsAsync(setOf(BookingActivity(bookingId = 4, activityId = 1)), EventOutcome("CANC"))
+    // the incentive level warning for 3 is rescinded through the outbox, which also updates NOMIS
+    verify(attendanceOutbox).changed(any(), eq(AbsentReason.RefusedIncentiveLevelWarning))
+    verify(attendanceOutbox).changed(any(), anyOrNull())
+
+    val changes = argumentCaptor<List<AttendanceChange>>()
+    verify(attendanceChangesRepository).saveAll(changes.capture())
+    assertThat(changes.firstValue).extracting("attendance.id", "changedTo")
+      .containsExactlyInAnyOrder(Tuple(1L, AttendanceChangeValues.UnacceptableAbsence), Tuple(3L, AttendanceChangeValues.Attended))
+  }
+
+  @Test
+  fun `should report a conflict for an attendance changed while a bulk update of it was being made`() {
+    val attendance = Attendance.builder().attended(true).paid(true).eventId(1).eventLocationId(2).eventDate(today)
+      .prisonId("LEI").period(TimePeriod.AM).version(1).build()
+    val first = attendance.toBuilder().id(1).bookingId(1).build()
+    val second = attendance.toBuilder().id(2).bookingId(2).build()
+    whenever(attendanceRepository.findAllById(any()))
+      .thenReturn(listOf(first.toBuilder().build(), second.toBuilder().build()))
+      .thenReturn(listOf(first.toBuilder().absentReason(AbsentReason.Refused).attended(false).version(2).build(), second.toBuilder().build()))
+    whenever(nomisEventOutcomeMapper.getEventOutcome(anyOrNull(), anyOrNull(), any(), any(), anyOrNull())).thenReturn(EventOutcome("ATT"))
+
+    val results = service.updateAttendances(
+      listOf(
+        AttendanceUpdateDto(id = 1, attended = true, paid = false),
+        AttendanceUpdateDto(id = 2, attended = true, paid = false),
+      ),
+    ).results
+
+    assertThat(results).extracting("id", "status").containsExactly(
+      Tuple(1L, AttendanceUpdateStatus.CONFLICT),
+      Tuple(2L, AttendanceUpdateStatus.UPDATED),
+    )
+    // NOMIS was sent this update for 1, so is put back to the change made in between
+    val resent = argumentCaptor<Attendance>()
+    verify(attendanceOutbox).resend(resent.capture())
+    assertThat(resent.firstValue.absentReason).isEqualTo(AbsentReason.Refused)
+    val changes = argumentCaptor<List<AttendanceChange>>()
+    verify(attendanceChangesRepository).saveAll(changes.capture())
+    assertThat(changes.firstValue).extracting("attendance.id").containsExactly(2L)
+  }
+
+  @Test
+  fun `should save bulk updates one at a time when saving them together fails`() {
+    val attendance = Attendance.builder().attended(true).paid(true).eventId(1).eventLocationId(2).eventDate(today)
+      .prisonId("LEI").period(TimePeriod.AM).build()
+    val stored = mapOf(1L to attendance.toBuilder().id(1).bookingId(1).build(), 2L to attendance.toBuilder().id(2).bookingId(2).build())
+    whenever(attendanceRepository.findAllById(any())).thenAnswer { invocation ->
+      invocation.getArgument<Iterable<Long>>(0).mapNotNull { stored[it]?.toBuilder()?.build() }
+    }
+    whenever(attendanceRepository.findById(2)).thenReturn(Optional.of(stored.getValue(2)))
+    whenever(nomisEventOutcomeMapper.getEventOutcome(anyOrNull(), anyOrNull(), any(), any(), anyOrNull())).thenReturn(EventOutcome("ATT"))
+    // together, then 1 on its own, then 2 on its own
+    doThrow(DataIntegrityViolationException("together"))
+      .doNothing()
+      .doThrow(DataIntegrityViolationException("2 alone"))
+      .whenever(attendanceRepository).flush()
+
+    val results = service.updateAttendances(
+      listOf(
+        AttendanceUpdateDto(id = 1, attended = true, paid = false),
+        AttendanceUpdateDto(id = 2, attended = true, paid = false),
+      ),
+    ).results
+
+    assertThat(results).extracting("id", "status").containsExactly(
+      Tuple(1L, AttendanceUpdateStatus.UPDATED),
+      Tuple(2L, AttendanceUpdateStatus.FAILED),
+    )
+    // NOMIS was sent the update for 2, so is put back to the attendance as stored
+    verify(attendanceOutbox).resend(stored.getValue(2))
+  }
+
   @Test
   fun `should throw an AttendanceLocked when created date is yesterday`() {
     val yesterday = LocalDate.now().minusDays(1)
@@ -678,17 +812,6 @@ class AttendanceServiceTest {
 
   @Test
   fun `should return attendance dto on creation`() {
-    whenever(
-      iepWarningService.postIEPWarningIfRequired(
-        any(),
-        anyOrNull(),
-        any(),
-        any(),
-        any(),
-        any(),
-      ),
-    ).thenReturn(Optional.of(100L))
-
     val created = service.createAttendance(
       CreateAttendanceDto(
         absentReason = AbsentReason.Refused,
@@ -711,7 +834,6 @@ class AttendanceServiceTest {
         .attended(false)
         .paid(false)
         .comments(null)
-        .caseNoteId(100L)
         .absentReason(AbsentReason.Refused)
         .absentSubReason(AbsentSubReason.ExternalMoves)
         .eventId(1)
@@ -801,7 +923,8 @@ class AttendanceServiceTest {
       ),
     )
 
-    assertThat(savedAttendanceDetails).containsExactlyInAnyOrder(
+    assertThat(savedAttendanceDetails.failed).isNull()
+    assertThat(savedAttendanceDetails.attendances).containsExactlyInAnyOrder(
       AttendanceDto
         .builder()
         .bookingId(1L)
@@ -829,10 +952,72 @@ class AttendanceServiceTest {
     )
 
     verify(attendanceRepository).saveAll(anySet())
-    verify(prisonApiService).putAttendanceForMultipleBookings(
+    verify(prisonApiService).putAttendanceForMultipleBookingsAsync(
       bookingActivities,
       EventOutcome("ATT", "STANDARD", ""),
     )
+    verify(prisonApiService).evictScheduledActivities("LEI", LocalDate.now().minusDays(1), TimePeriod.AM)
+  }
+
+  @Test
+  fun `should leave out bookings already recorded for the session when attending all`() {
+    whenever(nomisEventOutcomeMapper.getEventOutcome(anyOrNull(), anyOrNull(), any(), any(), any()))
+      .thenReturn(EventOutcome("ATT", "STANDARD", ""))
+    val yesterday = LocalDate.now().minusDays(1)
+    whenever(attendanceRepository.findByPrisonIdAndBookingIdInAndEventDateAndPeriod("LEI", setOf(1L, 2L), yesterday, TimePeriod.AM))
+      .thenReturn(
+        setOf(
+          AttendanceView.from(
+            Attendance.builder().id(1).bookingId(1).eventId(1).eventLocationId(2).eventDate(yesterday)
+              .prisonId("LEI").period(TimePeriod.AM).attended(true).paid(true).build(),
+          ),
+        ),
+      )
+
+    val savedAttendanceDetails = service.attendAll(
+      AttendAllDto(
+        eventDate = yesterday,
+        eventLocationId = 2L,
+        prisonId = "LEI",
+        period = TimePeriod.AM,
+        bookingActivities = setOf(BookingActivity(activityId = 1L, bookingId = 1L), BookingActivity(activityId = 1L, bookingId = 2L)),
+      ),
+    )
+
+    assertThat(savedAttendanceDetails.attendances).extracting("bookingId").containsExactly(2L)
+    verify(prisonApiService).putAttendanceForMultipleBookingsAsync(
+      setOf(BookingActivity(activityId = 1L, bookingId = 2L)),
+      EventOutcome("ATT", "STANDARD", ""),
+    )
+  }
+
+  @Test
+  fun `should record the rest of a bulk create when another request records one of its bookings first`() {
+    whenever(nomisEventOutcomeMapper.getEventOutcome(anyOrNull(), anyOrNull(), any(), any(), any()))
+      .thenReturn(EventOutcome("ATT", "STANDARD", ""))
+    val yesterday = LocalDate.now().minusDays(1)
+    val recordedFirst = Attendance.builder().id(20).bookingId(2).eventId(1).eventLocationId(2).eventDate(yesterday)
+      .prisonId("LEI").period(TimePeriod.AM).attended(false).paid(false).absentReason(AbsentReason.Refused).build()
+    whenever(attendanceRepository.findByPrisonIdAndBookingIdInAndEventDateAndPeriod("LEI", setOf(2L), yesterday, TimePeriod.AM))
+      .thenReturn(setOf(AttendanceView.from(recordedFirst)))
+    whenever(attendanceRepository.findAllById(listOf(20L))).thenReturn(listOf(recordedFirst))
+    // together, then each booking on its own
+    doThrow(duplicateSession).doNothing().doThrow(duplicateSession).whenever(attendanceRepository).flush()
+
+    val savedAttendanceDetails = service.attendAll(
+      AttendAllDto(
+        eventDate = yesterday,
+        eventLocationId = 2L,
+        prisonId = "LEI",
+        period = TimePeriod.AM,
+        bookingActivities = linkedSetOf(BookingActivity(activityId = 1L, bookingId = 1L), BookingActivity(activityId = 1L, bookingId = 2L)),
+      ),
+    )
+
+    assertThat(savedAttendanceDetails.attendances).extracting("bookingId").containsExactly(1L)
+    assertThat(savedAttendanceDetails.failed).containsExactly(BookingActivity(activityId = 1L, bookingId = 2L))
+    // NOMIS was sent this outcome for booking 2, so is put back to the attendance recorded first
+    verify(attendanceOutbox).resend(recordedFirst)
   }
 
   @Nested
@@ -841,22 +1026,29 @@ class AttendanceServiceTest {
     val date: LocalDate = LocalDate.now()
     val period = TimePeriod.AM
 
+    @BeforeEach
+    fun stubScheduledActivities() {
+      whenever(prisonApiService.getScheduledActivitiesAsync(any(), any(), any())).thenReturn(Mono.just(emptyList()))
+    }
+
     @Test
     fun `should fetch scheduled activities and attendances`() {
       service.getPrisonersUnaccountedFor(prisonId, date, period)
 
-      verify(prisonApiService).getScheduledActivities(prisonId, date, period)
+      verify(prisonApiService).getScheduledActivitiesAsync(prisonId, date, period)
       verify(attendanceRepository).findByPrisonIdAndPeriodAndEventDateBetween(prisonId, period, date, date)
     }
 
     @Test
     fun `should remove attendances from scheduled activities`() {
-      whenever(prisonApiService.getScheduledActivities(any(), any(), any())).thenReturn(
-        listOf(
-          scheduleDto.copy(bookingId = 1, eventId = 2, offenderNo = "MATCH1"),
-          scheduleDto.copy(bookingId = 2, eventId = 2, offenderNo = "MATCH2"),
-          scheduleDto.copy(bookingId = 3, eventId = 1, offenderNo = "MATCH3"),
-          scheduleDto.copy(bookingId = 3, eventId = 2, offenderNo = "NO_MATCH"),
+      whenever(prisonApiService.getScheduledActivitiesAsync(any(), any(), any())).thenReturn(
+        Mono.just(
+          listOf(
+            scheduleDto.copy(bookingId = 1, eventId = 2, offenderNo = "MATCH1"),
+            scheduleDto.copy(bookingId = 2, eventId = 2, offenderNo = "MATCH2"),
+            scheduleDto.copy(bookingId = 3, eventId = 1, offenderNo = "MATCH3"),
+            scheduleDto.copy(bookingId = 3, eventId = 2, offenderNo = "NO_MATCH"),
+          ),
         ),
       )
       whenever(attendanceRepository.findByPrisonIdAndPeriodAndEventDateBetween(any(), any(), any(), any()))
@@ -904,7 +1096,8 @@ class AttendanceServiceTest {
       ),
     )
 
-    assertThat(savedAttendanceDetails).containsExactlyInAnyOrder(
+    assertThat(savedAttendanceDetails.failed).isNull()
+    assertThat(savedAttendanceDetails.attendances).containsExactlyInAnyOrder(
       AttendanceDto
         .builder()
         .bookingId(1L)
@@ -936,12 +1129,39 @@ class AttendanceServiceTest {
     )
 
     verify(attendanceRepository).saveAll(anySet())
-    verify(prisonApiService).putAttendanceForMultipleBookings(
+    verify(prisonApiService).putAttendanceForMultipleBookingsAsync(
       bookingActivities,
       EventOutcome("ACCAB", null, "test"),
     )
   }
 
+  @Test
+  fun `should not record any attendances when NOMIS rejects them all`() {
+    whenever(nomisEventOutcomeMapper.getEventOutcome(any(), anyOrNull(), any(), any(), any()))
+      .thenReturn(EventOutcome("ACCAB", null, "test"))
+    whenever(prisonApiService.putAttendanceForMultipleBookingsAsync(any(), any()))
+      .thenReturn(Mono.error(RuntimeException("NOMIS unavailable")))
+
+    assertThatThrownBy {
+      service.createAttendances(
+        AttendancesDto(
+          eventDate = LocalDate.now().minusDays(1),
+          eventLocationId = 2L,
+          prisonId = "LEI",
+          period = TimePeriod.AM,
+          reason = AbsentReason.AcceptableAbsence,
+          comments = "test",
+          attended = false,
+          paid = true,
+          bookingActivities = setOf(BookingActivity(activityId = 1L, bookingId = 1L)),
+        ),
+      )
+    }.hasMessage("NOMIS unavailable")
+
+    verify(attendanceRepository, never()).saveAll(anySet())
+    verifyNoInteractions(attendanceRollupService)
+  }
+
   @Nested
   inner class getAbsencesForReason {
     @Test
@@ -1268,6 +1488,29 @@ class AttendanceServiceTest {
     )
   }
 
+  @Test
+  fun `should only read archived attendances over date range when asked for history`() {
+    val date = LocalDate.now().atStartOfDay().toLocalDate()
+    val archived = Attendance.builder().id(1).bookingId(1).eventId(2).eventLocationId(3).eventDate(date).period(TimePeriod.AM)
+      .prisonId("MDI").attended(true).paid(true).build()
+    whenever(attendanceArchiveRepository.findByPrisonIdAndBookingIdInAndEventDateBetweenAndPeriodIn(any(), any(), any(), any(), any()))
+      .thenReturn(viewsOf(archived))
+
+    assertThat(service.getAttendanceForBookingsOverDateRange("MDI", setOf(1, 2), date, null, null)).isEmpty()
+    verifyNoInteractions(attendanceArchiveRepository)
+
+    val history = service.getAttendanceForBookingsOverDateRange("MDI", setOf(1, 2), date, null, null, true)
+
+    assertThat(history.map { it.id }).containsExactly(1L)
+    verify(attendanceArchiveRepository).findByPrisonIdAndBookingIdInAndEventDateBetweenAndPeriodIn(
+      "MDI",
+      setOf(1, 2),
+      date,
+      date,
+      setOf(TimePeriod.AM, TimePeriod.PM),
+    )
+  }
+
   @Test
   fun `should substitute empty period with a set of AM and PM for attendance over date range`() {
     val date = LocalDate.now().atStartOfDay().toLocalDate()
@@ -1286,30 +1529,29 @@ class AttendanceServiceTest {
   }
 
   @Test
-  fun `should attempt to delete two attendance records and raise telemetry event`() {
+  fun `should delete the attendances and their changes for all bookings at once and raise telemetry event`() {
     val offenderNo = "A12345"
+    val buckets = listOf(PrisonAttendanceBucketCount("MDI", today, TimePeriod.AM, null, true, 3))
 
-    whenever(attendanceRepository.findByBookingId(1)).thenReturn(
-      setOf(
-        Attendance.builder().id(1).bookingId(1).build(),
-        Attendance.builder().id(2).bookingId(1).build(),
-        Attendance.builder().id(3).bookingId(1).build(),
-      ),
-    )
+    whenever(attendanceRepository.countByBucketForBookings(listOf(1L, 2L))).thenReturn(buckets)
+    whenever(attendanceChangesRepository.deleteByAttendanceBookingIdIn(listOf(1L, 2L))).thenReturn(2)
+    whenever(attendanceRepository.deleteByBookingIdIn(listOf(1L, 2L))).thenReturn(3)
 
-    service.deleteAttendancesForOffenderDeleteEvent(offenderNo, listOf(1L))
+    service.deleteAttendancesForOffenderDeleteEvent(offenderNo, listOf(1L, 2L))
 
-    verify(attendanceRepository).findByBookingId(eq(1))
-    verify(attendanceRepository).deleteAll(
-      eq(
-        setOf(
-          Attendance.builder().id(1).bookingId(1).build(),
-          Attendance.builder().id(2).bookingId(1).build(),
-          Attendance.builder().id(3).bookingId(1).build(),
-        ),
-      ),
-    )
-    verify(telemetryClient).trackEvent("OffenderDelete", mapOf("offenderNo" to "A12345", "count" to "3"), null)
+    verify(attendanceChangesRepository).deleteByAttendanceBookingIdIn(listOf(1L, 2L))
+    verify(attendanceRepository).deleteByBookingIdIn(listOf(1L, 2L))
+    verify(attendanceRollupService).removed(buckets)
+    verify(telemetryClient).trackEvent("OffenderDelete", mapOf("offenderNo" to "A12345", "count" to "3", "changes" to "2"), null)
+  }
+
+  @Test
+  fun `should not query for an offender without bookings`() {
+    service.deleteAttendancesForOffenderDeleteEvent("A12345", emptyList())
+
+    verify(attendanceRepository, never()).deleteByBookingIdIn(any())
+    verifyNoInteractions(attendanceRollupService)
+    verify(telemetryClient).trackEvent("OffenderDelete", mapOf("offenderNo" to "A12345", "count" to "0", "changes" to "0"), null)
   }
 
   @Test
@@ -1374,6 +1616,32 @@ class AttendanceServiceTest {
     )
   }
 
+  @Test
+  fun `should move the attendance between rollup buckets when it changes`() {
+    val attendance = Attendance.builder()
+      .id(1)
+      .absentReason(AbsentReason.Refused)
+      .attended(false)
+      .paid(false)
+      .eventId(2)
+      .eventLocationId(3)
+      .eventDate(today)
+      .period(TimePeriod.AM)
+      .prisonId("LEI")
+      .bookingId(100)
+      .build()
+    val beforeChange = attendance.toBuilder().build()
+
+    whenever(attendanceRepository.findById(1L)).thenReturn(Optional.of(attendance))
+
+    service.updateAttendance(1L, UpdateAttendanceDto(attended = true, paid = true))
+
+    verify(attendanceRollupService).changed(
+      beforeChange,
+      beforeChange.toBuilder().attended(true).paid(true).absentReason(null).comments(null).build(),
+    )
+  }
+
   @Test
   fun `should call findAttendanceChangeByCreateDateTime when toDateTime is null and agencyId is present`() {
     val fromDateTime = LocalDateTime.now()
@@ -1454,6 +1722,62 @@ class AttendanceServiceTest {
     assertThat(change.prisonId).isEqualTo("LEI")
   }
 
+  @Test
+  fun `should resume the changes feed from the cursor of the previous page`() {
+    val fromDateTime = LocalDateTime.of(2026, 3, 1, 9, 0)
+    val toDateTime = LocalDateTime.of(2026, 3, 1, 17, 0)
+    val lastChangedOn = LocalDateTime.of(2026, 3, 1, 10, 30, 15, 123_000)
+    val attendance = Attendance.builder().id(1).eventId(2).eventLocationId(3).prisonId("LEI").bookingId(100).build()
+    whenever(attendanceChangesRepository.findPageAfter(any(), any(), anyOrNull(), any(), any(), any())).thenReturn(
+      listOf(
+        AttendanceChange(id = 7, attendance = attendance, changedFrom = AttendanceChangeValues.Attended, changedTo = AttendanceChangeValues.Refused, createDateTime = fromDateTime),
+        AttendanceChange(id = 8, attendance = attendance, changedFrom = AttendanceChangeValues.Refused, changedTo = AttendanceChangeValues.Attended, createDateTime = lastChangedOn),
+      ),
+    )
+
+    val firstPage = service.getAttendanceChangesPage(fromDateTime, toDateTime, "LEI", null, 2)
+
+    assertThat(firstPage.changes.map { it.id }).containsExactly(7L, 8L)
+    assertThat(firstPage.more).isTrue()
+    verify(attendanceChangesRepository).findPageAfter(fromDateTime, toDateTime, "LEI", fromDateTime, -1, PageRequest.of(0, 2))
+
+    service.getAttendanceChangesPage(fromDateTime, null, "LEI", firstPage.nextCursor, 2)
+
+    verify(attendanceChangesRepository).findPageAfter(fromDateTime, toDateTime, "LEI", lastChangedOn, 8, PageRequest.of(0, 2))
+  }
+
+  @Test
+  fun `should poll for later changes with the cursor of a short page when no toDateTime was given`() {
+    val fromDateTime = LocalDateTime.of(2026, 3, 1, 9, 0)
+    val attendance = Attendance.builder().id(1).eventId(2).eventLocationId(3).prisonId("LEI").bookingId(100).build()
+    val change = AttendanceChange(id = 7, attendance = attendance, changedFrom = AttendanceChangeValues.Attended, changedTo = AttendanceChangeValues.Refused, createDateTime = fromDateTime)
+    whenever(attendanceChangesRepository.findPageAfter(any(), any(), anyOrNull(), any(), any(), any()))
+      .thenReturn(listOf(change))
+      .thenReturn(emptyList())
+
+    val before = LocalDateTime.now()
+    val firstPage = service.getAttendanceChangesPage(fromDateTime, null, "LEI", null, 2)
+    assertThat(firstPage.more).isFalse()
+
+    Thread.sleep(5)
+    val polledAt = LocalDateTime.now()
+    val secondPage = service.getAttendanceChangesPage(fromDateTime, null, "LEI", firstPage.nextCursor, 2)
+
+    val upTo = argumentCaptor<LocalDateTime>()
+    verify(attendanceChangesRepository, times(2)).findPageAfter(eq(fromDateTime), upTo.capture(), eq("LEI"), any(), any(), eq(PageRequest.of(0, 2)))
+    // each call reads up to just short of when it was made, so changes made after the first are found by the second
+    assertThat(upTo.firstValue).isBetween(before.minusSeconds(10), polledAt.minusSeconds(10))
+    assertThat(upTo.secondValue).isAfterOrEqualTo(polledAt.minusSeconds(10))
+    verify(attendanceChangesRepository).findPageAfter(fromDateTime, upTo.secondValue, "LEI", fromDateTime, 7, PageRequest.of(0, 2))
+    assertThat(AttendanceChangesCursor.decode(secondPage.nextCursor)).isEqualTo(AttendanceChangesCursor(fromDateTime, 7, null))
+  }
+
+  @Test
+  fun `should reject a cursor it did not issue`() {
+    assertThatThrownBy { service.getAttendanceChangesPage(LocalDateTime.now(), null, null, "not-a-cursor", 10) }
+      .isInstanceOf(ValidationException::class.java)
+  }
+
   val pageable = Pageable.ofSize(10)
 
   private fun createOffenderAttendance(eventDate: String, outcome: String?): OffenderAttendance = OffenderAttendance(eventDate, outcome, prisonId = "MDI", activity = "a", description = "d")
@@ -1638,4 +1962,6 @@ class AttendanceServiceTest {
     .createUserId("user")
     .caseNoteId(1)
     .build()
+
+  private fun viewsOf(vararg attendances: Attendance): Set<AttendanceView> = attendances.map(AttendanceView::from).toSet()
 }
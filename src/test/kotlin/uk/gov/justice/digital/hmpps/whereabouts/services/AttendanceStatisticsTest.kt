@@ -13,10 +13,15 @@ import org.mockito.Mockito.anyString
 import org.mockito.kotlin.mock
 import org.mockito.kotlin.verify
 import org.mockito.kotlin.whenever
+import reactor.core.publisher.Mono
 import uk.gov.justice.digital.hmpps.whereabouts.model.AbsentReason
-import uk.gov.justice.digital.hmpps.whereabouts.model.Attendance
 import uk.gov.justice.digital.hmpps.whereabouts.model.TimePeriod
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceArchiveRepository
+import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceDailyRollupRepository
 import uk.gov.justice.digital.hmpps.whereabouts.repository.AttendanceRepository
+import uk.gov.justice.digital.hmpps.whereabouts.repository.BookingAttendanceCount
+import uk.gov.justice.digital.hmpps.whereabouts.repository.RollupReasonCount
+import java.time.Duration
 import java.time.LocalDate
 
 class AttendanceStatisticsTest {
@@ -29,116 +34,48 @@ class AttendanceStatisticsTest {
   }
 
   private val attendanceRepository: AttendanceRepository = mock()
+  private val attendanceArchiveRepository: AttendanceArchiveRepository = mock()
+  private val attendanceDailyRollupRepository: AttendanceDailyRollupRepository = mock()
   private val prisonApiService: PrisonApiService = mock()
-  private val service = AttendanceStatistics(attendanceRepository, prisonApiService)
+  private val service = AttendanceStatistics(
+    attendanceRepository,
+    attendanceArchiveRepository,
+    attendanceDailyRollupRepository,
+    prisonApiService,
+    ConcurrentReads(Duration.ofSeconds(5)),
+  )
   private val prisonId = "LEI"
   private val period = TimePeriod.AM
   private val from = LocalDate.now()
   private val to = LocalDate.now()
 
-  private val attendances = setOf(
-    Attendance.builder()
-      .id(1)
-      .bookingId(1)
-      .attended(true)
-      .paid(true)
-      .period(TimePeriod.AM)
-      .build(),
-    Attendance.builder()
-      .id(2)
-      .bookingId(2)
-      .attended(false)
-      .absentReason(AbsentReason.ApprovedCourse)
-      .period(TimePeriod.AM)
-      .paid(true)
-      .build(),
-    Attendance.builder()
-      .id(3)
-      .bookingId(3)
-      .attended(false)
-      .absentReason(AbsentReason.AcceptableAbsence)
-      .paid(true)
-      .period(TimePeriod.AM)
-      .build(),
-    Attendance.builder()
-      .id(4)
-      .bookingId(4)
-      .attended(false)
-      .absentReason(AbsentReason.NotRequired)
-      .paid(true)
-      .period(TimePeriod.AM)
-      .build(),
-    Attendance.builder()
-      .id(5)
-      .bookingId(5)
-      .attended(false)
-      .absentReason(AbsentReason.Refused)
-      .paid(false)
-      .period(TimePeriod.AM)
-      .build(),
-    Attendance.builder()
-      .id(7)
-      .bookingId(7)
-      .attended(false)
-      .absentReason(AbsentReason.SessionCancelled)
-      .paid(false)
-      .period(TimePeriod.AM)
-      .build(),
-    Attendance.builder()
-      .id(9)
-      .bookingId(9)
-      .attended(false)
-      .absentReason(AbsentReason.UnacceptableAbsenceIncentiveLevelWarning)
-      .paid(false)
-      .period(TimePeriod.AM)
-      .build(),
-    Attendance.builder()
-      .id(10)
-      .bookingId(10)
-      .attended(false)
-      .absentReason(AbsentReason.UnacceptableAbsence)
-      .paid(false)
-      .period(TimePeriod.AM)
-      .build(),
-    Attendance.builder()
-      .id(11)
-      .bookingId(9)
-      .attended(false)
-      .absentReason(AbsentReason.RestInCellOrSick)
-      .paid(false)
-      .period(TimePeriod.AM)
-      .build(),
-    Attendance.builder()
-      .id(11)
-      .bookingId(9)
-      .attended(false)
-      .absentReason(AbsentReason.RestDay)
-      .paid(false)
-      .period(TimePeriod.AM)
-      .build(),
-    Attendance.builder()
-      .id(11)
-      .bookingId(9)
-      .attended(false)
-      .absentReason(AbsentReason.RefusedIncentiveLevelWarning)
-      .paid(false)
-      .period(TimePeriod.AM)
-      .build(),
+  private val rollupCounts = listOf(
+    RollupReasonCount("NONE", true, 1),
+    RollupReasonCount("ApprovedCourse", false, 1),
+    RollupReasonCount("AcceptableAbsence", false, 1),
+    RollupReasonCount("NotRequired", false, 1),
+    RollupReasonCount("Refused", false, 1),
+    RollupReasonCount("SessionCancelled", false, 1),
+    RollupReasonCount("UnacceptableAbsenceIncentiveLevelWarning", false, 1),
+    RollupReasonCount("UnacceptableAbsence", false, 1),
+    RollupReasonCount("RestInCellOrSick", false, 1),
+    RollupReasonCount("RestDay", false, 1),
+    RollupReasonCount("RefusedIncentiveLevelWarning", false, 1),
   )
 
   @Nested
   inner class getStats {
     @BeforeEach
     fun setup() {
-      whenever(prisonApiService.getScheduleActivityCounts(anyString(), any(), any(), any(), any())).thenReturn(
-        PrisonerActivitiesCount(0, 0, 0),
+      whenever(prisonApiService.getScheduleActivityCountsAsync(anyString(), any(), any(), any(), any())).thenReturn(
+        Mono.just(PrisonerActivitiesCount(0, 0, 0)),
       )
     }
 
     @Test
     fun `count attendances`() {
-      whenever(attendanceRepository.findByPrisonIdAndPeriodAndEventDateBetween(anyString(), any(), any(), any()))
-        .thenReturn(attendances)
+      whenever(attendanceDailyRollupRepository.sumByReasonAndAttended(anyString(), any(), any(), any()))
+        .thenReturn(rollupCounts)
 
       val stats = service.getStats(prisonId, period, from, to)
 
@@ -148,8 +85,8 @@ class AttendanceStatisticsTest {
     @ParameterizedTest
     @MethodSource("uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceStatisticsTest#getPaidReasons")
     fun `count paid reasons`(reason: AbsentReason) {
-      whenever(attendanceRepository.findByPrisonIdAndPeriodAndEventDateBetween(anyString(), any(), any(), any()))
-        .thenReturn(attendances)
+      whenever(attendanceDailyRollupRepository.sumByReasonAndAttended(anyString(), any(), any(), any()))
+        .thenReturn(rollupCounts)
 
       val stats = service.getStats(prisonId, period, from, to)
 
@@ -160,8 +97,8 @@ class AttendanceStatisticsTest {
     @ParameterizedTest
     @MethodSource("uk.gov.justice.digital.hmpps.whereabouts.services.AttendanceStatisticsTest#getUnpaidReasons")
     fun `count unpaid reasons`(reason: AbsentReason) {
-      whenever(attendanceRepository.findByPrisonIdAndPeriodAndEventDateBetween(anyString(), any(), any(), any()))
-        .thenReturn(attendances)
+      whenever(attendanceDailyRollupRepository.sumByReasonAndAttended(anyString(), any(), any(), any()))
+        .thenReturn(rollupCounts)
 
       val stats = service.getStats(prisonId, period, from, to)
 
@@ -169,14 +106,31 @@ class AttendanceStatisticsTest {
         .isEqualTo(1)
     }
 
+    @Test
+    fun `sum a reason recorded as both attended and not attended`() {
+      whenever(attendanceDailyRollupRepository.sumByReasonAndAttended(anyString(), any(), any(), any()))
+        .thenReturn(
+          listOf(
+            RollupReasonCount("NotRequired", false, 3),
+            RollupReasonCount("NotRequired", true, 2),
+            RollupReasonCount("NONE", true, 4),
+          ),
+        )
+
+      val stats = service.getStats(prisonId, period, from, to)
+
+      assertThat(stats).extracting("paidReasons").extracting("notRequired").isEqualTo(5)
+      assertThat(stats).extracting("attended").isEqualTo(6)
+    }
+
     @Test
     fun `count not recorded`() {
-      whenever(prisonApiService.getScheduleActivityCounts(anyString(), any(), any(), any(), any())).thenReturn(
-        PrisonerActivitiesCount(13, 1, 2),
+      whenever(prisonApiService.getScheduleActivityCountsAsync(anyString(), any(), any(), any(), any())).thenReturn(
+        Mono.just(PrisonerActivitiesCount(13, 1, 2)),
       )
 
-      whenever(attendanceRepository.findByPrisonIdAndPeriodAndEventDateBetween(anyString(), any(), any(), any()))
-        .thenReturn(attendances)
+      whenever(attendanceDailyRollupRepository.sumByReasonAndAttended(anyString(), any(), any(), any()))
+        .thenReturn(rollupCounts)
 
       val stats = service.getStats(prisonId, period, from, to)
 
@@ -185,8 +139,8 @@ class AttendanceStatisticsTest {
 
     @Test
     fun `count offender schedules`() {
-      whenever(prisonApiService.getScheduleActivityCounts(anyString(), any(), any(), any(), any())).thenReturn(
-        PrisonerActivitiesCount(8, 1, 0),
+      whenever(prisonApiService.getScheduleActivityCountsAsync(anyString(), any(), any(), any(), any())).thenReturn(
+        Mono.just(PrisonerActivitiesCount(8, 1, 0)),
       )
       val stats = service.getStats(prisonId, TimePeriod.AM, from, to)
 
@@ -195,8 +149,8 @@ class AttendanceStatisticsTest {
 
     @Test
     fun `count rest in cell or sick`() {
-      whenever(attendanceRepository.findByPrisonIdAndPeriodAndEventDateBetween(anyString(), any(), any(), any()))
-        .thenReturn(attendances)
+      whenever(attendanceDailyRollupRepository.sumByReasonAndAttended(anyString(), any(), any(), any()))
+        .thenReturn(rollupCounts)
 
       val stats = service.getStats(prisonId, period, from, to)
 
@@ -205,8 +159,8 @@ class AttendanceStatisticsTest {
 
     @Test
     fun `count rest day`() {
-      whenever(attendanceRepository.findByPrisonIdAndPeriodAndEventDateBetween(anyString(), any(), any(), any()))
-        .thenReturn(attendances)
+      whenever(attendanceDailyRollupRepository.sumByReasonAndAttended(anyString(), any(), any(), any()))
+        .thenReturn(rollupCounts)
 
       val stats = service.getStats(prisonId, period, from, to)
 
@@ -215,8 +169,8 @@ class AttendanceStatisticsTest {
 
     @Test
     fun `count refusedIncentiveLevelWarning`() {
-      whenever(attendanceRepository.findByPrisonIdAndPeriodAndEventDateBetween(anyString(), any(), any(), any()))
-        .thenReturn(attendances)
+      whenever(attendanceDailyRollupRepository.sumByReasonAndAttended(anyString(), any(), any(), any()))
+        .thenReturn(rollupCounts)
 
       val stats = service.getStats(prisonId, period, from, to)
 
@@ -224,27 +178,27 @@ class AttendanceStatisticsTest {
     }
 
     @Test
-    fun `should call the correct repository method when period all is supplied`() {
+    fun `should query both periods when period all is supplied`() {
       service.getStats(prisonId, null, from, to)
 
-      verify(attendanceRepository)
-        .findByPrisonIdAndEventDateBetweenAndPeriodIn(prisonId, from, to, setOf(TimePeriod.AM, TimePeriod.PM))
+      verify(attendanceDailyRollupRepository).sumByReasonAndAttended(prisonId, from, to, setOf(TimePeriod.AM, TimePeriod.PM))
+      verify(attendanceRepository).countByBooking(prisonId, from, to, setOf(TimePeriod.AM, TimePeriod.PM))
     }
 
     @Test
     fun `should return the correct number of suspended`() {
       whenever(
-        attendanceRepository.findByPrisonIdAndEventDateBetweenAndPeriodIn(
+        attendanceDailyRollupRepository.sumByReasonAndAttended(
           prisonId,
           from,
           to,
           setOf(TimePeriod.AM, TimePeriod.PM),
         ),
       )
-        .thenReturn(attendances)
+        .thenReturn(rollupCounts)
 
-      whenever(prisonApiService.getScheduleActivityCounts(anyString(), any(), any(), any(), any())).thenReturn(
-        PrisonerActivitiesCount(5, 2, 3),
+      whenever(prisonApiService.getScheduleActivityCountsAsync(anyString(), any(), any(), any(), any())).thenReturn(
+        Mono.just(PrisonerActivitiesCount(5, 2, 3)),
       )
 
       val stats = service.getStats(prisonId, null, from, to)
@@ -253,20 +207,20 @@ class AttendanceStatisticsTest {
     }
 
     @Test
-    fun `should call Prison API passing through the attendances`() {
+    fun `should call Prison API passing through the attendance counts per booking`() {
       whenever(
-        attendanceRepository.findByPrisonIdAndEventDateBetweenAndPeriodIn(
+        attendanceRepository.countByBooking(
           prisonId,
           from,
           to,
           setOf(TimePeriod.AM, TimePeriod.PM),
         ),
       )
-        .thenReturn(attendances.filter { setOf(1L, 2L, 3L).contains(it.bookingId) }.toSet())
+        .thenReturn(listOf(BookingAttendanceCount(1, 1), BookingAttendanceCount(2, 1), BookingAttendanceCount(9, 4)))
 
       service.getStats(prisonId, null, from, to)
 
-      verify(prisonApiService).getScheduleActivityCounts(
+      verify(prisonApiService).getScheduleActivityCountsAsync(
         prisonId,
         from,
         to,
@@ -274,7 +228,29 @@ class AttendanceStatisticsTest {
         mapOf(
           1L to 1,
           2L to 1,
-          3L to 1,
+          9L to 4,
+        ),
+      )
+    }
+
+    @Test
+    fun `should include archived attendances in the counts per booking passed to Prison API`() {
+      whenever(attendanceRepository.countByBooking(prisonId, from, to, setOf(period)))
+        .thenReturn(listOf(BookingAttendanceCount(1, 1), BookingAttendanceCount(2, 1)))
+      whenever(attendanceArchiveRepository.countByBooking(prisonId, from, to, setOf(period)))
+        .thenReturn(listOf(BookingAttendanceCount(2, 3), BookingAttendanceCount(5, 2)))
+
+      service.getStats(prisonId, period, from, to)
+
+      verify(prisonApiService).getScheduleActivityCountsAsync(
+        prisonId,
+        from,
+        to,
+        setOf(period),
+        mapOf(
+          1L to 1,
+          2L to 4,
+          5L to 2,
         ),
       )
     }
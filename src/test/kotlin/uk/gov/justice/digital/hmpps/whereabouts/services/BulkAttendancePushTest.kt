@@ -0,0 +1,86 @@
+package uk.gov.justice.digital.hmpps.whereabouts.services
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import org.mockito.kotlin.any
+import org.mockito.kotlin.argumentCaptor
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.times
+import org.mockito.kotlin.verify
+import org.mockito.kotlin.whenever
+import reactor.core.publisher.Mono
+import uk.gov.justice.digital.hmpps.whereabouts.dto.BookingActivity
+import java.time.Duration
+import java.util.concurrent.atomic.AtomicInteger
+
+class BulkAttendancePushTest {
+  private val prisonApiService: PrisonApiService = mock()
+  private val eventOutcome = EventOutcome("ATT", "STANDARD", "")
+  private val bookingActivities = (1L..5L).map { BookingActivity(bookingId = it, activityId = 10L) }.toSet()
+
+  private val push = BulkAttendancePush(prisonApiService, 2, 2, 2, Duration.ofMillis(1))
+
+  @Test
+  fun `pushes the bookings in chunks`() {
+    whenever(prisonApiService.putAttendanceForMultipleBookingsAsync(any(), any())).thenReturn(Mono.empty())
+
+    val result = push.push(bookingActivities, eventOutcome)
+
+    assertThat(result.succeeded).isEqualTo(bookingActivities)
+    assertThat(result.failed).isEmpty()
+    assertThat(result.error).isNull()
+
+    val chunks = argumentCaptor<Set<BookingActivity>>()
+    verify(prisonApiService, times(3)).putAttendanceForMultipleBookingsAsync(chunks.capture(), any())
+    assertThat(chunks.allValues.map { it.size }).containsExactlyInAnyOrder(2, 2, 1)
+    assertThat(chunks.allValues.flatten()).containsExactlyInAnyOrderElementsOf(bookingActivities)
+  }
+
+  @Test
+  fun `retries a chunk that hits a locked row`() {
+    val attempts = AtomicInteger()
+    whenever(prisonApiService.putAttendanceForMultipleBookingsAsync(any(), any())).thenReturn(
+      Mono.defer { if (attempts.incrementAndGet() == 1) Mono.error(DatabaseRowLockedException()) else Mono.empty() },
+    )
+
+    val result = push.push(setOf(BookingActivity(bookingId = 1L, activityId = 10L)), eventOutcome)
+
+    assertThat(result.failed).isEmpty()
+    assertThat(attempts.get()).isEqualTo(2)
+  }
+
+  @Test
+  fun `reports a chunk that still fails without failing the others`() {
+    val rejected = setOf(BookingActivity(bookingId = 1L, activityId = 10L), BookingActivity(bookingId = 2L, activityId = 10L))
+    whenever(prisonApiService.putAttendanceForMultipleBookingsAsync(any(), any())).thenAnswer {
+      if (it.getArgument<Set<BookingActivity>>(0).any { booking -> booking in rejected }) {
+        Mono.error<Void>(DatabaseRowLockedException())
+      } else {
+        Mono.empty<Void>()
+      }
+    }
+
+    val result = BulkAttendancePush(prisonApiService, 1, 2, 1, Duration.ofMillis(1)).push(bookingActivities, eventOutcome)
+
+    assertThat(result.failed).isEqualTo(rejected)
+    assertThat(result.succeeded).isEqualTo(bookingActivities - rejected)
+    assertThat(result.error).isInstanceOf(DatabaseRowLockedException::class.java)
+  }
+
+  @Test
+  fun `does not retry other errors`() {
+    val attempts = AtomicInteger()
+    whenever(prisonApiService.putAttendanceForMultipleBookingsAsync(any(), any())).thenReturn(
+      Mono.defer {
+        attempts.incrementAndGet()
+        Mono.error<Void>(RuntimeException("boom"))
+      },
+    )
+
+    val result = push.push(setOf(BookingActivity(bookingId = 1L, activityId = 10L)), eventOutcome)
+
+    assertThat(result.succeeded).isEmpty()
+    assertThat(result.error).hasMessage("boom")
+    assertThat(attempts.get()).isEqualTo(1)
+  }
+}
@@ -0,0 +1,52 @@
+package uk.gov.justice.digital.hmpps.whereabouts.services
+
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatThrownBy
+import org.junit.jupiter.api.Test
+import reactor.core.publisher.Mono
+import java.time.Duration
+import java.util.concurrent.atomic.AtomicBoolean
+
+class ConcurrentReadsTest {
+  private val concurrentReads = ConcurrentReads(Duration.ofMillis(500))
+
+  @Test
+  fun `remote call is in flight while the local work runs`() {
+    val subscribed = AtomicBoolean()
+    val remote = Mono.just("remote").doOnSubscribe { subscribed.set(true) }
+
+    val (remoteResult, localResult) = concurrentReads.zip(remote) {
+      assertThat(subscribed).isTrue()
+      "local"
+    }
+
+    assertThat(remoteResult).isEqualTo("remote")
+    assertThat(localResult).isEqualTo("local")
+  }
+
+  @Test
+  fun `remote call is cancelled when the local work fails`() {
+    val cancelled = AtomicBoolean()
+    val remote = Mono.never<String>().doOnCancel { cancelled.set(true) }
+
+    assertThatThrownBy { concurrentReads.zip(remote) { throw IllegalStateException("db down") } }
+      .isInstanceOf(IllegalStateException::class.java)
+    assertThat(cancelled).isTrue()
+  }
+
+  @Test
+  fun `remote failure is rethrown unwrapped`() {
+    assertThatThrownBy { concurrentReads.zip(Mono.error<String>(DatabaseRowLockedException())) { "local" } }
+      .isInstanceOf(DatabaseRowLockedException::class.java)
+  }
+
+  @Test
+  fun `remote call is cancelled once the deadline has passed`() {
+    val cancelled = AtomicBoolean()
+    val remote = Mono.never<String>().doOnCancel { cancelled.set(true) }
+
+    assertThatThrownBy { concurrentReads.zip(remote) { "local" } }
+      .isInstanceOf(ReadDeadlineExceeded::class.java)
+    assertThat(cancelled).isTrue()
+  }
+}
@@ -19,9 +19,9 @@ import java.time.LocalDateTime
 
 class IEPWarningServiceTest {
 
-  private val prisonApiService: PrisonApiService = mock()
+  private val offenderNoCache: OffenderNoCache = mock()
   private val caseNotesService: CaseNotesService = mock()
-  private val service = IEPWarningService(caseNotesService, prisonApiService)
+  private val service = IEPWarningService(caseNotesService, offenderNoCache)
 
   private val today = LocalDate.now()
 
@@ -40,7 +40,7 @@ class IEPWarningServiceTest {
     )
       .thenReturn(CaseNoteDto.builder().legacyId(100L).build())
 
-    whenever(prisonApiService.getOffenderNoFromBookingId(anyLong())).thenReturn("AB1234C")
+    whenever(offenderNoCache.getOffenderNo(anyLong())).thenReturn("AB1234C")
 
     service.postIEPWarningIfRequired(1, null, AbsentReason.RefusedIncentiveLevelWarning, null, "test comment", date)
 
@@ -69,7 +69,7 @@ class IEPWarningServiceTest {
     )
       .thenReturn(CaseNoteDto.builder().legacyId(100L).build())
 
-    whenever(prisonApiService.getOffenderNoFromBookingId(anyLong())).thenReturn("AB1234C")
+    whenever(offenderNoCache.getOffenderNo(anyLong())).thenReturn("AB1234C")
 
     service.postIEPWarningIfRequired(1, null, AbsentReason.RefusedIncentiveLevelWarning, AbsentSubReason.ExternalMoves, "test comment", date)
 
@@ -85,7 +85,7 @@ class IEPWarningServiceTest {
 
   @Test
   fun `should post IEP reinstated case note amendment if going from unpaid (IEP warning) to paid attendance (IEP rescinded) to unpaid absent unacceptable`() {
-    whenever(prisonApiService.getOffenderNoFromBookingId(anyLong())).thenReturn("AB1234C")
+    whenever(offenderNoCache.getOffenderNo(anyLong())).thenReturn("AB1234C")
 
     val attendance = Attendance.builder()
       .bookingId(1)
@@ -122,7 +122,7 @@ class IEPWarningServiceTest {
       ),
     )
       .thenReturn(CaseNoteDto.builder().legacyId(1).build())
-    whenever(prisonApiService.getOffenderNoFromBookingId(anyLong())).thenReturn("AB1234C")
+    whenever(offenderNoCache.getOffenderNo(anyLong())).thenReturn("AB1234C")
 
     val attendance = Attendance.builder()
       .bookingId(1)
@@ -154,7 +154,7 @@ class IEPWarningServiceTest {
 
   @Test
   fun `should sentence case absent reasons`() {
-    whenever(prisonApiService.getOffenderNoFromBookingId(anyLong())).thenReturn("AB1234C")
+    whenever(offenderNoCache.getOffenderNo(anyLong())).thenReturn("AB1234C")
 
     val attendance = Attendance.builder()
       .bookingId(1)
@@ -275,7 +275,7 @@ class IEPWarningServiceTest {
 
   @Test
   fun `should post case note amendment going from unpaid absent refused to paid attendance`() {
-    whenever(prisonApiService.getOffenderNoFromBookingId(anyLong())).thenReturn("AB1234C")
+    whenever(offenderNoCache.getOffenderNo(anyLong())).thenReturn("AB1234C")
 
     val attendance = Attendance.builder()
       .bookingId(1)
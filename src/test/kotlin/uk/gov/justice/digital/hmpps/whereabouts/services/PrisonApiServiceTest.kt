@@ -2,6 +2,8 @@ package uk.gov.justice.digital.hmpps.whereabouts.services
 
 import com.github.tomakehurst.wiremock.client.WireMock.deleteRequestedFor
 import com.github.tomakehurst.wiremock.client.WireMock.equalTo
+import com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor
+import com.github.tomakehurst.wiremock.client.WireMock.putRequestedFor
 import com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo
 import org.assertj.core.api.Assertions.assertThat
 import org.junit.jupiter.api.AfterAll
@@ -81,6 +83,38 @@ class PrisonApiServiceTest {
     )
   }
 
+  @Test
+  fun `async delete makes no request until subscribed`() {
+    val appointmentId = 1L
+    prisonApiMockServer.stubDeleteAppointment(appointmentId, 200)
+
+    val deletion = prisonApiService.deleteAppointmentAsync(appointmentId, DENY)
+    prisonApiMockServer.verify(0, deleteRequestedFor(urlEqualTo("/api/appointments/$appointmentId")))
+
+    deletion.block()
+    prisonApiMockServer.verify(1, deleteRequestedFor(urlEqualTo("/api/appointments/$appointmentId")))
+  }
+
+  @Test
+  fun `async put attendance maps a locked row to DatabaseRowLockedException`() {
+    prisonApiMockServer.stubUpdateAttendance(bookingId = 1L, activityId = 2L, status = 423)
+
+    Assertions.assertThrows(DatabaseRowLockedException::class.java) {
+      prisonApiService.putAttendanceAsync(1L, 2L, EventOutcome("ATT")).block()
+    }
+    prisonApiMockServer.verify(
+      putRequestedFor(urlEqualTo("/api/bookings/1/activities/2/attendance?lockTimeout=true")),
+    )
+  }
+
+  @Test
+  fun `async get offender number from booking id`() {
+    prisonApiMockServer.stubGetBooking(offenderNo = "A1234AA", bookingId = 3L)
+
+    assertThat(prisonApiService.getOffenderNoFromBookingIdAsync(3L).block()).isEqualTo("A1234AA")
+    prisonApiMockServer.verify(getRequestedFor(urlEqualTo("/api/bookings/3?basicInfo=true")))
+  }
+
   val pageable = Pageable.ofSize(10000)
 
   @Test